@@ -79,6 +79,10 @@ public class AddNoiseToDataValues<T extends RealType<T>>
 	@Parameter(label = "Apply to all planes")
 	private boolean allPlanes;
 
+	@Parameter(label = "Seed", required = false,
+		description = "Seed of the noise. Leave empty for a random seed.")
+	private Long seed;
+
 	// -- public interface --
 
 	@Override
@@ -90,6 +94,7 @@ public class AddNoiseToDataValues<T extends RealType<T>>
 		NoiseAdder<T> noiseAdder =
 			new NoiseAdder<T>(dataset, overlay, planePos);
 		noiseAdder.setStdDev(25.0);
+		noiseAdder.setSeed(seed);
 		noiseAdder.run();
 	}
 
@@ -108,5 +113,13 @@ public class AddNoiseToDataValues<T extends RealType<T>>
 	public void setAllPlanes(boolean value) {
 		this.allPlanes = value;
 	}
-	
+
+	public Long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(Long seed) {
+		this.seed = seed;
+	}
+
 }
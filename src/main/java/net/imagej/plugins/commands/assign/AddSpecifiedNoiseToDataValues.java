@@ -82,6 +82,10 @@ public class AddSpecifiedNoiseToDataValues<T extends RealType<T>>
 	@Parameter(label = "Apply to all planes")
 	private boolean allPlanes;
 
+	@Parameter(label = "Seed", required = false,
+		description = "Seed of the noise. Leave empty for a random seed.")
+	private Long seed;
+
 	// -- public interface --
 
 	@Override
@@ -93,6 +97,7 @@ public class AddSpecifiedNoiseToDataValues<T extends RealType<T>>
 		NoiseAdder<T> noiseAdder =
 			new NoiseAdder<T>(dataset, overlay, planePos);
 		noiseAdder.setStdDev(stdDev);
+		noiseAdder.setSeed(seed);
 		noiseAdder.run();
 	}
 
@@ -119,5 +124,13 @@ public class AddSpecifiedNoiseToDataValues<T extends RealType<T>>
 	public void setStdDev(double stdDev) {
 		this.stdDev = stdDev;
 	}
-	
+
+	public Long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(Long seed) {
+		this.seed = seed;
+	}
+
 }
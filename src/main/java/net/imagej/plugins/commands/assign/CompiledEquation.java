@@ -0,0 +1,476 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An equation of the Process > Math > Equation language compiled into a flat
+ * postfix program. Evaluating the program uses a caller supplied stack and does
+ * not allocate, unlike walking the function tree built by the equation parser.
+ * <p>
+ * The program is built from the same grammar as imglib2-ops'
+ * RealEquationFunctionParser, so it groups operators the same way:
+ * 
+ * <pre>
+ * statement  = expression | [ identifierList ] , expression
+ * expression = term | term + expression | term - expression
+ * term       = factor | factor * term | factor / term
+ * factor     = signedAtom | signedAtom ^ factor
+ * signedAtom = atom | + atom | - atom
+ * atom       = number | PI | E | img | variable | function ( expression ) |
+ *              ( expression )
+ * </pre>
+ * 
+ * The rules are right recursive, so chains of equal precedence group from the
+ * right: a-b-c means a-(b-c) and a/b*c means a/(b*c). A sign belongs to the
+ * atom it precedes, so -a^b means (-a)^b. Each node computes with the same
+ * Math methods as the parser's operations. Division by zero is left to the
+ * parsed function (see {@link #evaluate}).
+ * <p>
+ * Only a subset of the language is compiled: the rules above and common one
+ * argument math functions. {@link #compile} returns null for anything else
+ * (such as % or the other functions), in which case the parsed function tree
+ * should be used.
+ */
+public class CompiledEquation {
+
+	// -- constants --
+
+	private static final int CONST = 0;
+	private static final int VAR = 1;
+	private static final int IMG = 2;
+	private static final int ADD = 3;
+	private static final int SUB = 4;
+	private static final int MUL = 5;
+	private static final int DIV = 6;
+	private static final int POW = 7;
+	private static final int NEG = 8;
+	private static final int FUNC = 9;
+
+	private static final String[] FUNCTIONS = { "sin", "cos", "tan", "asin",
+		"acos", "atan", "sinh", "cosh", "tanh", "exp", "log", "sqrt", "abs",
+		"floor", "ceil" };
+
+	// -- instance variables --
+
+	/** Pairs of (opcode, operand). */
+	private final int[] code;
+	private final double[] constants;
+	private final int stackSize;
+	private final int numVariables;
+	private final boolean usesImage;
+
+	// -- constructor --
+
+	private CompiledEquation(final int[] code, final double[] constants,
+		final int stackSize, final int numVariables, final boolean usesImage)
+	{
+		this.code = code;
+		this.constants = constants;
+		this.stackSize = stackSize;
+		this.numVariables = numVariables;
+		this.usesImage = usesImage;
+	}
+
+	// -- public interface --
+
+	/**
+	 * Compiles an equation. Returns null if the equation uses anything outside
+	 * the compiled subset of the language.
+	 */
+	public static CompiledEquation compile(final String equation) {
+		try {
+			final Compiler compiler = new Compiler(equation);
+			return compiler.compile();
+		}
+		catch (final IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/** Returns the size of the stack that {@link #evaluate} needs. */
+	public int getStackSize() {
+		return stackSize;
+	}
+
+	/** Returns the number of axis variables the equation declares. */
+	public int getNumVariables() {
+		return numVariables;
+	}
+
+	/** Returns true if the equation refers to the image value (img). */
+	public boolean usesImage() {
+		return usesImage;
+	}
+
+	/**
+	 * Evaluates the program at a point and leaves the result in stack[0].
+	 * Returns false if the result is not defined by the program alone (a
+	 * division by zero) in which case the parsed function must be evaluated
+	 * for this point instead.
+	 */
+	public boolean evaluate(final long[] pos, final double imgValue,
+		final double[] stack)
+	{
+		int sp = -1;
+		for (int i = 0; i < code.length; i += 2) {
+			final int arg = code[i + 1];
+			switch (code[i]) {
+				case CONST:
+					stack[++sp] = constants[arg];
+					break;
+				case VAR:
+					stack[++sp] = pos[arg];
+					break;
+				case IMG:
+					stack[++sp] = imgValue;
+					break;
+				case ADD:
+					stack[sp - 1] = stack[sp - 1] + stack[sp];
+					sp--;
+					break;
+				case SUB:
+					stack[sp - 1] = stack[sp - 1] - stack[sp];
+					sp--;
+					break;
+				case MUL:
+					stack[sp - 1] = stack[sp - 1] * stack[sp];
+					sp--;
+					break;
+				case DIV:
+					if (stack[sp] == 0) return false;
+					stack[sp - 1] = stack[sp - 1] / stack[sp];
+					sp--;
+					break;
+				case POW:
+					stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+					sp--;
+					break;
+				case NEG:
+					stack[sp] = -stack[sp];
+					break;
+				default: // FUNC
+					stack[sp] = function(arg, stack[sp]);
+			}
+		}
+		return true;
+	}
+
+	// -- private helpers --
+
+	private static double function(final int f, final double x) {
+		switch (f) {
+			case 0:
+				return Math.sin(x);
+			case 1:
+				return Math.cos(x);
+			case 2:
+				return Math.tan(x);
+			case 3:
+				return Math.asin(x);
+			case 4:
+				return Math.acos(x);
+			case 5:
+				return Math.atan(x);
+			case 6:
+				return Math.sinh(x);
+			case 7:
+				return Math.cosh(x);
+			case 8:
+				return Math.tanh(x);
+			case 9:
+				return Math.exp(x);
+			case 10:
+				return Math.log(x);
+			case 11:
+				return Math.sqrt(x);
+			case 12:
+				return Math.abs(x);
+			case 13:
+				return Math.floor(x);
+			default:
+				return Math.ceil(x);
+		}
+	}
+
+	/**
+	 * Recursive descent compiler. Throws IllegalArgumentException for anything
+	 * it does not support.
+	 */
+	private static class Compiler {
+
+		private final String text;
+		private final Map<String, Integer> variables =
+			new HashMap<String, Integer>();
+		private final List<Integer> code = new ArrayList<Integer>();
+		private final List<Double> constants = new ArrayList<Double>();
+		private int pos;
+		private int depth;
+		private int maxDepth;
+		private boolean usesImage;
+
+		public Compiler(final String text) {
+			this.text = text;
+		}
+
+		public CompiledEquation compile() {
+			pos = 0;
+			skipSpace();
+			if (peek() == '[') parseVariables();
+			final Node root = parseExpression();
+			skipSpace();
+			if (pos != text.length()) fail();
+			emit(root);
+			final int[] program = new int[code.size()];
+			for (int i = 0; i < program.length; i++) {
+				program[i] = code.get(i);
+			}
+			final double[] values = new double[constants.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = constants.get(i);
+			}
+			return new CompiledEquation(program, values, Math.max(1, maxDepth),
+				variables.size(), usesImage);
+		}
+
+		// -- parsing --
+
+		private void parseVariables() {
+			pos++;
+			int index = 0;
+			while (true) {
+				skipSpace();
+				final String name = identifier();
+				if (name == null || variables.containsKey(name)) fail();
+				variables.put(name, index++);
+				skipSpace();
+				final char ch = peek();
+				pos++;
+				if (ch == ']') break;
+				if (ch != ',') fail();
+			}
+			skipSpace();
+			if (peek() != ',') fail();
+			pos++;
+		}
+
+		/** expression = term | term + expression | term - expression */
+		private Node parseExpression() {
+			final Node term = parseTerm();
+			skipSpace();
+			final char ch = peek();
+			if (ch != '+' && ch != '-') return term;
+			pos++;
+			return new Node(ch == '+' ? ADD : SUB, term, parseExpression());
+		}
+
+		/** term = factor | factor * term | factor / term */
+		private Node parseTerm() {
+			final Node factor = parseFactor();
+			skipSpace();
+			final char ch = peek();
+			if (ch != '*' && ch != '/') return factor;
+			pos++;
+			return new Node(ch == '*' ? MUL : DIV, factor, parseTerm());
+		}
+
+		/** factor = signedAtom | signedAtom ^ factor */
+		private Node parseFactor() {
+			final Node base = parseSignedAtom();
+			skipSpace();
+			if (peek() != '^') return base;
+			pos++;
+			return new Node(POW, base, parseFactor());
+		}
+
+		/** signedAtom = atom | + atom | - atom */
+		private Node parseSignedAtom() {
+			skipSpace();
+			final char ch = peek();
+			if (ch == '+') {
+				pos++;
+				return parseAtom();
+			}
+			if (ch == '-') {
+				pos++;
+				return new Node(NEG, parseAtom(), null);
+			}
+			return parseAtom();
+		}
+
+		private Node parseAtom() {
+			skipSpace();
+			final char ch = peek();
+			if (ch == '(') {
+				pos++;
+				final Node inner = parseExpression();
+				skipSpace();
+				if (peek() != ')') fail();
+				pos++;
+				return inner;
+			}
+			if (Character.isDigit(ch) || ch == '.') return constant(number());
+			final String name = identifier();
+			if (name == null) fail();
+			if (name.equals("PI")) return constant(Math.PI);
+			if (name.equals("E")) return constant(Math.E);
+			if (name.equals("img")) {
+				usesImage = true;
+				return new Node(IMG, null, null);
+			}
+			final Integer var = variables.get(name);
+			if (var != null) {
+				final Node node = new Node(VAR, null, null);
+				node.arg = var;
+				return node;
+			}
+			for (int f = 0; f < FUNCTIONS.length; f++) {
+				if (!FUNCTIONS[f].equals(name)) continue;
+				skipSpace();
+				if (peek() != '(') fail();
+				pos++;
+				final Node argument = parseExpression();
+				skipSpace();
+				if (peek() != ')') fail();
+				pos++;
+				final Node node = new Node(FUNC, argument, null);
+				node.arg = f;
+				return node;
+			}
+			throw new IllegalArgumentException("unsupported identifier " + name);
+		}
+
+		private Node constant(final double value) {
+			final Node node = new Node(CONST, null, null);
+			node.value = value;
+			return node;
+		}
+
+		private double number() {
+			final int start = pos;
+			while (pos < text.length() &&
+				(Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'))
+			{
+				pos++;
+			}
+			try {
+				return Double.parseDouble(text.substring(start, pos));
+			}
+			catch (final NumberFormatException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		private String identifier() {
+			final int start = pos;
+			if (pos >= text.length() || !Character.isLetter(text.charAt(pos))) {
+				return null;
+			}
+			while (pos < text.length() &&
+				(Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_'))
+			{
+				pos++;
+			}
+			return text.substring(start, pos);
+		}
+
+		private char peek() {
+			return (pos < text.length()) ? text.charAt(pos) : '\0';
+		}
+
+		private void skipSpace() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private void fail() {
+			throw new IllegalArgumentException("unsupported equation syntax at " +
+				pos);
+		}
+
+		// -- code generation --
+
+		private void emit(final Node node) {
+			if (node.a != null) emit(node.a);
+			if (node.b != null) emit(node.b);
+			switch (node.op) {
+				case CONST:
+					code.add(CONST);
+					code.add(constants.size());
+					constants.add(node.value);
+					push();
+					break;
+				case VAR:
+				case IMG:
+					code.add(node.op);
+					code.add(node.arg);
+					push();
+					break;
+				case NEG:
+				case FUNC:
+					code.add(node.op);
+					code.add(node.arg);
+					break;
+				default: // binary operators
+					code.add(node.op);
+					code.add(0);
+					depth--;
+			}
+		}
+
+		private void push() {
+			depth++;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+	}
+
+	/** A node of the expression tree built while compiling. */
+	private static class Node {
+
+		private final int op;
+		private final Node a;
+		private final Node b;
+		private int arg;
+		private double value;
+
+		public Node(final int op, final Node a, final Node b) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.type.numeric.ComplexType;
+
+/**
+ * A {@link ComplexUnaryOperation} that applies a list of operations one after
+ * the other. Optionally each intermediate result is stored into (and read back
+ * from) a variable of a given type. That reproduces the rounding and range
+ * behavior of applying the operations to an image one run at a time.
+ */
+public class ComposedUnaryOperation<O extends ComplexType<O>> implements
+	ComplexUnaryOperation<O, O>
+{
+
+	// -- instance variables --
+
+	private final List<ComplexUnaryOperation<O, O>> operations;
+	private final ComplexType<?> stageType;
+	private final O temp1;
+	private final O temp2;
+
+	// -- constructor --
+
+	/**
+	 * Constructs a composed operation.
+	 * 
+	 * @param operations The operations in the order they are to be applied
+	 * @param outType A variable of the type the operations compute in
+	 * @param stageType A variable to round intermediate results through, or
+	 *          null to pass them on unchanged
+	 */
+	public ComposedUnaryOperation(
+		final List<ComplexUnaryOperation<O, O>> operations, final O outType,
+		final ComplexType<?> stageType)
+	{
+		this.operations = new ArrayList<ComplexUnaryOperation<O, O>>(operations);
+		this.stageType = stageType;
+		this.temp1 = outType.createVariable();
+		this.temp2 = outType.createVariable();
+	}
+
+	// -- ComplexUnaryOperation methods --
+
+	@Override
+	public O compute(final O input, final O output) {
+		final int count = operations.size();
+		if (count == 0) {
+			output.setComplexNumber(input.getRealDouble(), input
+				.getImaginaryDouble());
+			return output;
+		}
+		O in = input;
+		for (int i = 0; i < count; i++) {
+			final O out = (i == count - 1) ? output : (i % 2 == 0) ? temp1 : temp2;
+			operations.get(i).compute(in, out);
+			if (stageType != null && out != output) {
+				stageType.setReal(out.getRealDouble());
+				stageType.setImaginary(out.getImaginaryDouble());
+				out.setComplexNumber(stageType.getRealDouble(), stageType
+					.getImaginaryDouble());
+			}
+			in = out;
+		}
+		return output;
+	}
+
+	@Override
+	public ComposedUnaryOperation<O> copy() {
+		final List<ComplexUnaryOperation<O, O>> copies =
+			new ArrayList<ComplexUnaryOperation<O, O>>();
+		for (final ComplexUnaryOperation<O, O> op : operations) {
+			copies.add(op.copy());
+		}
+		final ComplexType<?> stage =
+			(stageType == null) ? null : (ComplexType<?>) stageType.createVariable();
+		return new ComposedUnaryOperation<O>(copies, temp1, stage);
+	}
+
+	// -- ComposedUnaryOperation methods --
+
+	/** Returns the number of composed operations. */
+	public int size() {
+		return operations.size();
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.ops.condition.Condition;
+import net.imglib2.ops.function.Function;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.scijava.thread.ThreadService;
+
+/**
+ * Assigns the values of an equation to a rectangular region of an {@link Img}.
+ * Rows of the region are divided into bands that are processed in parallel.
+ * When a {@link CompiledEquation} is given it is evaluated at each point and
+ * the parsed function is only consulted where the program cannot decide;
+ * otherwise each worker evaluates its own copy of the parsed function.
+ */
+public class EquationAssignment<T extends RealType<T>> {
+
+	// -- constants --
+
+	/** Number of row bands per thread. More bands than threads balances load. */
+	private static final int BANDS_PER_THREAD = 4;
+
+	// -- instance variables --
+
+	private final Img<T> img;
+	private final long[] origin;
+	private final long[] span;
+	private final Function<long[], DoubleType> function;
+	private final CompiledEquation program;
+	private final Condition<long[]> condition;
+	private int numThreads = ParallelTasks.defaultThreadCount();
+	private ThreadService threadService;
+
+	// -- constructor --
+
+	/**
+	 * @param function The parsed equation
+	 * @param program The compiled equation, or null to evaluate the parsed one
+	 * @param condition The condition points must satisfy, or null for all
+	 */
+	public EquationAssignment(final Img<T> img, final long[] origin,
+		final long[] span, final Function<long[], DoubleType> function,
+		final CompiledEquation program, final Condition<long[]> condition)
+	{
+		this.img = img;
+		this.origin = origin.clone();
+		this.span = span.clone();
+		this.function = function;
+		this.program = program;
+		this.condition = condition;
+	}
+
+	// -- public interface --
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ThreadService getThreadService() {
+		return threadService;
+	}
+
+	/**
+	 * Sets the service that supplies extra threads. Without one all bands are
+	 * done on the calling thread.
+	 */
+	public void setThreadService(final ThreadService threadService) {
+		this.threadService = threadService;
+	}
+
+	/** Assigns the region. Returns once all bands are done. */
+	public void assign() {
+		long numRows = 1;
+		for (int i = 1; i < span.length; i++) {
+			numRows *= span[i];
+		}
+		if (numRows == 0 || span[0] == 0) return;
+		final long[] bounds =
+			ParallelTasks.split(numRows, Math.max(1, numThreads) * BANDS_PER_THREAD);
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < bounds.length - 1; i++) {
+			tasks.add(new BandTask(bounds[i], bounds[i + 1]));
+		}
+		ParallelTasks.run(threadService, tasks, numThreads);
+	}
+
+	// -- private helpers --
+
+	/** Assigns a contiguous band of rows [firstRow,lastRow). */
+	private class BandTask implements Callable<Void> {
+
+		private final long firstRow;
+		private final long lastRow;
+
+		public BandTask(final long firstRow, final long lastRow) {
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		@Override
+		public Void call() {
+			final RandomAccess<T> accessor = img.randomAccess();
+			final Function<long[], DoubleType> f = function.copy();
+			final Condition<long[]> cond =
+				(condition == null) ? null : condition.copy();
+			final DoubleType output = new DoubleType();
+			final double[] stack =
+				(program == null) ? null : new double[program.getStackSize()];
+			final boolean readImage = program != null && program.usesImage();
+			final long[] pos = new long[span.length];
+			for (long row = firstRow; row < lastRow; row++) {
+				pos[0] = origin[0];
+				long r = row;
+				for (int i = 1; i < span.length; i++) {
+					pos[i] = origin[i] + (r % span[i]);
+					r /= span[i];
+				}
+				accessor.setPosition(pos);
+				for (long x = 0; x < span[0]; x++) {
+					if (cond == null || cond.isTrue(pos)) {
+						final T value = accessor.get();
+						final double imgValue = readImage ? value.getRealDouble() : 0;
+						if (program != null && program.evaluate(pos, imgValue, stack)) {
+							value.setReal(stack[0]);
+						}
+						else {
+							f.compute(pos, output);
+							value.setReal(output.getRealDouble());
+						}
+					}
+					accessor.fwd(0);
+					pos[0]++;
+				}
+			}
+			return null;
+		}
+	}
+}
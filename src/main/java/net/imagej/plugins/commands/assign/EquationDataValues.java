@@ -42,11 +42,9 @@ import net.imagej.display.ImageDisplayService;
 import net.imagej.display.OverlayService;
 import net.imagej.overlay.Overlay;
 import net.imglib2.img.Img;
+import net.imglib2.ops.condition.Condition;
 import net.imglib2.ops.condition.UVInsideRoiCondition;
 import net.imglib2.ops.function.Function;
-import net.imglib2.ops.img.ImageAssignment;
-import net.imglib2.ops.input.InputIteratorFactory;
-import net.imglib2.ops.input.PointInputIteratorFactory;
 import net.imglib2.ops.parse.RealEquationFunctionParser;
 import net.imglib2.ops.util.Tuple2;
 import net.imglib2.type.numeric.RealType;
@@ -62,11 +60,13 @@ import org.scijava.plugin.Attr;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 import org.scijava.widget.Button;
 
 /**
  * Fills a region of a Dataset with the point by point calculation of a user
- * specified equation.
+ * specified equation. Equations are compiled to a flat program when possible
+ * and evaluated over bands of rows in parallel.
  * 
  * @author Barry DeZonia
  */
@@ -89,6 +89,12 @@ public class EquationDataValues<T extends RealType<T>> extends ContextCommand {
 	
 	@Parameter
 	private PlatformService platformService;
+
+	@Parameter(required = false)
+	private ScanlineMaskCache maskCache;
+
+	@Parameter(required = false)
+	private ThreadService threadService;
 	
 	@Parameter(type = ItemIO.BOTH)
 	private ImageDisplay display;
@@ -115,7 +121,7 @@ public class EquationDataValues<T extends RealType<T>> extends ContextCommand {
 	private Dataset dataset;
 	private long[] origin;
 	private long[] span;
-	private UVInsideRoiCondition condition;
+	private Condition<long[]> condition;
 
 	// -- public interface --
 
@@ -133,13 +139,14 @@ public class EquationDataValues<T extends RealType<T>> extends ContextCommand {
 			cancel("Equation parsing error: "+result.get2());
 			return;
 		}
-		InputIteratorFactory<long[]> factory = new PointInputIteratorFactory();
 		Function<long[],DoubleType> function = result.get1();
 		@SuppressWarnings("unchecked")
-		ImageAssignment<T,DoubleType,long[]> assigner =
-				new ImageAssignment<T, DoubleType, long[]>(
-						(Img<T>)dataset.getImgPlus(), origin, span,
-						function, condition, factory);
+		Img<T> img = (Img<T>)dataset.getImgPlus();
+		CompiledEquation program = compile(img);
+		EquationAssignment<T> assigner =
+				new EquationAssignment<T>(img, origin, span, function, program,
+					condition);
+		assigner.setThreadService(threadService);
 		assigner.assign();
 		dataset.update();
 	}
@@ -170,6 +177,17 @@ public class EquationDataValues<T extends RealType<T>> extends ContextCommand {
 	
 	// -- private helpers --
 
+	/**
+	 * Compiles the equation into a flat program if it is written in the compiled
+	 * subset of the language. Returns null otherwise.
+	 */
+	private CompiledEquation compile(Img<T> img) {
+		CompiledEquation program = CompiledEquation.compile(equationString);
+		if (program == null) return null;
+		if (program.getNumVariables() > img.numDimensions()) return null;
+		return program;
+	}
+
 	private String setRegion(final ImageDisplay disp, boolean allPlanes) {
 		dataset = imgDispService.getActiveDataset(disp);
 		final Overlay overlay = overlayService.getActiveOverlay(disp);
@@ -221,8 +239,13 @@ public class EquationDataValues<T extends RealType<T>> extends ContextCommand {
 		}
 		
 		condition = null;
-		if (overlay != null)
-			condition = new UVInsideRoiCondition(overlay.getRegionOfInterest());
+		if (overlay != null) {
+			if (maskCache != null)
+				condition = new ScanlineMaskCondition(
+					maskCache.getMask(overlay, x, y, w, h));
+			else
+				condition = new UVInsideRoiCondition(overlay.getRegionOfInterest());
+		}
 		
 		return null;
 	}
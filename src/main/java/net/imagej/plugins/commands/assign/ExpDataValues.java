@@ -100,6 +100,7 @@ public class ExpDataValues<T extends RealType<T>> extends ContextCommand {
 					op, new DoubleType(), dataset, overlay,
 					view.getPlanePosition());
 		
+		transform.setLookupTableEnabled(true);
 		transform.run();
 	}
 
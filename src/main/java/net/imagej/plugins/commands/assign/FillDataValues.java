@@ -34,8 +34,11 @@ package net.imagej.plugins.commands.assign;
 import net.imagej.ChannelCollection;
 import net.imagej.Dataset;
 import net.imagej.Position;
+import net.imagej.axis.Axes;
 import net.imagej.display.OverlayService;
 import net.imagej.overlay.Overlay;
+import net.imagej.overlay.RectangleOverlay;
+import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
 
 import org.scijava.ItemIO;
@@ -46,9 +49,13 @@ import org.scijava.plugin.Attr;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 
 /**
  * Fills the selected region of an input Dataset with the foreground values.
+ * Rectangular selections are filled directly into the backing arrays of the
+ * Dataset by a {@link RegionFill}. Other selections are filled by the
+ * {@link OverlayService}.
  * 
  * @author Barry DeZonia
  */
@@ -63,6 +70,12 @@ public class FillDataValues<T extends RealType<T>> extends ContextCommand {
 	@Parameter
 	private OverlayService overlayService;
 
+	@Parameter(required = false)
+	private ScanlineMaskCache maskCache;
+
+	@Parameter(required = false)
+	private ThreadService threadService;
+
 	@Parameter(type = ItemIO.BOTH)
 	private Dataset dataset;
 
@@ -88,7 +101,9 @@ public class FillDataValues<T extends RealType<T>> extends ContextCommand {
 			cancel("This command requires a color to fill with");
 			return;
 		}
-		overlayService.fillOverlay(overlay, dataset, position, color);
+		if (!fillRectangle()) {
+			overlayService.fillOverlay(overlay, dataset, position, color);
+		}
 	}
 
 	public Dataset getDataset() {
@@ -123,4 +138,55 @@ public class FillDataValues<T extends RealType<T>> extends ContextCommand {
 		this.color = color;
 	}
 
+	// -- private helpers --
+
+	/**
+	 * Fills a rectangular selection one channel at a time with a bulk fill.
+	 * Returns false without changing anything if the selection is not a
+	 * rectangle or the Dataset cannot be filled directly.
+	 */
+	private boolean fillRectangle() {
+		if (!(overlay instanceof RectangleOverlay)) return false;
+		if (dataset.dimensionIndex(Axes.X) != 0 ||
+			dataset.dimensionIndex(Axes.Y) != 1)
+		{
+			return false;
+		}
+		final Img<?> img = dataset.getImgPlus();
+		if (!RegionFill.isSupported(img)) return false;
+		final int numDims = dataset.numDimensions();
+		if (position.numDimensions() != numDims - 2) return false;
+
+		final long x = (long) overlay.realMin(0);
+		final long y = (long) overlay.realMin(1);
+		final long w = Math.round(overlay.realMax(0) - x);
+		final long h = Math.round(overlay.realMax(1) - y);
+		final ScanlineMask mask = (maskCache != null) ?
+			maskCache.getMask(overlay, x, y, w, h) :
+			ScanlineMask.rasterizeRectangle(overlay.getRegionOfInterest(), x, y, w,
+				h);
+
+		final long[] origin = new long[numDims];
+		final long[] span = new long[numDims];
+		origin[0] = x;
+		span[0] = w;
+		origin[1] = y;
+		span[1] = h;
+		for (int d = 2; d < numDims; d++) {
+			origin[d] = position.getLongPosition(d - 2);
+			span[d] = 1;
+		}
+		final int chIndex = dataset.dimensionIndex(Axes.CHANNEL);
+		final long channels = (chIndex < 0) ? 1 : dataset.dimension(chIndex);
+		for (long c = 0; c < channels; c++) {
+			if (chIndex >= 0) origin[chIndex] = c;
+			final RegionFill fill = new RegionFill(img, origin, span);
+			fill.setScanlineMask(mask);
+			fill.setThreadService(threadService);
+			fill.fill(color.getChannelValue(c));
+		}
+		dataset.update();
+		return true;
+	}
+
 }
@@ -46,6 +46,11 @@ import net.imglib2.ops.input.InputIteratorFactory;
 import net.imglib2.ops.input.PointInputIteratorFactory;
 import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
 import net.imglib2.type.numeric.ComplexType;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
 
 /**
  * Helper class for use by many plugins that apply a {@link
@@ -53,6 +58,17 @@ import net.imglib2.type.numeric.ComplexType;
  * current selection of the active {@link Dataset} of the given {@link
  * ImageDisplay}. The given {@link ComplexUnaryOperation} is applied on a pixel
  * by pixel basis.
+ * <p>
+ * By default the region is transformed by a {@link TileAssignment} that splits
+ * it into nonoverlapping tiles processed in parallel. The tiled mode can be
+ * turned off to run the point by point {@link ImageAssignment} path instead.
+ * Both paths produce identical results. In tiled mode whole XY planes of array
+ * or planar images without a selection are processed directly on their backing
+ * primitive arrays by a {@link PrimitiveArrayTransform}. When enabled, the
+ * operation is precomputed for all values of 8 and 16 bit types and applied
+ * as a {@link UnaryLookupTable}. A selection is rasterized once into a
+ * {@link ScanlineMask} and only its inside runs are visited. Operations that
+ * set a constant are applied as a bulk {@link RegionFill}.
  * 
  * @author Barry DeZonia
  */
@@ -60,42 +76,44 @@ public class InplaceUnaryTransform<I extends ComplexType<I>, O extends ComplexTy
 
 	// -- instance variables --
 
-	private final ImageAssignment<I,O,long[]> assigner1;
-	private final ImageAssignment<I,O,long[]> assigner2;
-	private final ImageAssignment<I,O,long[]> assigner3;
+	private final Img<I> img;
+	private final ComplexUnaryOperation<O,O> operation;
+	private final O outType;
 	private final Dataset dataset;
+	private final int chIndex;
 	private long[] origin;
 	private long[] span;
 	private Condition<long[]> condition;
+	private Overlay overlay;
+	private LongRect rect;
+	private boolean tiled = true;
+	private int numThreads = ParallelTasks.defaultThreadCount();
+	private boolean lookupTableEnabled = false;
+	private UnaryLookupTable table;
+	private Double constantValue;
+	private Cancelable canceler;
+	private boolean updateEnabled = true;
 
 	// -- constructor --
 
 	/** All planes version */
+	@SuppressWarnings("unchecked")
 	public InplaceUnaryTransform(
 			final ComplexUnaryOperation<O,O> operation,
 			O outType,
 			Dataset dataset,
 			Overlay overlay)
 	{
+		this.operation = operation;
+		this.outType = outType;
 		this.dataset = dataset;
+		this.img = (Img<I>)dataset.getImgPlus();
+		this.chIndex = -1;
 		setRegion(dataset, overlay);
-		@SuppressWarnings("unchecked")
-		final Img<I> img = (Img<I>)dataset.getImgPlus();
-		final ComplexImageFunction<I,O> f1 =
-				new ComplexImageFunction<I,O>(img, outType.createVariable());
-		final GeneralUnaryFunction<long[],O,O> function = new
-				GeneralUnaryFunction<long[],O,O>(
-					f1, operation, outType.createVariable());
-		final InputIteratorFactory<long[]> factory =
-				new PointInputIteratorFactory();
-		assigner1 =
-			new ImageAssignment<I,O, long[]>(img, origin, span, function,
-					condition, factory);
-		assigner2 = null;
-		assigner3 = null;
 	}
 
 	/** Single plane versions */
+	@SuppressWarnings("unchecked")
 	public InplaceUnaryTransform(
 			final ComplexUnaryOperation<O,O> operation,
 			O outType,
@@ -103,57 +121,233 @@ public class InplaceUnaryTransform<I extends ComplexType<I>, O extends ComplexTy
 			Overlay overlay,
 			Position planePos)
 	{
+		this.operation = operation;
+		this.outType = outType;
 		this.dataset = dataset;
+		this.img = (Img<I>)dataset.getImgPlus();
+		// an RGB plane is transformed one channel at a time
+		this.chIndex =
+			dataset.isRGBMerged() ? dataset.dimensionIndex(Axes.CHANNEL) : -1;
 		setRegion(dataset, overlay, planePos);
-		@SuppressWarnings("unchecked")
-		final Img<I> img = (Img<I>)dataset.getImgPlus();
-		final ComplexImageFunction<I,O> f1 =
-				new ComplexImageFunction<I,O>(img, outType.createVariable());
-		final GeneralUnaryFunction<long[],O,O> function = new
-				GeneralUnaryFunction<long[],O,O>(
-					f1, operation, outType.createVariable());
-		final InputIteratorFactory<long[]> factory =
-				new PointInputIteratorFactory();
-		boolean rgb = dataset.isRGBMerged();
-		int chIndex = dataset.dimensionIndex(Axes.CHANNEL);
-		if (rgb) {
-			origin[chIndex] = 0;
-		}
-		assigner1 =
-			new ImageAssignment<I,O, long[]>(img, origin, span, function,
-					condition, factory);
-		if (rgb) {
-			origin[chIndex] = 1;
-			assigner2 =
-				new ImageAssignment<I,O, long[]>(img, origin, span, function,
-					condition, factory);
-			origin[chIndex] = 2;
-			assigner3 =
-				new ImageAssignment<I,O, long[]>(img, origin, span, function,
-					condition, factory);
-		}
-		else {
-			assigner2 = null;
-			assigner3 = null;
-		}
 	}
 
 	
 	// -- public interface --
 
 	public void run() {
-		if (assigner1 != null) assigner1.assign();
-		if (assigner2 != null) assigner2.assign();
-		if (assigner3 != null) assigner3.assign();
-		dataset.update();
+		for (int i = 0; i < span.length; i++)
+			if (span[i] <= 0) return;
+		table = null;
+		if (tiled && lookupTableEnabled && constantValue == null) {
+			table = createLookupTable();
+		}
+		if (chIndex < 0) {
+			transform(origin, span, -1);
+		}
+		else if (tiled) {
+			// visit each XY location once and update all three channels there
+			final long[] rgbOrigin = origin.clone();
+			final long[] rgbSpan = span.clone();
+			rgbOrigin[chIndex] = 0;
+			rgbSpan[chIndex] = 3;
+			transform(rgbOrigin, rgbSpan, chIndex);
+		}
+		else {
+			for (long c = 0; c < 3; c++) {
+				final long[] channelOrigin = origin.clone();
+				channelOrigin[chIndex] = c;
+				transform(channelOrigin, span, -1);
+			}
+		}
+		if (updateEnabled) dataset.update();
 	}
 
 	public long[] getRegionOrigin() { return origin; }
 	
 	public long[] getRegionSpan() { return span; }
 
+	/** Returns true if the region is transformed in parallel tiles. */
+	public boolean isTiled() { return tiled; }
+
+	/**
+	 * Sets whether the region is transformed in parallel tiles (the default) or
+	 * by an ImageAssignment.
+	 */
+	public void setTiled(boolean tiled) { this.tiled = tiled; }
+
+	/** Returns the number of threads used in tiled mode. */
+	public int getNumThreads() { return numThreads; }
+
+	/**
+	 * Sets the number of threads used in tiled mode. Defaults to the number of
+	 * available processors.
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException(
+				"number of threads must be at least one");
+		this.numThreads = numThreads;
+	}
+
+	/** Returns true if the operation may be evaluated by table lookup. */
+	public boolean isLookupTableEnabled() { return lookupTableEnabled; }
+
+	/**
+	 * Sets whether the operation may be evaluated once for every possible value
+	 * of an 8 or 16 bit integer dataset and then applied by table lookup. Only
+	 * enable this for operations whose result depends on nothing but the input
+	 * value (i.e. not for random noise). Defaults to false.
+	 */
+	public void setLookupTableEnabled(boolean enabled) {
+		lookupTableEnabled = enabled;
+	}
+
+	/**
+	 * Limits the region to its part inside the given XY rectangle. The selection
+	 * still decides which points of that part are transformed.
+	 */
+	public void clipXY(long x, long y, long w, long h) {
+		clip(dataset.dimensionIndex(Axes.X), x, w);
+		clip(dataset.dimensionIndex(Axes.Y), y, h);
+	}
+
+	/**
+	 * Sets an object whose cancelation stops the transform early in tiled mode.
+	 * The region is then only partly transformed.
+	 */
+	public void setCanceler(Cancelable canceler) {
+		this.canceler = canceler;
+	}
+
+	/** Returns true if {@link #run()} ends by calling Dataset.update(). */
+	public boolean isUpdateEnabled() { return updateEnabled; }
+
+	/**
+	 * Sets whether {@link #run()} ends by calling Dataset.update() (the
+	 * default). Callers running the transform off the UI thread can turn this
+	 * off and announce the change themselves.
+	 */
+	public void setUpdateEnabled(boolean enabled) {
+		updateEnabled = enabled;
+	}
+
+	public Double getConstantValue() { return constantValue; }
+
+	/**
+	 * Declares that the operation sets every point to the given value whatever
+	 * its input. In tiled mode the region is then filled directly by a
+	 * {@link RegionFill} when the image supports it. Null (the default) means
+	 * the operation is not a constant.
+	 */
+	public void setConstantValue(Double value) {
+		constantValue = value;
+	}
+
 	// -- private helpers --
 
+	/**
+	 * Tabulates the operation if the dataset's type allows it and the region has
+	 * at least as many points as the table would have entries.
+	 */
+	private UnaryLookupTable createLookupTable() {
+		final Object type = img.firstElement();
+		if (!UnaryLookupTable.isSupported(type)) return null;
+		double numPoints = (chIndex < 0) ? 1 : 3;
+		for (int i = 0; i < span.length; i++)
+			numPoints *= span[i];
+		final RealType<?> realType = (RealType<?>) type;
+		if (numPoints < realType.getMaxValue() - realType.getMinValue() + 1)
+			return null;
+		return UnaryLookupTable.create(type, operation, outType);
+	}
+
+	/**
+	 * Transforms the given region. If fusedDim is not negative all positions
+	 * along that dimension are updated together at each point of the rest of the
+	 * region (only supported in tiled mode).
+	 */
+	private void transform(long[] regionOrigin, long[] regionSpan, int fusedDim) {
+		// NB - worker threads come from the dataset's context
+		final ThreadService threadService =
+			ParallelTasks.threadService(dataset.getContext());
+		if (tiled && constantValue != null && RegionFill.isSupported(img) &&
+			(overlay == null || (dataset.dimensionIndex(Axes.X) == 0 &&
+				dataset.dimensionIndex(Axes.Y) == 1)))
+		{
+			final RegionFill fill = new RegionFill(img, regionOrigin, regionSpan);
+			fill.setNumThreads(numThreads);
+			fill.setThreadService(threadService);
+			if (overlay != null) fill.setScanlineMask(scanlineMask());
+			fill.fill(constantValue);
+		}
+		// NB - seeded operations need the row structure of the TileAssignment
+		else if (tiled && condition == null &&
+			!(operation instanceof SeededOperation) &&
+			PrimitiveArrayTransform.isSupported(img, regionOrigin, regionSpan))
+		{
+			final PrimitiveArrayTransform<O> xform =
+				new PrimitiveArrayTransform<O>(img, regionOrigin, regionSpan,
+					operation, outType);
+			xform.setNumThreads(numThreads);
+			xform.setThreadService(threadService);
+			xform.setLookupTable(table);
+			xform.setCanceler(canceler);
+			xform.run();
+		}
+		else if (tiled) {
+			final TileAssignment<I,O> assigner =
+				new TileAssignment<I,O>(img, regionOrigin, regionSpan, operation,
+					outType, condition);
+			assigner.setNumThreads(numThreads);
+			assigner.setThreadService(threadService);
+			assigner.setLookupTable(table);
+			assigner.setCanceler(canceler);
+			if (overlay != null && dataset.dimensionIndex(Axes.X) == 0 &&
+				dataset.dimensionIndex(Axes.Y) == 1)
+			{
+				// NB - the mask is in XY just like the UV of the condition
+				assigner.setScanlineMask(scanlineMask());
+			}
+			if (fusedDim >= 0) assigner.setFusedDimension(fusedDim);
+			assigner.assign();
+		}
+		else {
+			final ComplexImageFunction<I,O> f1 =
+					new ComplexImageFunction<I,O>(img, outType.createVariable());
+			final GeneralUnaryFunction<long[],O,O> function = new
+					GeneralUnaryFunction<long[],O,O>(
+						f1, operation, outType.createVariable());
+			final InputIteratorFactory<long[]> factory =
+					new PointInputIteratorFactory();
+			final ImageAssignment<I,O,long[]> assigner =
+				new ImageAssignment<I,O, long[]>(img, regionOrigin, regionSpan,
+						function, condition, factory);
+			assigner.assign();
+		}
+	}
+
+	/**
+	 * Returns the rasterized selection. It comes from the context's
+	 * {@link ScanlineMaskCache} when there is one so that it is only built once
+	 * per selection.
+	 */
+	private ScanlineMask scanlineMask() {
+		final Context context = dataset.getContext();
+		final ScanlineMaskCache cache =
+			(context == null) ? null : context.getService(ScanlineMaskCache.class);
+		if (cache != null) return cache.getMask(overlay, rect.x, rect.y, rect.w,
+			rect.h);
+		return ScanlineMask.rasterize(overlay.getRegionOfInterest(), rect.x,
+			rect.y, rect.w, rect.h);
+	}
+
+	private void clip(int d, long min, long size) {
+		final long lo = Math.max(origin[d], min);
+		final long hi = Math.min(origin[d] + span[d], min + size);
+		origin[d] = lo;
+		span[d] = Math.max(0, hi - lo);
+	}
+
 	/** All planes version */
 	private void setRegion(Dataset ds, Overlay overlay) {
 
@@ -164,7 +358,8 @@ public class InplaceUnaryTransform<I extends ComplexType<I>, O extends ComplexTy
 			throw new IllegalArgumentException(
 				"display does not have XY planes");
 		
-		LongRect rect = findXYRegion(ds, overlay, xIndex, yIndex);
+		rect = findXYRegion(ds, overlay, xIndex, yIndex);
+		this.overlay = overlay;
 		
 		// calc origin and span values
 		origin = new long[ds.numDimensions()];
@@ -199,7 +394,8 @@ public class InplaceUnaryTransform<I extends ComplexType<I>, O extends ComplexTy
 			throw new IllegalArgumentException(
 				"display does not have XY planes");
 		
-		LongRect rect = findXYRegion(ds, overlay, xIndex, yIndex);
+		rect = findXYRegion(ds, overlay, xIndex, yIndex);
+		this.overlay = overlay;
 		
 		// calc origin and span values
 		origin = new long[ds.numDimensions()];
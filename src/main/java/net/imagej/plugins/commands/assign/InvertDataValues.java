@@ -32,12 +32,14 @@
 package net.imagej.plugins.commands.assign;
 
 import net.imagej.Dataset;
+import net.imagej.autoscale.DataRange;
 import net.imagej.display.DatasetView;
 import net.imagej.display.ImageDisplay;
 import net.imagej.display.ImageDisplayService;
 import net.imagej.display.OverlayService;
 import net.imagej.options.OptionsCompatibility;
 import net.imagej.overlay.Overlay;
+import net.imagej.plugins.commands.dataset.DataRangeCache;
 import net.imglib2.Cursor;
 import net.imglib2.ops.operation.real.unary.RealInvert;
 import net.imglib2.type.numeric.RealType;
@@ -79,6 +81,9 @@ public class InvertDataValues<T extends RealType<T>> extends ContextCommand {
 	@Parameter
 	private OptionsService optionsService;
 
+	@Parameter(required = false)
+	private DataRangeCache rangeCache;
+
 	@Parameter(type = ItemIO.BOTH)
 	private ImageDisplay display;
 
@@ -147,6 +152,13 @@ public class InvertDataValues<T extends RealType<T>> extends ContextCommand {
 	 * image
 	 */
 	private void calcValueRange(Dataset dataset) {
+		if (rangeCache != null) {
+			final DataRange range = rangeCache.getRange(dataset);
+			min = range.getMin();
+			max = range.getMax();
+			return;
+		}
+
 		min = Double.MAX_VALUE;
 		max = -Double.MAX_VALUE;
 
@@ -31,32 +31,38 @@
 
 package net.imagej.plugins.commands.assign;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import net.imagej.Dataset;
 import net.imagej.Position;
 import net.imagej.axis.Axes;
 import net.imagej.display.DatasetView;
+import net.imagej.display.ImageCanvas;
 import net.imagej.display.ImageDisplay;
 import net.imagej.display.ImageDisplayService;
 import net.imagej.display.OverlayService;
 import net.imagej.overlay.Overlay;
-import net.imglib2.RandomAccess;
-import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
-import net.imglib2.ops.pointset.HyperVolumePointSet;
-import net.imglib2.ops.pointset.PointSet;
-import net.imglib2.ops.pointset.PointSetIterator;
 import net.imglib2.type.numeric.ComplexType;
-import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
 
+import org.scijava.Cancelable;
 import org.scijava.ItemIO;
 import org.scijava.command.ContextCommand;
 import org.scijava.command.Previewable;
+import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
+import org.scijava.thread.ThreadService;
+import org.scijava.util.IntCoords;
+import org.scijava.util.RealCoords;
 
 /**
  * Base class for previewable math commands.
+ * <p>
+ * Previews run in the background. A new preview request stops the one still
+ * running and undoes its changes before starting over, so fast parameter
+ * changes do not queue up stale previews. By default only the part of the
+ * plane visible in the display's viewport is previewed.
  * 
  * @author Barry DeZonia
  */
@@ -71,6 +77,12 @@ public abstract class MathCommand<I extends ComplexType<I>, O extends ComplexTyp
 	@Parameter
 	protected OverlayService overlayService;
 
+	@Parameter
+	protected ThreadService threadService;
+
+	@Parameter
+	protected LogService log;
+
 	@Parameter(type = ItemIO.BOTH)
 	protected ImageDisplay display;
 
@@ -80,16 +92,20 @@ public abstract class MathCommand<I extends ComplexType<I>, O extends ComplexTyp
 	@Parameter(label = "Apply to all planes")
 	protected boolean allPlanes;
 
+	@Parameter(label = "Preview visible area only")
+	protected boolean previewVisibleOnly = true;
+
 	// -- instance variables --
 
 	private O outType;
-	private Img<DoubleType> dataBackup;
-	private PointSetIterator iter;
-	private RandomAccess<? extends RealType<?>> dataAccess;
-	private RandomAccess<? extends RealType<?>> backupAccess;
+	private PreviewBackup backup;
 	private Dataset dataset;
 	private Overlay overlay;
 	private Position planePos;
+	private long[] dirtyOrigin;
+	private long[] dirtySpan;
+	private Future<?> previewFuture;
+	private PreviewCanceler previewCanceler;
 	
 	// -- public interface --
 
@@ -102,9 +118,11 @@ public abstract class MathCommand<I extends ComplexType<I>, O extends ComplexTyp
 		if (dataset == null) {
 			initialize();
 		}
-		else if (preview) {
+		else {
+			stopPreview();
 			restorePreviewRegion();
 		}
+		disposePreviewRegion();
 		transformFullRegion();
 	}
 
@@ -114,13 +132,18 @@ public abstract class MathCommand<I extends ComplexType<I>, O extends ComplexTyp
 			initialize();
 			savePreviewRegion();
 		}
-		else restorePreviewRegion();
+		else {
+			stopPreview();
+			restorePreviewRegion();
+		}
 		if (preview) transformPreviewRegion();
 	}
 
 	@Override
 	public void cancel() {
-		if (preview) restorePreviewRegion();
+		stopPreview();
+		restorePreviewRegion();
+		disposePreviewRegion();
 	}
 
 	public ImageDisplay getDisplay() {
@@ -131,6 +154,14 @@ public abstract class MathCommand<I extends ComplexType<I>, O extends ComplexTyp
 		this.display = display;
 	}
 
+	public boolean isPreviewVisibleOnly() {
+		return previewVisibleOnly;
+	}
+
+	public void setPreviewVisibleOnly(final boolean previewVisibleOnly) {
+		this.previewVisibleOnly = previewVisibleOnly;
+	}
+
 	public boolean getPreview() {
 		return preview;
 	}
@@ -141,6 +172,15 @@ public abstract class MathCommand<I extends ComplexType<I>, O extends ComplexTyp
 
 	public abstract ComplexUnaryOperation<O,O> getOperation();
 
+	/**
+	 * Returns the value the operation sets every point to, or null if the
+	 * operation is not a constant. Commands that set a constant override this
+	 * so their region can be bulk filled.
+	 */
+	public Double getConstantValue() {
+		return null;
+	}
+
 	// -- private helpers --
 
 	private void initialize() {
@@ -151,89 +191,173 @@ public abstract class MathCommand<I extends ComplexType<I>, O extends ComplexTyp
 
 		InplaceUnaryTransform<?,?> xform =
 				getPreviewTransform(dataset, overlay);
-		PointSet region =
-			determineRegion(dataset, xform.getRegionOrigin(), xform.getRegionSpan());
-		iter = region.iterator();
-		ArrayImgFactory<DoubleType> factory = new ArrayImgFactory<DoubleType>();
-		dataBackup = factory.create(new long[] { region.size() }, new DoubleType());
-		backupAccess = dataBackup.randomAccess();
-		dataAccess = dataset.getImgPlus().randomAccess();
-
-		// check dimensions of Dataset
-		final long w = xform.getRegionSpan()[0];
-		final long h = xform.getRegionSpan()[1];
-		if (w * h > Integer.MAX_VALUE)
-			throw new IllegalArgumentException(
-				"preview region too large to copy into memory");
+		backup = determineBackup(dataset, xform.getRegionOrigin(),
+			xform.getRegionSpan());
 	}
 
 	private InplaceUnaryTransform<I,O> getPreviewTransform(
 				Dataset ds, Overlay ov)
 	{
-		return new InplaceUnaryTransform<I,O>(
+		InplaceUnaryTransform<I,O> xform = new InplaceUnaryTransform<I,O>(
 					getOperation(), outType, ds, ov, planePos);
+		xform.setLookupTableEnabled(true);
+		xform.setConstantValue(getConstantValue());
+		return xform;
 	}
 	
 	private InplaceUnaryTransform<I,O> getFinalTransform(
 			Dataset ds, Overlay ov)
 	{
-		if (allPlanes)
-			return new InplaceUnaryTransform<I,O>(
+		if (allPlanes) {
+			InplaceUnaryTransform<I,O> xform = new InplaceUnaryTransform<I,O>(
 					getOperation(), outType, ds, ov);
+			xform.setLookupTableEnabled(true);
+			xform.setConstantValue(getConstantValue());
+			return xform;
+		}
 		return getPreviewTransform(ds, ov);
 	}
 
-	private PointSet determineRegion(Dataset ds, long[] planeOrigin,
+	private PreviewBackup determineBackup(Dataset ds, long[] planeOrigin,
 		long[] planeSpan)
 	{
-		// copy data to a double[]
 		final long[] origin = planeOrigin.clone();
-		final long[] offsets = planeSpan.clone();
+		final long[] span = planeSpan.clone();
+		includeChannels(ds, origin, span);
+		return new PreviewBackup(ds.getImgPlus(), origin, span);
+	}
+
+	/** Widens a region to all three channels of a merged color dataset. */
+	private void includeChannels(Dataset ds, long[] origin, long[] span) {
 		if (ds.isRGBMerged()) {
 			int chIndex = ds.dimensionIndex(Axes.CHANNEL);
 			origin[chIndex] = 0;
-			offsets[chIndex] = 3;
+			span[chIndex] = 3;
 		}
-		for (int i = 0; i < offsets.length; i++)
-			offsets[i]--;
-		return new HyperVolumePointSet(origin, new long[origin.length], offsets);
+	}
+
+	/**
+	 * Returns the XY data rectangle {x, y, w, h} visible in the display's
+	 * canvas, or null if it cannot be determined.
+	 */
+	private long[] visibleRect() {
+		final ImageCanvas canvas = display.getCanvas();
+		if (canvas == null) return null;
+		final int w = canvas.getViewportWidth();
+		final int h = canvas.getViewportHeight();
+		if (w <= 0 || h <= 0) return null;
+		final RealCoords topLeft = canvas.panelToDataCoords(new IntCoords(0, 0));
+		final RealCoords bottomRight =
+			canvas.panelToDataCoords(new IntCoords(w, h));
+		final long x0 = (long) Math.floor(topLeft.x);
+		final long y0 = (long) Math.floor(topLeft.y);
+		final long x1 = (long) Math.ceil(bottomRight.x);
+		final long y1 = (long) Math.ceil(bottomRight.y);
+		return new long[] { x0, y0, x1 - x0 + 1, y1 - y0 + 1 };
 	}
 	
 	// NB
-	// We are backing up preview region to doubles. This can cause precision
-	// loss for long backed datasets with large values. But using dataset's
-	// getPlane()/setPlane() code takes more ram/time than needed. And it has
-	// various container limitations.
+	// The preview region is backed up in the dataset's own type. Large regions
+	// are spilled to a temporary file rather than held in memory.
 
 	private void savePreviewRegion() {
-		iter.reset();
-		long pos = 0;
-		while (iter.hasNext()) {
-			dataAccess.setPosition(iter.next());
-			double value = dataAccess.get().getRealDouble();
-			backupAccess.setPosition(pos++, 0);
-			backupAccess.get().setReal(value);
-		}
+		backup.save();
 	}
 
+	/** Undoes the changes of the last preview, if any. */
 	private void restorePreviewRegion() {
-		iter.reset();
-		long pos = 0;
-		while (iter.hasNext()) {
-			backupAccess.setPosition(pos++, 0);
-			double value = backupAccess.get().getRealDouble();
-			dataAccess.setPosition(iter.next());
-			dataAccess.get().setReal(value);
-		}
-		dataset.update();
+		if (backup == null || dirtyOrigin == null) return;
+		backup.restore(dirtyOrigin, dirtySpan);
+		dirtyOrigin = null;
+		dirtySpan = null;
+		queueUpdate();
+	}
+
+	/**
+	 * Announces a change of the dataset on the UI thread. Previews change the
+	 * dataset from other threads, and displays must not be refreshed from them.
+	 */
+	private void queueUpdate() {
+		final Dataset ds = dataset;
+		threadService.queue(new Runnable() {
+
+			@Override
+			public void run() {
+				ds.update();
+			}
+		});
+	}
+
+	private void disposePreviewRegion() {
+		if (backup != null) backup.dispose();
 	}
 
 	private void transformFullRegion() {
 		getFinalTransform(dataset,overlay).run();
 	}
 
+	/** Starts transforming the preview region in the background. */
 	private void transformPreviewRegion() {
-		getPreviewTransform(dataset,overlay).run();
+		final InplaceUnaryTransform<I,O> xform =
+			getPreviewTransform(dataset, overlay);
+		if (previewVisibleOnly) {
+			final long[] rect = visibleRect();
+			if (rect != null) xform.clipXY(rect[0], rect[1], rect[2], rect[3]);
+		}
+		dirtyOrigin = xform.getRegionOrigin().clone();
+		dirtySpan = xform.getRegionSpan().clone();
+		includeChannels(dataset, dirtyOrigin, dirtySpan);
+		final PreviewCanceler canceler = new PreviewCanceler();
+		xform.setCanceler(canceler);
+		xform.setUpdateEnabled(false);
+		previewCanceler = canceler;
+		previewFuture = threadService.run(new Runnable() {
+
+			@Override
+			public void run() {
+				xform.run();
+				// a superseded preview is restored, which queues its own update
+				if (!canceler.isCanceled()) queueUpdate();
+			}
+		});
+	}
+
+	/** Stops the running preview, if any, and waits for it to finish. */
+	private void stopPreview() {
+		if (previewFuture == null) return;
+		previewCanceler.cancel("superseded");
+		try {
+			previewFuture.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (final ExecutionException e) {
+			log.warn("Math preview failed", e.getCause());
+		}
+		previewFuture = null;
+		previewCanceler = null;
+	}
+
+	/** Tells a background preview that it has been superseded. */
+	private static class PreviewCanceler implements Cancelable {
+
+		private volatile String reason;
+
+		@Override
+		public boolean isCanceled() {
+			return reason != null;
+		}
+
+		@Override
+		public void cancel(final String why) {
+			reason = why;
+		}
+
+		@Override
+		public String getCancelReason() {
+			return reason;
+		}
 	}
 
 }
@@ -0,0 +1,313 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imagej.Dataset;
+import net.imagej.options.OptionsMisc;
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.ops.operation.real.unary.RealAbs;
+import net.imglib2.ops.operation.real.unary.RealAddConstant;
+import net.imglib2.ops.operation.real.unary.RealAndConstant;
+import net.imglib2.ops.operation.real.unary.RealConstant;
+import net.imglib2.ops.operation.real.unary.RealDivideConstant;
+import net.imglib2.ops.operation.real.unary.RealExp;
+import net.imglib2.ops.operation.real.unary.RealGammaConstant;
+import net.imglib2.ops.operation.real.unary.RealLog;
+import net.imglib2.ops.operation.real.unary.RealMaxConstant;
+import net.imglib2.ops.operation.real.unary.RealMinConstant;
+import net.imglib2.ops.operation.real.unary.RealMultiplyConstant;
+import net.imglib2.ops.operation.real.unary.RealOrConstant;
+import net.imglib2.ops.operation.real.unary.RealPowerConstant;
+import net.imglib2.ops.operation.real.unary.RealReciprocal;
+import net.imglib2.ops.operation.real.unary.RealSqr;
+import net.imglib2.ops.operation.real.unary.RealSqrt;
+import net.imglib2.ops.operation.real.unary.RealSubtractConstant;
+import net.imglib2.ops.operation.real.unary.RealXorConstant;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.scijava.ItemVisibility;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.menu.MenuConstants;
+import org.scijava.options.OptionsService;
+import org.scijava.plugin.Attr;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+/**
+ * Applies an ordered list of math operations to an input Dataset in a single
+ * pass. The operations are composed into one function so that each pixel is
+ * read and written once, and the Dataset is updated once at the end. This is
+ * much faster than running the individual Math commands one after the other.
+ * By default each intermediate result is rounded to the Dataset's type so the
+ * output is the same as that of the individual commands.
+ */
+@Plugin(type = Command.class, menu = {
+	@Menu(label = MenuConstants.PROCESS_LABEL,
+		weight = MenuConstants.PROCESS_WEIGHT,
+		mnemonic = MenuConstants.PROCESS_MNEMONIC),
+	@Menu(label = "Math", mnemonic = 'm'),
+	@Menu(label = "Math Pipeline...", weight = 21) }, headless = true, attrs = { @Attr(name = "no-legacy") })
+public class MathPipeline<T extends RealType<T>> extends
+	MathCommand<T, DoubleType>
+{
+
+	// -- instance variables that are Parameters --
+
+	@Parameter
+	private OptionsService optionsService;
+
+	@Parameter(required = false)
+	private StatusService statusService;
+
+	@Parameter(visibility = ItemVisibility.MESSAGE)
+	private final String examples = "<html><b>Format examples:</b>" + "<ul>"
+		+ "<li>subtract 25; multiply 1.5</li>"
+		+ "<li>subtract 10; multiply 2; gamma 0.8; max 200</li>"
+		+ "<li>add 1; log; sqrt</li>" + "</ul>"
+		+ "Operations: add, subtract, multiply, divide, and, or, xor, min, max,"
+		+ " gamma, power, set, log, exp, square, sqrt, abs, reciprocal";
+
+	@Parameter(label = "Operations")
+	private String operations = "";
+
+	@Parameter(label = "Round intermediate results to image type")
+	private boolean roundStages = true;
+
+	// -- public interface --
+
+	public MathPipeline() {
+		super(new DoubleType());
+	}
+
+	@Override
+	public void run() {
+		final String error = parseError();
+		if (error != null) {
+			// undo any preview and release its backup before giving up
+			cancel();
+			cancel(error);
+			return;
+		}
+		super.run();
+	}
+
+	/**
+	 * Previews the pipeline. While the pipeline cannot be parsed (such as while
+	 * it is being typed) the error is shown in the status bar and the data is
+	 * left as it was before previewing.
+	 */
+	@Override
+	public void preview() {
+		final String error = parseError();
+		if (error == null) {
+			super.preview();
+			return;
+		}
+		if (statusService != null) statusService.showStatus(error);
+		final boolean wanted = preview;
+		preview = false;
+		try {
+			// NB - undoes the last preview without starting a new one
+			super.preview();
+		}
+		finally {
+			preview = wanted;
+		}
+	}
+
+	/**
+	 * Returns the composed operation.
+	 * 
+	 * @throws IllegalArgumentException if the operations cannot be parsed
+	 */
+	@Override
+	public ComposedUnaryOperation<DoubleType> getOperation() {
+		final List<ComplexUnaryOperation<DoubleType, DoubleType>> ops =
+			parse(operations, divideByZeroValue());
+		final Dataset dataset = displayService.getActiveDataset(display);
+		final RealType<?> stage =
+			roundStages ? dataset.getType().createVariable() : null;
+		return new ComposedUnaryOperation<DoubleType>(ops, new DoubleType(),
+			stage);
+	}
+
+	public String getOperations() {
+		return operations;
+	}
+
+	public void setOperations(final String operations) {
+		this.operations = operations;
+	}
+
+	public boolean isRoundStages() {
+		return roundStages;
+	}
+
+	public void setRoundStages(final boolean roundStages) {
+		this.roundStages = roundStages;
+	}
+
+	/**
+	 * Parses a pipeline specification: operations separated by semicolons or
+	 * line breaks, each an operation name optionally followed by a value.
+	 * 
+	 * @throws IllegalArgumentException if the specification is malformed
+	 */
+	public static List<ComplexUnaryOperation<DoubleType, DoubleType>> parse(
+		final String spec, final double dbzVal)
+	{
+		final List<ComplexUnaryOperation<DoubleType, DoubleType>> ops =
+			new ArrayList<ComplexUnaryOperation<DoubleType, DoubleType>>();
+		if (spec == null) return ops;
+		for (final String stage : spec.split("[;\\n]")) {
+			final String text = stage.trim();
+			if (text.length() == 0) continue;
+			final String[] terms = text.split("\\s+");
+			if (terms.length > 2) throw new IllegalArgumentException(
+				"Too many terms in pipeline stage: " + text);
+			final String name = terms[0].toLowerCase();
+			final String arg = (terms.length > 1) ? terms[1] : null;
+			ops.add(operation(name, arg, dbzVal));
+		}
+		return ops;
+	}
+
+	// -- private helpers --
+
+	/** Returns the message of the error in the operations, or null if none. */
+	private String parseError() {
+		try {
+			parse(operations, divideByZeroValue());
+			return null;
+		}
+		catch (final IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	private double divideByZeroValue() {
+		final OptionsMisc optionsMisc =
+			optionsService.getOptions(OptionsMisc.class);
+		final String dbzString = optionsMisc.getDivByZeroVal();
+		try {
+			return Double.parseDouble(dbzString);
+		}
+		catch (final NumberFormatException e) {
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	private static ComplexUnaryOperation<DoubleType, DoubleType> operation(
+		final String name, final String arg, final double dbzVal)
+	{
+		// operations without a value
+		if (name.equals("log")) return noValue(name, arg,
+			new RealLog<DoubleType, DoubleType>());
+		if (name.equals("exp")) return noValue(name, arg,
+			new RealExp<DoubleType, DoubleType>());
+		if (name.equals("square")) return noValue(name, arg,
+			new RealSqr<DoubleType, DoubleType>());
+		if (name.equals("sqrt")) return noValue(name, arg,
+			new RealSqrt<DoubleType, DoubleType>());
+		if (name.equals("abs")) return noValue(name, arg,
+			new RealAbs<DoubleType, DoubleType>());
+		if (name.equals("reciprocal")) return noValue(name, arg,
+			new RealReciprocal<DoubleType, DoubleType>(dbzVal));
+
+		// operations with a value
+		if (name.equals("add")) return new RealAddConstant<DoubleType, DoubleType>(
+			real(name, arg));
+		if (name.equals("subtract"))
+			return new RealSubtractConstant<DoubleType, DoubleType>(real(name, arg));
+		if (name.equals("multiply"))
+			return new RealMultiplyConstant<DoubleType, DoubleType>(real(name, arg));
+		if (name.equals("divide"))
+			return new RealDivideConstant<DoubleType, DoubleType>(real(name, arg),
+				dbzVal);
+		if (name.equals("min")) return new RealMinConstant<DoubleType, DoubleType>(
+			real(name, arg));
+		if (name.equals("max")) return new RealMaxConstant<DoubleType, DoubleType>(
+			real(name, arg));
+		if (name.equals("gamma"))
+			return new RealGammaConstant<DoubleType, DoubleType>(real(name, arg));
+		if (name.equals("power"))
+			return new RealPowerConstant<DoubleType, DoubleType>(real(name, arg));
+		if (name.equals("set")) return new RealConstant<DoubleType, DoubleType>(
+			real(name, arg));
+		if (name.equals("and")) return new RealAndConstant<DoubleType, DoubleType>(
+			integer(name, arg));
+		if (name.equals("or")) return new RealOrConstant<DoubleType, DoubleType>(
+			integer(name, arg));
+		if (name.equals("xor")) return new RealXorConstant<DoubleType, DoubleType>(
+			integer(name, arg));
+		throw new IllegalArgumentException("Unknown pipeline operation: " + name);
+	}
+
+	private static ComplexUnaryOperation<DoubleType, DoubleType> noValue(
+		final String name, final String arg,
+		final ComplexUnaryOperation<DoubleType, DoubleType> op)
+	{
+		if (arg != null) throw new IllegalArgumentException("Operation " + name +
+			" does not take a value");
+		return op;
+	}
+
+	private static double real(final String name, final String arg) {
+		if (arg == null) throw new IllegalArgumentException("Operation " + name +
+			" requires a value");
+		try {
+			return Double.parseDouble(arg);
+		}
+		catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Operation " + name +
+				" has an invalid value: " + arg);
+		}
+	}
+
+	private static long integer(final String name, final String arg) {
+		if (arg == null) throw new IllegalArgumentException("Operation " + name +
+			" requires a value");
+		try {
+			return Long.parseLong(arg);
+		}
+		catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Operation " + name +
+				" has an invalid integer value: " + arg);
+		}
+	}
+}
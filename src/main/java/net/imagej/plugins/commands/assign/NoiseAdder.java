@@ -31,10 +31,11 @@
 
 package net.imagej.plugins.commands.assign;
 
+import java.util.Random;
+
 import net.imagej.Dataset;
 import net.imagej.Position;
 import net.imagej.overlay.Overlay;
-import net.imglib2.ops.operation.real.unary.RealAddNoise;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 
@@ -44,6 +45,9 @@ import net.imglib2.type.numeric.real.DoubleType;
  * AddSpecificNoiseToDataValues. They each manipulate setStdDev(). This class
  * can be used to implement simple (1 pixel neighborhood) gaussian noise
  * addition without requiring a plugin.
+ * <p>
+ * Noise is drawn from random streams derived from a seed. Given the same seed
+ * the same noise is produced, whatever the number of threads used.
  * 
  * @author Barry DeZonia
  */
@@ -68,6 +72,9 @@ public class NoiseAdder<T extends RealType<T>> {
 	 */
 	private double rangeMin, rangeMax;
 
+	/** The seed of the noise. A random seed is used when null. */
+	private Long seed;
+
 	// -- constructor --
 
 	/**
@@ -90,14 +97,29 @@ public class NoiseAdder<T extends RealType<T>> {
 		this.rangeStdDev = stdDev;
 	}
 
+	/**
+	 * Specify the seed of the noise. Runs with the same seed produce the same
+	 * noise. A null seed means a new random seed is chosen on each run.
+	 */
+	public void setSeed(final Long seed) {
+		this.seed = seed;
+	}
+
+	public Long getSeed() {
+		return seed;
+	}
+
 	/**
 	 * Runs the operation and returns the Dataset that contains the output data
 	 */
 	public void run() {
 		calcTypeMinAndMax();
 
-		final RealAddNoise<DoubleType, DoubleType> op =
-			new RealAddNoise<DoubleType,DoubleType>(rangeMin, rangeMax, rangeStdDev);
+		final long noiseSeed = (seed == null) ? new Random().nextLong() : seed;
+
+		final SeededAddNoise<DoubleType> op =
+			new SeededAddNoise<DoubleType>(rangeMin, rangeMax, rangeStdDev,
+				noiseSeed);
 
 		final InplaceUnaryTransform<T,DoubleType> transform;
 		
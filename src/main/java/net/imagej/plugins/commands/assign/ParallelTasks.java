@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Runs a list of independent tasks on a limited number of worker threads. This
+ * is the threading helper shared by the tiled engines of the various commands.
+ * The tasks must not depend on each other: they may run in any order.
+ * <p>
+ * Worker threads come from the caller's {@link ThreadService}, so they are
+ * pooled with the rest of the application's threads and go away when its
+ * context is disposed. The calling thread works on the tasks too.
+ */
+public final class ParallelTasks {
+
+	private ParallelTasks() {
+		// NB: prevent instantiation of utility class
+	}
+
+	// -- public interface --
+
+	/** Returns the number of threads to use when none has been specified. */
+	public static int defaultThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Returns the thread service of a context, or null if there is no context or
+	 * it has no thread service.
+	 */
+	public static ThreadService threadService(final Context context) {
+		return (context == null) ? null : context.getService(ThreadService.class);
+	}
+
+	/**
+	 * Runs the given tasks using at most numThreads threads and waits for them
+	 * all to complete. Extra threads are taken from the given thread service.
+	 * When there is no thread service or numThreads is one or less the tasks are
+	 * run in order on the calling thread. Any exception thrown by a task is
+	 * rethrown here, and tasks not yet started are then skipped.
+	 */
+	public static void run(final ThreadService threadService,
+		final List<? extends Callable<?>> tasks, final int numThreads)
+	{
+		final int workers =
+			(threadService == null) ? 1 : Math.min(numThreads, tasks.size());
+		final Worker worker = new Worker(tasks);
+		if (workers <= 1) {
+			worker.call();
+			worker.rethrow();
+			return;
+		}
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 1; i < workers; i++) {
+			futures.add(threadService.run(worker));
+		}
+		worker.call();
+		try {
+			for (final Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (final InterruptedException e) {
+			worker.stop();
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for tasks", e);
+		}
+		catch (final ExecutionException e) {
+			// NB - workers catch everything their tasks throw
+			throw new IllegalStateException(e.getCause());
+		}
+		worker.rethrow();
+	}
+
+	/**
+	 * Splits the range [0,count) into at most numParts contiguous and
+	 * nonoverlapping ranges of nearly equal size. Returns the boundaries of the
+	 * ranges: range i is [bounds[i],bounds[i+1]).
+	 */
+	public static long[] split(final long count, final int numParts) {
+		final int parts = (int) Math.max(1, Math.min(count, numParts));
+		final long[] bounds = new long[parts + 1];
+		for (int i = 0; i <= parts; i++) {
+			bounds[i] = count * i / parts;
+		}
+		return bounds;
+	}
+
+	// -- private helpers --
+
+	/**
+	 * Takes tasks from a shared list until none are left. Several threads run
+	 * the same worker. The first failure is kept and stops the other threads
+	 * from starting more tasks.
+	 */
+	private static class Worker implements Callable<Void> {
+
+		private final List<? extends Callable<?>> tasks;
+		private final AtomicInteger next = new AtomicInteger();
+		private volatile Throwable failure;
+
+		public Worker(final List<? extends Callable<?>> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		public Void call() {
+			while (failure == null) {
+				final int i = next.getAndIncrement();
+				if (i >= tasks.size()) break;
+				try {
+					tasks.get(i).call();
+				}
+				catch (final Throwable t) {
+					synchronized (this) {
+						if (failure == null) failure = t;
+					}
+				}
+			}
+			return null;
+		}
+
+		public void stop() {
+			next.set(tasks.size());
+		}
+
+		public void rethrow() {
+			final Throwable t = failure;
+			if (t == null) return;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new IllegalStateException(t);
+		}
+	}
+}
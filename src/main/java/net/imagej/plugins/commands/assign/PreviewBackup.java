@@ -0,0 +1,544 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A snapshot of a rectangular region of an image that can be written back
+ * later. Values are kept in the image's native storage type (8 bit data takes
+ * one byte per value), falling back to doubles for types without a primitive
+ * counterpart. The snapshot is kept in memory while it fits the memory budget
+ * and is spilled to a memory mapped temporary file otherwise, so regions of
+ * any size can be saved.
+ * <p>
+ * Rows along dimension 0 of array and planar images are copied in bulk between
+ * the backing arrays and the snapshot. Other images are copied point by point.
+ * Call {@link #dispose()} once the snapshot is no longer needed.
+ */
+public class PreviewBackup {
+
+	// -- constants --
+
+	/** Largest size of one buffer of the snapshot. */
+	private static final long SEGMENT_BYTES = 1L << 30;
+
+	// -- instance variables --
+
+	private final Img<? extends RealType<?>> img;
+	private final Img<?> storage;
+	private final long[] origin;
+	private final long[] span;
+	private final Kind kind;
+	private final boolean unsigned;
+	private final long rowCount;
+	private final long rowBytes;
+	private final long rowsPerSegment;
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+	private Buffer[] segments;
+	private File file;
+	private RandomAccessFile raf;
+
+	// -- constructor --
+
+	public PreviewBackup(final Img<? extends RealType<?>> img,
+		final long[] origin, final long[] span)
+	{
+		this.img = img;
+		this.storage = storageImg(img);
+		this.origin = origin.clone();
+		this.span = span.clone();
+		final Class<?> c = img.firstElement().getClass();
+		this.unsigned =
+			c == UnsignedByteType.class || c == UnsignedShortType.class ||
+				c == UnsignedIntType.class;
+		this.kind = kindOf(c);
+		long rows = 1;
+		for (int d = 1; d < span.length; d++)
+			rows *= span[d];
+		this.rowCount = rows;
+		this.rowBytes = span[0] * kind.bytes;
+		if (rowBytes > SEGMENT_BYTES) throw new IllegalArgumentException(
+			"preview region rows are too long to back up");
+		this.rowsPerSegment = Math.max(1, SEGMENT_BYTES / Math.max(1, rowBytes));
+	}
+
+	// -- public interface --
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the number of bytes the snapshot may take in memory. Larger snapshots
+	 * are spilled to a temporary file. Takes effect at the next {@link #save()}.
+	 */
+	public void setMemoryBudget(final long bytes) {
+		if (bytes < 0) throw new IllegalArgumentException(
+			"memory budget must not be negative");
+		this.memoryBudget = bytes;
+	}
+
+	/** Returns the number of bytes the snapshot takes. */
+	public long getSize() {
+		return rowCount * rowBytes;
+	}
+
+	/** Returns true if the snapshot has been spilled to a temporary file. */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/** Returns the temporary file of a spilled snapshot, or null. */
+	public File getFile() {
+		return file;
+	}
+
+	/** Copies the current values of the region into the snapshot. */
+	public void save() {
+		allocate();
+		copy(true, origin, span);
+	}
+
+	/** Writes the values of the snapshot back into the region. */
+	public void restore() {
+		restore(origin, span);
+	}
+
+	/**
+	 * Writes the values of the snapshot back into the part of the region inside
+	 * the given box.
+	 */
+	public void restore(final long[] boxOrigin, final long[] boxSpan) {
+		if (segments == null) throw new IllegalStateException(
+			"preview region has not been saved");
+		final long[] o = new long[span.length];
+		final long[] s = new long[span.length];
+		for (int d = 0; d < span.length; d++) {
+			o[d] = Math.max(origin[d], boxOrigin[d]);
+			s[d] = Math.min(origin[d] + span[d], boxOrigin[d] + boxSpan[d]) - o[d];
+			if (s[d] <= 0) return;
+		}
+		copy(false, o, s);
+	}
+
+	/**
+	 * Releases the snapshot and deletes its temporary file, if any. A mapped
+	 * file is unmapped once its buffers are garbage collected; where the file
+	 * cannot be deleted before then it is deleted on exit.
+	 */
+	public void dispose() {
+		segments = null;
+		if (raf != null) {
+			try {
+				raf.close();
+			}
+			catch (final IOException e) {
+				// nothing more can be done about it
+			}
+			raf = null;
+		}
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+
+	// -- private helpers --
+
+	private static Img<?> storageImg(final Img<?> img) {
+		Img<?> s = img;
+		while (s instanceof ImgPlus) {
+			s = ((ImgPlus<?>) s).getImg();
+		}
+		return s;
+	}
+
+	private static Kind kindOf(final Class<?> c) {
+		if (c == UnsignedByteType.class || c == ByteType.class) return Kind.BYTE;
+		if (c == UnsignedShortType.class || c == ShortType.class) {
+			return Kind.SHORT;
+		}
+		if (c == UnsignedIntType.class || c == IntType.class) return Kind.INT;
+		if (c == LongType.class || c == UnsignedLongType.class) return Kind.LONG;
+		if (c == FloatType.class) return Kind.FLOAT;
+		if (c == DoubleType.class) return Kind.DOUBLE;
+		return Kind.REAL;
+	}
+
+	/** Creates the snapshot buffers, in memory or in a temporary file. */
+	private void allocate() {
+		if (segments != null) return;
+		final long size = getSize();
+		final int count =
+			(int) Math.max(1, (rowCount + rowsPerSegment - 1) / rowsPerSegment);
+		final Buffer[] buffers = new Buffer[count];
+		try {
+			FileChannel channel = null;
+			if (size > memoryBudget) {
+				file = File.createTempFile("imagej-preview", ".tmp");
+				file.deleteOnExit();
+				raf = new RandomAccessFile(file, "rw");
+				raf.setLength(size);
+				channel = raf.getChannel();
+			}
+			for (int s = 0; s < count; s++) {
+				final long first = s * rowsPerSegment;
+				final long rows = Math.min(rowsPerSegment, rowCount - first);
+				final int bytes = (int) (rows * rowBytes);
+				final ByteBuffer bytesBuffer = (channel == null) ? ByteBuffer
+					.allocate(bytes) : channel.map(FileChannel.MapMode.READ_WRITE,
+						first * rowBytes, bytes);
+				buffers[s] = kind.view(bytesBuffer.order(ByteOrder.nativeOrder()));
+			}
+		}
+		catch (final IOException e) {
+			dispose();
+			throw new IllegalStateException(
+				"cannot create temporary file for preview backup", e);
+		}
+		segments = buffers;
+	}
+
+	/**
+	 * Copies the rows of a box within the region to (save) or from the
+	 * snapshot.
+	 */
+	private void copy(final boolean save, final long[] boxOrigin,
+		final long[] boxSpan)
+	{
+		final boolean bulk = kind.bulk &&
+			(storage instanceof ArrayImg || storage instanceof PlanarImg);
+		final RandomAccess<? extends RealType<?>> access =
+			bulk ? null : img.randomAccess();
+		long boxRows = 1;
+		for (int d = 1; d < boxSpan.length; d++)
+			boxRows *= boxSpan[d];
+		final int length = (int) boxSpan[0];
+		final long[] pos = new long[span.length];
+		for (long boxRow = 0; boxRow < boxRows; boxRow++) {
+			long rem = boxRow;
+			long row = 0;
+			long stride = 1;
+			for (int d = 1; d < span.length; d++) {
+				pos[d] = boxOrigin[d] + rem % boxSpan[d];
+				rem /= boxSpan[d];
+				row += (pos[d] - origin[d]) * stride;
+				stride *= span[d];
+			}
+			pos[0] = boxOrigin[0];
+			final Buffer buffer = segments[(int) (row / rowsPerSegment)];
+			final int index = (int) ((row % rowsPerSegment) * span[0] +
+				boxOrigin[0] - origin[0]);
+			buffer.position(index);
+			if (bulk) copyRow(save, pos, length, buffer);
+			else copyPoints(save, pos, length, access, buffer);
+		}
+	}
+
+	/** Copies one row between a backing array and the snapshot. */
+	private void copyRow(final boolean save, final long[] pos,
+		final int length, final Buffer buffer)
+	{
+		final Object access;
+		long offset = 0;
+		if (storage instanceof PlanarImg) {
+			long plane = 0;
+			long stride = 1;
+			for (int d = 2; d < pos.length; d++) {
+				plane += pos[d] * stride;
+				stride *= storage.dimension(d);
+			}
+			access = ((PlanarImg<?, ?>) storage).getPlane((int) plane);
+			offset = (pos.length < 2) ? pos[0] : pos[1] * storage.dimension(0) +
+				pos[0];
+		}
+		else {
+			access = ((ArrayImg<?, ?>) storage).update(null);
+			long stride = 1;
+			for (int d = 0; d < pos.length; d++) {
+				offset += pos[d] * stride;
+				stride *= storage.dimension(d);
+			}
+		}
+		final Object array = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+		copyRun(save, array, (int) offset, length, buffer);
+	}
+
+	/**
+	 * Copies a run of a backing array to (save) or from the buffer. The buffer
+	 * has the element type of the array.
+	 */
+	private static void copyRun(final boolean save, final Object array,
+		final int offset, final int length, final Buffer buffer)
+	{
+		if (array instanceof byte[]) {
+			final byte[] a = (byte[]) array;
+			if (save) ((ByteBuffer) buffer).put(a, offset, length);
+			else ((ByteBuffer) buffer).get(a, offset, length);
+		}
+		else if (array instanceof short[]) {
+			final short[] a = (short[]) array;
+			if (save) ((ShortBuffer) buffer).put(a, offset, length);
+			else ((ShortBuffer) buffer).get(a, offset, length);
+		}
+		else if (array instanceof int[]) {
+			final int[] a = (int[]) array;
+			if (save) ((IntBuffer) buffer).put(a, offset, length);
+			else ((IntBuffer) buffer).get(a, offset, length);
+		}
+		else if (array instanceof long[]) {
+			final long[] a = (long[]) array;
+			if (save) ((LongBuffer) buffer).put(a, offset, length);
+			else ((LongBuffer) buffer).get(a, offset, length);
+		}
+		else if (array instanceof float[]) {
+			final float[] a = (float[]) array;
+			if (save) ((FloatBuffer) buffer).put(a, offset, length);
+			else ((FloatBuffer) buffer).get(a, offset, length);
+		}
+		else {
+			final double[] a = (double[]) array;
+			if (save) ((DoubleBuffer) buffer).put(a, offset, length);
+			else ((DoubleBuffer) buffer).get(a, offset, length);
+		}
+	}
+
+	/** Copies one row point by point through a random access. */
+	private void copyPoints(final boolean save, final long[] pos,
+		final int length, final RandomAccess<? extends RealType<?>> access,
+		final Buffer buffer)
+	{
+		access.setPosition(pos);
+		for (int i = 0; i < length; i++) {
+			final RealType<?> value = access.get();
+			if (save) kind.put(value, buffer);
+			else kind.get(value, buffer, unsigned);
+			access.fwd(0);
+		}
+	}
+
+	/** How values are stored in the snapshot. */
+	private enum Kind {
+
+		BYTE(1, true) {
+
+			@Override
+			Buffer view(final ByteBuffer b) {
+				return b;
+			}
+
+			@Override
+			void put(final RealType<?> value, final Buffer buffer) {
+				((ByteBuffer) buffer).put((byte) (long) value.getRealDouble());
+			}
+
+			@Override
+			void get(final RealType<?> value, final Buffer buffer,
+				final boolean unsigned)
+			{
+				final byte b = ((ByteBuffer) buffer).get();
+				value.setReal(unsigned ? b & 0xff : b);
+			}
+		},
+
+		SHORT(2, true) {
+
+			@Override
+			Buffer view(final ByteBuffer b) {
+				return b.asShortBuffer();
+			}
+
+			@Override
+			void put(final RealType<?> value, final Buffer buffer) {
+				((ShortBuffer) buffer).put((short) (long) value.getRealDouble());
+			}
+
+			@Override
+			void get(final RealType<?> value, final Buffer buffer,
+				final boolean unsigned)
+			{
+				final short s = ((ShortBuffer) buffer).get();
+				value.setReal(unsigned ? s & 0xffff : s);
+			}
+		},
+
+		INT(4, true) {
+
+			@Override
+			Buffer view(final ByteBuffer b) {
+				return b.asIntBuffer();
+			}
+
+			@Override
+			void put(final RealType<?> value, final Buffer buffer) {
+				((IntBuffer) buffer).put((int) (long) value.getRealDouble());
+			}
+
+			@Override
+			void get(final RealType<?> value, final Buffer buffer,
+				final boolean unsigned)
+			{
+				final int i = ((IntBuffer) buffer).get();
+				value.setReal(unsigned ? i & 0xffffffffL : i);
+			}
+		},
+
+		LONG(8, true) {
+
+			@Override
+			Buffer view(final ByteBuffer b) {
+				return b.asLongBuffer();
+			}
+
+			@Override
+			void put(final RealType<?> value, final Buffer buffer) {
+				((LongBuffer) buffer).put(((IntegerType<?>) value).getIntegerLong());
+			}
+
+			@Override
+			void get(final RealType<?> value, final Buffer buffer,
+				final boolean unsigned)
+			{
+				((IntegerType<?>) value).setInteger(((LongBuffer) buffer).get());
+			}
+		},
+
+		FLOAT(4, true) {
+
+			@Override
+			Buffer view(final ByteBuffer b) {
+				return b.asFloatBuffer();
+			}
+
+			@Override
+			void put(final RealType<?> value, final Buffer buffer) {
+				((FloatBuffer) buffer).put(value.getRealFloat());
+			}
+
+			@Override
+			void get(final RealType<?> value, final Buffer buffer,
+				final boolean unsigned)
+			{
+				value.setReal(((FloatBuffer) buffer).get());
+			}
+		},
+
+		DOUBLE(8, true) {
+
+			@Override
+			Buffer view(final ByteBuffer b) {
+				return b.asDoubleBuffer();
+			}
+
+			@Override
+			void put(final RealType<?> value, final Buffer buffer) {
+				((DoubleBuffer) buffer).put(value.getRealDouble());
+			}
+
+			@Override
+			void get(final RealType<?> value, final Buffer buffer,
+				final boolean unsigned)
+			{
+				value.setReal(((DoubleBuffer) buffer).get());
+			}
+		},
+
+		/** Any other real type, kept as doubles and copied point by point. */
+		REAL(8, false) {
+
+			@Override
+			Buffer view(final ByteBuffer b) {
+				return b.asDoubleBuffer();
+			}
+
+			@Override
+			void put(final RealType<?> value, final Buffer buffer) {
+				((DoubleBuffer) buffer).put(value.getRealDouble());
+			}
+
+			@Override
+			void get(final RealType<?> value, final Buffer buffer,
+				final boolean unsigned)
+			{
+				value.setReal(((DoubleBuffer) buffer).get());
+			}
+		};
+
+		private final int bytes;
+
+		/** Whether rows of a backing array can be copied in bulk. */
+		private final boolean bulk;
+
+		private Kind(final int bytes, final boolean bulk) {
+			this.bytes = bytes;
+			this.bulk = bulk;
+		}
+
+		/** Returns a view of the bytes as a buffer of this kind. */
+		abstract Buffer view(ByteBuffer b);
+
+		abstract void put(RealType<?> value, Buffer buffer);
+
+		abstract void get(RealType<?> value, Buffer buffer, boolean unsigned);
+	}
+}
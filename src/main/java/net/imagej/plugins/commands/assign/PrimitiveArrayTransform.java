@@ -0,0 +1,486 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.type.numeric.ComplexType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.scijava.Cancelable;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Applies a {@link ComplexUnaryOperation} in place to whole XY planes of an
+ * {@link ArrayImg} or {@link PlanarImg} by looping directly over the backing
+ * primitive arrays. Values are read from the arrays as the image type would
+ * read them and written back through a standalone variable of the image type.
+ * Thus the rounding and range behavior of the type's setReal() is the same as
+ * that of the generic assignment path.
+ * <p>
+ * Only regions without a condition that span the full extent of dimensions 0
+ * and 1 are supported. Use {@link #isSupported} to check a region first.
+ */
+public class PrimitiveArrayTransform<O extends ComplexType<O>> {
+
+	// -- constants --
+
+	/** Number of chunks per thread. More chunks than threads balances load. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	// -- instance variables --
+
+	private final Img<?> img;
+	private final Object type;
+	private final long[] origin;
+	private final long[] span;
+	private final ComplexUnaryOperation<O, O> operation;
+	private final O outType;
+	private int numThreads = ParallelTasks.defaultThreadCount();
+	private ThreadService threadService;
+	private UnaryLookupTable table;
+	private Object rawTable;
+	private Cancelable canceler;
+
+	// -- constructor --
+
+	public PrimitiveArrayTransform(final Img<?> img, final long[] origin,
+		final long[] span, final ComplexUnaryOperation<O, O> operation,
+		final O outType)
+	{
+		if (!isSupported(img, origin, span)) throw new IllegalArgumentException(
+			"region is not supported by the primitive array transform");
+		this.img = storageImg(img);
+		this.type = img.firstElement();
+		this.origin = origin.clone();
+		this.span = span.clone();
+		this.operation = operation;
+		this.outType = outType;
+	}
+
+	// -- public interface --
+
+	/**
+	 * Returns true if the given region of the given image can be transformed by
+	 * looping over primitive arrays. The image must be (or wrap) an ArrayImg or a
+	 * PlanarImg of a supported type and the region must cover whole XY planes.
+	 */
+	public static boolean isSupported(final Img<?> img, final long[] origin,
+		final long[] span)
+	{
+		final Img<?> storage = storageImg(img);
+		if (!(storage instanceof ArrayImg) && !(storage instanceof PlanarImg)) {
+			return false;
+		}
+		if (!isSupportedType(img.firstElement())) return false;
+		if (img.numDimensions() < 2) return false;
+		for (int d = 0; d < 2; d++) {
+			if (origin[d] != 0 || span[d] != img.dimension(d)) return false;
+		}
+		if (storage instanceof ArrayImg) {
+			long size = 1;
+			for (int d = 0; d < img.numDimensions(); d++) {
+				size *= img.dimension(d);
+			}
+			if (size > Integer.MAX_VALUE) return false;
+		}
+		else if (img.dimension(0) * img.dimension(1) > Integer.MAX_VALUE) {
+			return false;
+		}
+		return true;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ThreadService getThreadService() {
+		return threadService;
+	}
+
+	/**
+	 * Sets the service that supplies extra threads. Without one all chunks are
+	 * done on the calling thread.
+	 */
+	public void setThreadService(final ThreadService threadService) {
+		this.threadService = threadService;
+	}
+
+	/**
+	 * Sets a table of precomputed operation results. For 8 and 16 bit types the
+	 * table is converted once into a table of raw output values so each element
+	 * is transformed by a single array lookup.
+	 */
+	public void setLookupTable(final UnaryLookupTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * Sets an object whose cancelation stops the transform. Chunks that have not
+	 * been started when it is canceled are left unchanged.
+	 */
+	public void setCanceler(final Cancelable canceler) {
+		this.canceler = canceler;
+	}
+
+	/** Transforms the region. Returns once all chunks are done. */
+	public void run() {
+		rawTable = (table == null) ? null : encodeTable();
+		final int planeSize = (int) (img.dimension(0) * img.dimension(1));
+		final List<Long> planes = planeIndices();
+		if (planes.isEmpty() || planeSize == 0) return;
+		final int chunksPerPlane =
+			(int) Math.max(1, Math.min(planeSize, (long) Math.max(1, numThreads) *
+				CHUNKS_PER_THREAD / planes.size()));
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final long plane : planes) {
+			final Object array;
+			final int base;
+			if (img instanceof PlanarImg) {
+				array = storageArray(((PlanarImg<?, ?>) img).getPlane((int) plane));
+				base = 0;
+			}
+			else {
+				array = storageArray(((ArrayImg<?, ?>) img).update(null));
+				base = (int) (plane * planeSize);
+			}
+			final long[] bounds = ParallelTasks.split(planeSize, chunksPerPlane);
+			for (int i = 0; i < bounds.length - 1; i++) {
+				tasks.add(new ChunkTask(array, base + (int) bounds[i], base +
+					(int) bounds[i + 1]));
+			}
+		}
+		ParallelTasks.run(threadService, tasks, numThreads);
+	}
+
+	// -- private helpers --
+
+	private static Img<?> storageImg(final Img<?> img) {
+		Img<?> storage = img;
+		while (storage instanceof ImgPlus) {
+			storage = ((ImgPlus<?>) storage).getImg();
+		}
+		return storage;
+	}
+
+	private static boolean isSupportedType(final Object t) {
+		final Class<?> c = t.getClass();
+		return c == UnsignedByteType.class || c == ByteType.class ||
+			c == UnsignedShortType.class || c == ShortType.class ||
+			c == UnsignedIntType.class || c == IntType.class ||
+			c == FloatType.class || c == DoubleType.class;
+	}
+
+	private static Object storageArray(final Object access) {
+		return ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+	}
+
+	/**
+	 * Returns the linear indices of the region's XY planes. This is the plane
+	 * number of a PlanarImg and the plane offset (in planes) of an ArrayImg.
+	 */
+	private List<Long> planeIndices() {
+		final int numDims = img.numDimensions();
+		long numPlanes = 1;
+		for (int d = 2; d < numDims; d++) {
+			numPlanes *= span[d];
+		}
+		final List<Long> planes = new ArrayList<Long>();
+		for (long p = 0; p < numPlanes; p++) {
+			long rem = p;
+			long index = 0;
+			long stride = 1;
+			for (int d = 2; d < numDims; d++) {
+				index += (origin[d] + (rem % span[d])) * stride;
+				rem /= span[d];
+				stride *= img.dimension(d);
+			}
+			planes.add(index);
+		}
+		return planes;
+	}
+
+	/**
+	 * Converts the lookup table into raw storage values of the image type,
+	 * indexed by raw value minus the type's minimum. Returns null if the type is
+	 * not an 8 or 16 bit type.
+	 */
+	private Object encodeTable() {
+		final Class<?> c = type.getClass();
+		final int size = table.size();
+		if (c == UnsignedByteType.class) {
+			final UnsignedByteType encoder = new UnsignedByteType();
+			final byte[] raw = new byte[size];
+			for (int i = 0; i < size; i++) {
+				encoder.setReal(table.get(table.getMin() + i));
+				raw[i] = (byte) encoder.get();
+			}
+			return raw;
+		}
+		if (c == ByteType.class) {
+			final ByteType encoder = new ByteType();
+			final byte[] raw = new byte[size];
+			for (int i = 0; i < size; i++) {
+				encoder.setReal(table.get(table.getMin() + i));
+				raw[i] = encoder.get();
+			}
+			return raw;
+		}
+		if (c == UnsignedShortType.class) {
+			final UnsignedShortType encoder = new UnsignedShortType();
+			final short[] raw = new short[size];
+			for (int i = 0; i < size; i++) {
+				encoder.setReal(table.get(table.getMin() + i));
+				raw[i] = (short) encoder.get();
+			}
+			return raw;
+		}
+		if (c == ShortType.class) {
+			final ShortType encoder = new ShortType();
+			final short[] raw = new short[size];
+			for (int i = 0; i < size; i++) {
+				encoder.setReal(table.get(table.getMin() + i));
+				raw[i] = encoder.get();
+			}
+			return raw;
+		}
+		return null;
+	}
+
+	private Kernel createKernel() {
+		final Class<?> c = type.getClass();
+		if (c == UnsignedByteType.class) return new UnsignedByteKernel();
+		if (c == ByteType.class) return new ByteKernel();
+		if (c == UnsignedShortType.class) return new UnsignedShortKernel();
+		if (c == ShortType.class) return new ShortKernel();
+		if (c == UnsignedIntType.class) return new UnsignedIntKernel();
+		if (c == IntType.class) return new IntKernel();
+		if (c == FloatType.class) return new FloatKernel();
+		return new DoubleKernel();
+	}
+
+	/** Transforms elements [from,to) of one backing array. */
+	private class ChunkTask implements Callable<Void> {
+
+		private final Object array;
+		private final int from;
+		private final int to;
+
+		public ChunkTask(final Object array, final int from, final int to) {
+			this.array = array;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Void call() {
+			if (canceler != null && canceler.isCanceled()) return null;
+			createKernel().transform(array, from, to);
+			return null;
+		}
+	}
+
+	/**
+	 * Per thread transformation state: a copy of the operation and its input and
+	 * output variables. Subclasses loop over one primitive array type.
+	 */
+	private abstract class Kernel {
+
+		private final ComplexUnaryOperation<O, O> op = operation.copy();
+		private final O input = outType.createVariable();
+		private final O output = outType.createVariable();
+
+		protected double apply(final double value) {
+			input.setComplexNumber(value, 0.0);
+			op.compute(input, output);
+			return output.getRealDouble();
+		}
+
+		abstract void transform(Object array, int from, int to);
+	}
+
+	private class UnsignedByteKernel extends Kernel {
+
+		private final UnsignedByteType encoder = new UnsignedByteType();
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final byte[] data = (byte[]) array;
+			if (rawTable != null) {
+				final byte[] lut = (byte[]) rawTable;
+				for (int i = from; i < to; i++) {
+					data[i] = lut[data[i] & 0xff];
+				}
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				encoder.setReal(apply(data[i] & 0xff));
+				data[i] = (byte) encoder.get();
+			}
+		}
+	}
+
+	private class ByteKernel extends Kernel {
+
+		private final ByteType encoder = new ByteType();
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final byte[] data = (byte[]) array;
+			if (rawTable != null) {
+				final byte[] lut = (byte[]) rawTable;
+				for (int i = from; i < to; i++) {
+					data[i] = lut[data[i] - Byte.MIN_VALUE];
+				}
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				encoder.setReal(apply(data[i]));
+				data[i] = encoder.get();
+			}
+		}
+	}
+
+	private class UnsignedShortKernel extends Kernel {
+
+		private final UnsignedShortType encoder = new UnsignedShortType();
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final short[] data = (short[]) array;
+			if (rawTable != null) {
+				final short[] lut = (short[]) rawTable;
+				for (int i = from; i < to; i++) {
+					data[i] = lut[data[i] & 0xffff];
+				}
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				encoder.setReal(apply(data[i] & 0xffff));
+				data[i] = (short) encoder.get();
+			}
+		}
+	}
+
+	private class ShortKernel extends Kernel {
+
+		private final ShortType encoder = new ShortType();
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final short[] data = (short[]) array;
+			if (rawTable != null) {
+				final short[] lut = (short[]) rawTable;
+				for (int i = from; i < to; i++) {
+					data[i] = lut[data[i] - Short.MIN_VALUE];
+				}
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				encoder.setReal(apply(data[i]));
+				data[i] = encoder.get();
+			}
+		}
+	}
+
+	private class UnsignedIntKernel extends Kernel {
+
+		private final UnsignedIntType encoder = new UnsignedIntType();
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final int[] data = (int[]) array;
+			for (int i = from; i < to; i++) {
+				encoder.setReal(apply(data[i] & 0xffffffffL));
+				data[i] = (int) encoder.get();
+			}
+		}
+	}
+
+	private class IntKernel extends Kernel {
+
+		private final IntType encoder = new IntType();
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final int[] data = (int[]) array;
+			for (int i = from; i < to; i++) {
+				encoder.setReal(apply(data[i]));
+				data[i] = encoder.get();
+			}
+		}
+	}
+
+	private class FloatKernel extends Kernel {
+
+		private final FloatType encoder = new FloatType();
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final float[] data = (float[]) array;
+			for (int i = from; i < to; i++) {
+				encoder.setReal(apply(data[i]));
+				data[i] = encoder.get();
+			}
+		}
+	}
+
+	private class DoubleKernel extends Kernel {
+
+		@Override
+		void transform(final Object array, final int from, final int to) {
+			final double[] data = (double[]) array;
+			for (int i = from; i < to; i++) {
+				data[i] = apply(data[i]);
+			}
+		}
+	}
+}
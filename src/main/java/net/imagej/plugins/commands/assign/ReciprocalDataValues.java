@@ -117,6 +117,7 @@ public class ReciprocalDataValues<T extends RealType<T>>
 					op, new DoubleType(), dataset, overlay,
 					view.getPlanePosition());
 		
+		transform.setLookupTableEnabled(true);
 		transform.run();
 	}
 
@@ -0,0 +1,394 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.Dirty;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.scijava.thread.ThreadService;
+
+/**
+ * Sets every point of a region of an image to a constant value by filling the
+ * backing primitive arrays with {@link Arrays#fill}. Array images are filled
+ * row by row, planar images plane by plane and cell images one cell at a time.
+ * The value is converted once through the image type's setReal() so the
+ * stored values are the same as those of the generic assignment path.
+ * <p>
+ * An optional {@link ScanlineMask} limits the fill to the inside runs of a
+ * selection. The mask is in the coordinates of dimensions 0 and 1, which must
+ * be X and Y. Use {@link #isSupported} to check an image first.
+ */
+public class RegionFill {
+
+	// -- constants --
+
+	/** Number of row segments per thread. More than one balances load. */
+	private static final int SEGMENTS_PER_THREAD = 4;
+
+	// -- instance variables --
+
+	private final Img<?> img;
+	private final Object type;
+	private final long[] origin;
+	private final long[] span;
+	private ScanlineMask mask;
+	private int numThreads = ParallelTasks.defaultThreadCount();
+	private ThreadService threadService;
+
+	// -- constructor --
+
+	public RegionFill(final Img<?> img, final long[] origin, final long[] span)
+	{
+		if (!isSupported(img)) throw new IllegalArgumentException(
+			"image is not supported by the region fill");
+		this.img = storageImg(img);
+		this.type = img.firstElement();
+		this.origin = origin.clone();
+		this.span = span.clone();
+	}
+
+	// -- public interface --
+
+	/**
+	 * Returns true if the given image can be filled directly. The image must be
+	 * (or wrap) an array, planar or cell image of a primitive type whose storage
+	 * is an array.
+	 */
+	public static boolean isSupported(final Img<?> img) {
+		final Img<?> storage = storageImg(img);
+		if (!(storage instanceof ArrayImg) && !(storage instanceof PlanarImg) &&
+			!(storage instanceof AbstractCellImg))
+		{
+			return false;
+		}
+		if (img.numDimensions() < 2) return false;
+		if (storage instanceof AbstractCellImg) {
+			final Object data = ((AbstractCellImg<?, ?, ?, ?>) storage).getCells()
+				.firstElement().getData();
+			if (!(data instanceof ArrayDataAccess)) return false;
+		}
+		final Class<?> c = img.firstElement().getClass();
+		return c == UnsignedByteType.class || c == ByteType.class ||
+			c == UnsignedShortType.class || c == ShortType.class ||
+			c == UnsignedIntType.class || c == IntType.class ||
+			c == FloatType.class || c == DoubleType.class;
+	}
+
+	/** Limits the fill to the inside runs of the given mask (null for none). */
+	public void setScanlineMask(final ScanlineMask mask) {
+		this.mask = mask;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ThreadService getThreadService() {
+		return threadService;
+	}
+
+	/**
+	 * Sets the service that supplies extra threads. Without one all segments are
+	 * done on the calling thread.
+	 */
+	public void setThreadService(final ThreadService threadService) {
+		this.threadService = threadService;
+	}
+
+	/** Sets every point of the region to the given value. */
+	public void fill(final double value) {
+		final Object raw = encode(value);
+		final List<Block> blocks = blocks();
+		long totalRows = 0;
+		for (final Block block : blocks)
+			totalRows += block.rowCount;
+		if (totalRows == 0) return;
+		final long segmentRows = Math.max(1, totalRows /
+			((long) Math.max(1, numThreads) * SEGMENTS_PER_THREAD));
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Block block : blocks) {
+			for (long r = 0; r < block.rowCount; r += segmentRows) {
+				tasks.add(new FillTask(block, r, Math.min(block.rowCount, r +
+					segmentRows), raw));
+			}
+		}
+		ParallelTasks.run(threadService, tasks, numThreads);
+		for (final Block block : blocks) {
+			if (block.access instanceof Dirty) ((Dirty) block.access).setDirty();
+		}
+	}
+
+	// -- private helpers --
+
+	private static Img<?> storageImg(final Img<?> img) {
+		Img<?> storage = img;
+		while (storage instanceof ImgPlus) {
+			storage = ((ImgPlus<?>) storage).getImg();
+		}
+		return storage;
+	}
+
+	/** Returns the value as stored in the image's primitive array. */
+	private Object encode(final double value) {
+		final RealType<?> var = ((RealType<?>) type).createVariable();
+		var.setReal(value);
+		final Class<?> c = type.getClass();
+		if (c == UnsignedByteType.class) {
+			return (byte) ((UnsignedByteType) var).get();
+		}
+		if (c == ByteType.class) return ((ByteType) var).get();
+		if (c == UnsignedShortType.class) {
+			return (short) ((UnsignedShortType) var).get();
+		}
+		if (c == ShortType.class) return ((ShortType) var).get();
+		if (c == UnsignedIntType.class) {
+			return (int) ((UnsignedIntType) var).get();
+		}
+		if (c == IntType.class) return ((IntType) var).get();
+		if (c == FloatType.class) return ((FloatType) var).get();
+		return ((DoubleType) var).get();
+	}
+
+	/**
+	 * Returns the storage blocks that intersect the region: the whole array of
+	 * an array image, the planes of a planar image or the cells of a cell image.
+	 */
+	private List<Block> blocks() {
+		final int numDims = img.numDimensions();
+		final List<Block> blocks = new ArrayList<Block>();
+		if (img instanceof ArrayImg) {
+			final long[] min = new long[numDims];
+			final long[] dims = new long[numDims];
+			img.dimensions(dims);
+			addBlock(blocks, ((ArrayImg<?, ?>) img).update(null), min, dims);
+		}
+		else if (img instanceof PlanarImg) {
+			final PlanarImg<?, ?> planar = (PlanarImg<?, ?>) img;
+			final long[] dims = new long[numDims];
+			img.dimensions(dims);
+			final long[] planeDims = dims.clone();
+			for (int d = 2; d < numDims; d++)
+				planeDims[d] = 1;
+			for (int p = 0; p < planar.numSlices(); p++) {
+				final long[] min = new long[numDims];
+				long rem = p;
+				for (int d = 2; d < numDims; d++) {
+					min[d] = rem % dims[d];
+					rem /= dims[d];
+				}
+				addBlock(blocks, planar.getPlane(p), min, planeDims);
+			}
+		}
+		else {
+			// NB - only the cells that intersect the region are fetched
+			final AbstractCellImg<?, ?, ?, ?> cellImg =
+				(AbstractCellImg<?, ?, ?, ?>) img;
+			final CellGrid grid = cellImg.getCellGrid();
+			final int[] cellSize = new int[numDims];
+			grid.cellDimensions(cellSize);
+			final long[] gridMin = new long[numDims];
+			final long[] gridSpan = new long[numDims];
+			long numCells = 1;
+			for (int d = 0; d < numDims; d++) {
+				final long lo = Math.max(origin[d], 0);
+				final long hi = Math.min(origin[d] + span[d], img.dimension(d));
+				if (lo >= hi) return blocks;
+				gridMin[d] = lo / cellSize[d];
+				gridSpan[d] = (hi - 1) / cellSize[d] - gridMin[d] + 1;
+				numCells *= gridSpan[d];
+			}
+			final RandomAccess<? extends Cell<?>> cells =
+				cellImg.getCells().randomAccess();
+			final long[] gridPos = new long[numDims];
+			final int[] cellDims = new int[numDims];
+			for (long c = 0; c < numCells; c++) {
+				long rem = c;
+				for (int d = 0; d < numDims; d++) {
+					gridPos[d] = gridMin[d] + rem % gridSpan[d];
+					rem /= gridSpan[d];
+				}
+				final long[] min = new long[numDims];
+				final long[] dims = new long[numDims];
+				grid.getCellDimensions(gridPos, min, cellDims);
+				for (int d = 0; d < numDims; d++)
+					dims[d] = cellDims[d];
+				cells.setPosition(gridPos);
+				addBlock(blocks, cells.get().getData(), min, dims);
+			}
+		}
+		return blocks;
+	}
+
+	/** Adds a block unless it does not intersect the region. */
+	private void addBlock(final List<Block> blocks, final Object access,
+		final long[] min, final long[] dims)
+	{
+		final int numDims = min.length;
+		final long[] lo = new long[numDims];
+		final long[] hi = new long[numDims];
+		for (int d = 0; d < numDims; d++) {
+			lo[d] = Math.max(origin[d], min[d]);
+			hi[d] = Math.min(origin[d] + span[d], min[d] + dims[d]);
+			if (lo[d] >= hi[d]) return;
+		}
+		blocks.add(new Block(access, min, dims, lo, hi));
+	}
+
+	/**
+	 * The part of a primitive array that lies inside the region. Rows run along
+	 * dimension 0 and are numbered over the other dimensions of the part.
+	 */
+	private static class Block {
+
+		private final Object access;
+		private final Object array;
+		private final long[] min;
+		private final long[] strides;
+		private final long[] lo;
+		private final long[] hi;
+		private final long rowCount;
+
+		public Block(final Object access, final long[] min, final long[] dims,
+			final long[] lo, final long[] hi)
+		{
+			this.access = access;
+			this.array = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+			this.min = min;
+			this.lo = lo;
+			this.hi = hi;
+			strides = new long[dims.length];
+			long stride = 1;
+			long rows = 1;
+			for (int d = 0; d < dims.length; d++) {
+				strides[d] = stride;
+				stride *= dims[d];
+				if (d > 0) rows *= hi[d] - lo[d];
+			}
+			rowCount = rows;
+		}
+	}
+
+	/** Fills a range of the rows of a block. */
+	private class FillTask implements Callable<Void> {
+
+		private final Block block;
+		private final long firstRow, lastRow;
+		private final Object raw;
+
+		public FillTask(final Block block, final long firstRow,
+			final long lastRow, final Object raw)
+		{
+			this.block = block;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+			this.raw = raw;
+		}
+
+		@Override
+		public Void call() {
+			final long[] lo = block.lo;
+			final long[] hi = block.hi;
+			final long[] pos = new long[lo.length];
+			for (long row = firstRow; row < lastRow; row++) {
+				long rem = row;
+				long offset = 0;
+				for (int d = 1; d < pos.length; d++) {
+					final long size = hi[d] - lo[d];
+					pos[d] = lo[d] + rem % size;
+					rem /= size;
+					offset += (pos[d] - block.min[d]) * block.strides[d];
+				}
+				if (mask == null) {
+					fillRun(offset, lo[0], hi[0]);
+					continue;
+				}
+				final long[] spans = mask.getSpans(pos[1]);
+				for (int s = 0; s < spans.length; s += 2) {
+					fillRun(offset, Math.max(lo[0], spans[s]),
+						Math.min(hi[0], spans[s + 1]));
+				}
+			}
+			return null;
+		}
+
+		/** Fills the run [start,end) of dimension 0 of the row at offset. */
+		private void fillRun(final long rowOffset, final long start,
+			final long end)
+		{
+			if (start >= end) return;
+			final int from = (int) (rowOffset + start - block.min[0]);
+			final int to = (int) (rowOffset + end - block.min[0]);
+			final Object array = block.array;
+			if (array instanceof byte[]) {
+				Arrays.fill((byte[]) array, from, to, (Byte) raw);
+			}
+			else if (array instanceof short[]) {
+				Arrays.fill((short[]) array, from, to, (Short) raw);
+			}
+			else if (array instanceof int[]) {
+				Arrays.fill((int[]) array, from, to, (Integer) raw);
+			}
+			else if (array instanceof float[]) {
+				Arrays.fill((float[]) array, from, to, (Float) raw);
+			}
+			else {
+				Arrays.fill((double[]) array, from, to, (Double) raw);
+			}
+		}
+	}
+}
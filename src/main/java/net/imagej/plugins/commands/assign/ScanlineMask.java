@@ -0,0 +1,175 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import net.imglib2.roi.RegionOfInterest;
+
+/**
+ * A rasterized selection: the points of an XY rectangle that lie inside a
+ * {@link RegionOfInterest}, stored as runs of [start,end) x values per row.
+ * Containment is tested exactly like UVInsideRoiCondition does it (at the
+ * integer coordinates of each point) so the two always agree. Once built, a
+ * mask is immutable and can be shared between threads.
+ */
+public class ScanlineMask {
+
+	// -- constants --
+
+	private static final long[] NO_SPANS = new long[0];
+
+	// -- instance variables --
+
+	private final long minX;
+	private final long minY;
+	private final long width;
+	private final long height;
+
+	/** For each row the span bounds {start0, end0, start1, end1, ...}. */
+	private final long[][] rows;
+
+	// -- constructor --
+
+	private ScanlineMask(final long minX, final long minY, final long width,
+		final long height, final long[][] rows)
+	{
+		this.minX = minX;
+		this.minY = minY;
+		this.width = width;
+		this.height = height;
+		this.rows = rows;
+	}
+
+	// -- public interface --
+
+	/**
+	 * Tests each point of the given XY rectangle for containment in the given
+	 * region and records the inside runs of each row.
+	 */
+	public static ScanlineMask rasterize(final RegionOfInterest roi,
+		final long x, final long y, final long w, final long h)
+	{
+		if (h > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"selection has too many rows to rasterize");
+		final long[][] rows = new long[(int) h][];
+		final double[] coord = new double[2];
+		final long[] runs = new long[(int) Math.min(w + 1, Integer.MAX_VALUE)];
+		for (int r = 0; r < h; r++) {
+			coord[1] = y + r;
+			int count = 0;
+			long start = -1;
+			for (long u = x; u < x + w; u++) {
+				coord[0] = u;
+				final boolean inside = roi.contains(coord);
+				if (inside && start < 0) {
+					start = u;
+				}
+				else if (!inside && start >= 0) {
+					runs[count++] = start;
+					runs[count++] = u;
+					start = -1;
+				}
+			}
+			if (start >= 0) {
+				runs[count++] = start;
+				runs[count++] = x + w;
+			}
+			rows[r] = (count == 0) ? NO_SPANS : copy(runs, count);
+		}
+		return new ScanlineMask(x, y, w, h, rows);
+	}
+
+	/**
+	 * Rasterizes an axis aligned rectangular region. The inside points of such
+	 * a region are all combinations of an inside column and an inside row. So
+	 * only the row and the column through the center of the given XY rectangle
+	 * are tested, rather than every point. If the center is not inside the
+	 * region every point is tested as by {@link #rasterize}.
+	 */
+	public static ScanlineMask rasterizeRectangle(final RegionOfInterest roi,
+		final long x, final long y, final long w, final long h)
+	{
+		if (h > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"selection has too many rows to rasterize");
+		final long cx = x + w / 2;
+		final long cy = y + h / 2;
+		if (w <= 0 || h <= 0 || !roi.contains(new double[] { cx, cy })) {
+			return rasterize(roi, x, y, w, h);
+		}
+		final long[] runs = rasterize(roi, x, cy, w, 1).getSpans(cy);
+		final long[][] rows = new long[(int) h][];
+		final double[] coord = new double[] { cx, 0 };
+		for (int r = 0; r < h; r++) {
+			coord[1] = y + r;
+			rows[r] = roi.contains(coord) ? runs : NO_SPANS;
+		}
+		return new ScanlineMask(x, y, w, h, rows);
+	}
+
+	/** Returns true if this mask was built for exactly the given rectangle. */
+	public boolean covers(final long x, final long y, final long w,
+		final long h)
+	{
+		return x == minX && y == minY && w == width && h == height;
+	}
+
+	/**
+	 * Returns the inside runs of the given row as {start0, end0, start1, end1,
+	 * ...} in ascending order. Rows outside the mask have no runs. The returned
+	 * array must not be modified.
+	 */
+	public long[] getSpans(final long y) {
+		if (y < minY || y >= minY + height) return NO_SPANS;
+		return rows[(int) (y - minY)];
+	}
+
+	/** Returns true if the given point is inside the mask. */
+	public boolean contains(final long x, final long y) {
+		final long[] spans = getSpans(y);
+		// binary search for the last run starting at or before x
+		int lo = 0;
+		int hi = spans.length / 2 - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (spans[2 * mid] <= x) lo = mid + 1;
+			else hi = mid - 1;
+		}
+		return hi >= 0 && x < spans[2 * hi + 1];
+	}
+
+	// -- private helpers --
+
+	private static long[] copy(final long[] values, final int count) {
+		final long[] result = new long[count];
+		System.arraycopy(values, 0, result, 0, count);
+		return result;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.Arrays;
+
+import net.imagej.event.OverlayDeletedEvent;
+import net.imagej.event.OverlayRestructuredEvent;
+import net.imagej.event.OverlayUpdatedEvent;
+import net.imagej.overlay.EllipseOverlay;
+import net.imagej.overlay.Overlay;
+import net.imagej.overlay.PolygonOverlay;
+import net.imagej.overlay.RectangleOverlay;
+import net.imglib2.RealLocalizable;
+import net.imglib2.roi.PolygonRegionOfInterest;
+import net.imglib2.roi.RegionOfInterest;
+
+import org.scijava.event.EventHandler;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Service that caches the {@link ScanlineMask} of each {@link Overlay} so that
+ * a selection is rasterized only once no matter how many planes or commands
+ * use it. A cached mask is discarded whenever its overlay is updated,
+ * restructured or deleted.
+ * <p>
+ * A mask is also stored with the geometry its overlay had when it was made,
+ * and is only reused while the overlay still has that geometry. So an overlay
+ * changed without an update event does not get a stale mask. Only overlays
+ * whose geometry is cheap to describe (rectangles, ellipses and polygons) are
+ * cached. Other overlays are rasterized on every request. Overlays are held
+ * weakly, so the cache does not keep them alive.
+ */
+@Plugin(type = Service.class)
+public class ScanlineMaskCache extends AbstractService {
+
+	private final WeakIdentityMap<Overlay, Entry> masks =
+		new WeakIdentityMap<Overlay, Entry>();
+
+	/** Counts invalidations so a mask built meanwhile is not cached. */
+	private long generation;
+
+	// -- ScanlineMaskCache methods --
+
+	/**
+	 * Returns the mask of the given overlay over the given XY rectangle,
+	 * rasterizing it if no valid mask for that rectangle is cached.
+	 */
+	public ScanlineMask getMask(final Overlay overlay, final long x,
+		final long y, final long w, final long h)
+	{
+		final double[] geometry = geometry(overlay);
+		final long startGeneration;
+		synchronized (masks) {
+			final Entry entry = masks.get(overlay);
+			if (entry != null && geometry != null &&
+				Arrays.equals(entry.geometry, geometry) &&
+				entry.mask.covers(x, y, w, h))
+			{
+				return entry.mask;
+			}
+			startGeneration = generation;
+		}
+		final ScanlineMask mask = (overlay instanceof RectangleOverlay)
+			? ScanlineMask.rasterizeRectangle(overlay.getRegionOfInterest(), x, y, w,
+				h) : ScanlineMask.rasterize(overlay.getRegionOfInterest(), x, y, w, h);
+		if (geometry == null) return mask;
+		synchronized (masks) {
+			if (generation == startGeneration) {
+				masks.put(overlay, new Entry(geometry, mask));
+			}
+		}
+		return mask;
+	}
+
+	/** Discards the cached mask of the given overlay, if any. */
+	public void invalidate(final Overlay overlay) {
+		synchronized (masks) {
+			masks.remove(overlay);
+			generation++;
+		}
+	}
+
+	// -- Event handlers --
+
+	@EventHandler
+	protected void onEvent(final OverlayUpdatedEvent evt) {
+		invalidate(evt.getObject());
+	}
+
+	@EventHandler
+	protected void onEvent(final OverlayRestructuredEvent evt) {
+		invalidate(evt.getObject());
+	}
+
+	@EventHandler
+	protected void onEvent(final OverlayDeletedEvent evt) {
+		invalidate(evt.getObject());
+	}
+
+	// -- private helpers --
+
+	/**
+	 * Describes the current geometry of an overlay by numbers that change
+	 * whenever its shape or position does. Rectangles and ellipses are fully
+	 * described by their bounds, and polygons by their bounds and vertices.
+	 * Returns null for other overlays.
+	 */
+	private static double[] geometry(final Overlay overlay) {
+		final int numDims = overlay.numDimensions();
+		final RegionOfInterest roi = overlay.getRegionOfInterest();
+		int numVertices = 0;
+		if (overlay instanceof PolygonOverlay &&
+			roi instanceof PolygonRegionOfInterest)
+		{
+			numVertices = ((PolygonRegionOfInterest) roi).getVertexCount();
+		}
+		else if (!(overlay instanceof RectangleOverlay) &&
+			!(overlay instanceof EllipseOverlay))
+		{
+			return null;
+		}
+		final double[] geometry = new double[2 * numDims + 2 * numVertices];
+		int i = 0;
+		for (int d = 0; d < numDims; d++) {
+			geometry[i++] = overlay.realMin(d);
+			geometry[i++] = overlay.realMax(d);
+		}
+		for (int v = 0; v < numVertices; v++) {
+			final RealLocalizable vertex =
+				((PolygonRegionOfInterest) roi).getVertex(v);
+			geometry[i++] = vertex.getDoublePosition(0);
+			geometry[i++] = vertex.getDoublePosition(1);
+		}
+		return geometry;
+	}
+
+	/** A cached mask and the geometry of the overlay it was made from. */
+	private static class Entry {
+
+		private final double[] geometry;
+		private final ScanlineMask mask;
+
+		public Entry(final double[] geometry, final ScanlineMask mask) {
+			this.geometry = geometry;
+			this.mask = mask;
+		}
+	}
+}
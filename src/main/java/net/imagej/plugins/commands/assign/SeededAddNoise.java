@@ -0,0 +1,127 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.SplittableRandom;
+
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.type.numeric.ComplexType;
+
+/**
+ * Adds gaussian noise to values. Noisy values outside the allowed range are
+ * redrawn a number of times and then clamped to the range. The noise comes
+ * from a {@link SplittableRandom} stream that is fully determined by the seed
+ * and the current stream number (see {@link SeededOperation}).
+ */
+public class SeededAddNoise<O extends ComplexType<O>> implements
+	ComplexUnaryOperation<O, O>, SeededOperation
+{
+
+	// -- constants --
+
+	private static final int MAX_DRAWS = 100;
+
+	// -- instance variables --
+
+	private final double rangeMin;
+	private final double rangeMax;
+	private final double rangeStdDev;
+	private final long seed;
+	private SplittableRandom rng;
+
+	// -- constructor --
+
+	public SeededAddNoise(final double min, final double max,
+		final double stdDev, final long seed)
+	{
+		this.rangeMin = min;
+		this.rangeMax = max;
+		this.rangeStdDev = stdDev;
+		this.seed = seed;
+		startStream(0);
+	}
+
+	// -- SeededOperation methods --
+
+	@Override
+	public void startStream(final long stream) {
+		rng = new SplittableRandom(streamSeed(seed, stream));
+	}
+
+	// -- ComplexUnaryOperation methods --
+
+	@Override
+	public O compute(final O input, final O output) {
+		final double value = input.getRealDouble();
+		double newValue = value;
+		for (int i = 0; i < MAX_DRAWS; i++) {
+			newValue = value + nextGaussian() * rangeStdDev;
+			if (newValue >= rangeMin && newValue <= rangeMax) break;
+		}
+		if (newValue < rangeMin) newValue = rangeMin;
+		if (newValue > rangeMax) newValue = rangeMax;
+		output.setComplexNumber(newValue, input.getImaginaryDouble());
+		return output;
+	}
+
+	@Override
+	public SeededAddNoise<O> copy() {
+		return new SeededAddNoise<O>(rangeMin, rangeMax, rangeStdDev, seed);
+	}
+
+	// -- SeededAddNoise methods --
+
+	/**
+	 * Derives the seed of a numbered stream from a base seed. The result is
+	 * well mixed so that neighboring stream numbers give unrelated streams.
+	 */
+	public static long streamSeed(final long seed, final long stream) {
+		long z = seed + (stream + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// -- private helpers --
+
+	/** Marsaglia polar method. Only one of each pair of values is used. */
+	private double nextGaussian() {
+		double v1, v2, s;
+		do {
+			v1 = 2 * rng.nextDouble() - 1;
+			v2 = 2 * rng.nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		}
+		while (s >= 1 || s == 0);
+		return v1 * Math.sqrt(-2 * Math.log(s) / s);
+	}
+}
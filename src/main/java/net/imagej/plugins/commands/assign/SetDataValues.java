@@ -75,6 +75,11 @@ public class SetDataValues<T extends RealType<T>>
 		return new RealConstant<DoubleType, DoubleType>(value);
 	}
 
+	@Override
+	public Double getConstantValue() {
+		return value;
+	}
+
 	public double getValue() {
 		return value;
 	}
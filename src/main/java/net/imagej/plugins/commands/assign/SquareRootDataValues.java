@@ -103,6 +103,7 @@ public class SquareRootDataValues<T extends RealType<T>>
 					op, new DoubleType(), dataset, overlay,
 					view.getPlanePosition());
 		
+		transform.setLookupTableEnabled(true);
 		transform.run();
 	}
 
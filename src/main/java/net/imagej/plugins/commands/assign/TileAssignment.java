@@ -0,0 +1,280 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.ops.condition.Condition;
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.type.numeric.ComplexType;
+
+import org.scijava.Cancelable;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Applies a {@link ComplexUnaryOperation} in place to a rectangular region of
+ * an {@link Img}. The region is divided into nonoverlapping tiles (bands of
+ * rows along dimension 0) which are processed by a number of worker threads.
+ * Each worker has its own accessor, operation copy, and condition copy. Since
+ * every point is transformed independently of all others the results are
+ * identical to those of a serial {@link net.imglib2.ops.img.ImageAssignment}
+ * using a point input iterator. A {@link SeededOperation} starts a new random
+ * stream at each row so its results do not depend on the number of threads.
+ */
+public class TileAssignment<I extends ComplexType<I>, O extends ComplexType<O>>
+{
+
+	// -- constants --
+
+	/** Number of tiles per thread. More tiles than threads balances load. */
+	private static final int TILES_PER_THREAD = 4;
+
+	// -- instance variables --
+
+	private final Img<I> img;
+	private final long[] origin;
+	private final long[] span;
+	private final ComplexUnaryOperation<O, O> operation;
+	private final O outType;
+	private final Condition<long[]> condition;
+	private int numThreads = ParallelTasks.defaultThreadCount();
+	private ThreadService threadService;
+	private UnaryLookupTable table;
+	private int fusedDim = -1;
+	private ScanlineMask mask;
+	private Cancelable canceler;
+
+	// -- constructor --
+
+	public TileAssignment(final Img<I> img, final long[] origin,
+		final long[] span, final ComplexUnaryOperation<O, O> operation,
+		final O outType, final Condition<long[]> condition)
+	{
+		this.img = img;
+		this.origin = origin.clone();
+		this.span = span.clone();
+		this.operation = operation;
+		this.outType = outType;
+		this.condition = condition;
+	}
+
+	// -- public interface --
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public ThreadService getThreadService() {
+		return threadService;
+	}
+
+	/**
+	 * Sets the service that supplies extra threads. Without one all tiles are
+	 * done on the calling thread.
+	 */
+	public void setThreadService(final ThreadService threadService) {
+		this.threadService = threadService;
+	}
+
+	/**
+	 * Sets a table of precomputed operation results to use instead of applying
+	 * the operation to each point. The table must cover the image's type.
+	 */
+	public void setLookupTable(final UnaryLookupTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * Sets a dimension (such as the channel axis of an RGB image) whose positions
+	 * are all updated together at each point of the remaining region. This
+	 * visits each such point only once so the condition is tested once for all
+	 * of them. Thus the condition must not depend upon the fused dimension.
+	 * Dimension 0 cannot be fused.
+	 */
+	public void setFusedDimension(final int dim) {
+		if (dim == 0) throw new IllegalArgumentException(
+			"dimension 0 cannot be fused");
+		this.fusedDim = dim;
+	}
+
+	/**
+	 * Sets a rasterized selection to use in place of the condition. Only the
+	 * inside runs of each row are visited; no other points are tested.
+	 */
+	public void setScanlineMask(final ScanlineMask mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * Sets an object whose cancelation stops the assignment. Rows that have not
+	 * been started when it is canceled are left unchanged.
+	 */
+	public void setCanceler(final Cancelable canceler) {
+		this.canceler = canceler;
+	}
+
+	/** Transforms the region. Returns once all tiles are done. */
+	public void assign() {
+		final long numRows = numRows();
+		if (numRows == 0 || span[0] == 0) return;
+		final long[] bounds =
+			ParallelTasks.split(numRows, Math.max(1, numThreads) * TILES_PER_THREAD);
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < bounds.length - 1; i++) {
+			tasks.add(new TileTask(bounds[i], bounds[i + 1]));
+		}
+		ParallelTasks.run(threadService, tasks, numThreads);
+	}
+
+	// -- private helpers --
+
+	/**
+	 * Counts the rows of the region, i.e. all positions in dimensions 1..n-1
+	 * other than the fused dimension.
+	 */
+	private long numRows() {
+		long rows = 1;
+		for (int i = 1; i < span.length; i++) {
+			if (i != fusedDim) rows *= span[i];
+		}
+		return rows;
+	}
+
+	/** Sets the position of the first point of the given row of the region. */
+	private void rowStart(final long row, final long[] pos) {
+		pos[0] = origin[0];
+		long r = row;
+		for (int i = 1; i < span.length; i++) {
+			if (i == fusedDim) {
+				pos[i] = origin[i];
+				continue;
+			}
+			pos[i] = origin[i] + (r % span[i]);
+			r /= span[i];
+		}
+	}
+
+	/** Transforms a contiguous band of rows [firstRow,lastRow). */
+	private class TileTask implements Callable<Void> {
+
+		private final long firstRow;
+		private final long lastRow;
+
+		public TileTask(final long firstRow, final long lastRow) {
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		@Override
+		public Void call() {
+			final RandomAccess<I> accessor = img.randomAccess();
+			final ComplexUnaryOperation<O, O> op = operation.copy();
+			final Condition<long[]> cond =
+				(condition == null) ? null : condition.copy();
+			final O input = outType.createVariable();
+			final O output = outType.createVariable();
+			final long[] pos = new long[span.length];
+			final long width = span[0];
+			final long fusedCount = (fusedDim < 0) ? 1 : span[fusedDim];
+			final SeededOperation seeded =
+				(op instanceof SeededOperation) ? (SeededOperation) op : null;
+			for (long row = firstRow; row < lastRow; row++) {
+				if (canceler != null && canceler.isCanceled()) break;
+				rowStart(row, pos);
+				if (seeded != null) seeded.startStream(row);
+				if (mask != null) {
+					final long[] spans = mask.getSpans(pos[1]);
+					for (int s = 0; s < spans.length; s += 2) {
+						final long start = Math.max(spans[s], origin[0]);
+						final long end = Math.min(spans[s + 1], origin[0] + width);
+						if (start >= end) continue;
+						pos[0] = start;
+						accessor.setPosition(pos);
+						for (long x = start; x < end; x++) {
+							transformPoint(accessor, fusedCount, op, input, output);
+							accessor.fwd(0);
+						}
+					}
+					continue;
+				}
+				accessor.setPosition(pos);
+				for (long x = 0; x < width; x++) {
+					if (cond == null || cond.isTrue(pos)) {
+						transformPoint(accessor, fusedCount, op, input, output);
+					}
+					accessor.fwd(0);
+					pos[0]++;
+				}
+			}
+			return null;
+		}
+
+		/** Transforms the current point, or all fused points at it. */
+		private void transformPoint(final RandomAccess<I> accessor,
+			final long fusedCount, final ComplexUnaryOperation<O, O> op,
+			final O input, final O output)
+		{
+			if (fusedDim < 0) {
+				transformValue(accessor.get(), op, input, output);
+				return;
+			}
+			for (long c = 0; c < fusedCount; c++) {
+				accessor.setPosition(origin[fusedDim] + c, fusedDim);
+				transformValue(accessor.get(), op, input, output);
+			}
+			accessor.setPosition(origin[fusedDim], fusedDim);
+		}
+
+		private void transformValue(final I value,
+			final ComplexUnaryOperation<O, O> op, final O input, final O output)
+		{
+			if (table != null) {
+				value.setReal(table.get((long) value.getRealDouble()));
+			}
+			else {
+				input.setComplexNumber(value.getRealDouble(), value
+					.getImaginaryDouble());
+				op.compute(input, output);
+				value.setReal(output.getRealDouble());
+				value.setImaginary(output.getImaginaryDouble());
+			}
+		}
+	}
+}
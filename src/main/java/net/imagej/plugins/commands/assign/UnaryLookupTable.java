@@ -0,0 +1,116 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.type.numeric.ComplexType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A table of the results of a {@link ComplexUnaryOperation} for every value of
+ * a small integer type. Looking a value up in the table returns exactly what
+ * applying the operation to that value would. Tables are only built for
+ * integer types with at most {@link #MAX_SIZE} values. They can only be used
+ * with operations whose result depends on nothing but the input value.
+ */
+public class UnaryLookupTable {
+
+	// -- constants --
+
+	/** The largest number of entries a table can have (i.e. 16 bit types). */
+	public static final int MAX_SIZE = 65536;
+
+	// -- instance variables --
+
+	private final long min;
+	private final double[] values;
+
+	// -- constructor --
+
+	private UnaryLookupTable(final long min, final double[] values) {
+		this.min = min;
+		this.values = values;
+	}
+
+	// -- public interface --
+
+	/**
+	 * Returns true if a table can be built for the given pixel type: it must be
+	 * an integer type with no more than MAX_SIZE values.
+	 */
+	public static boolean isSupported(final Object type) {
+		if (!(type instanceof IntegerType)) return false;
+		final RealType<?> realType = (RealType<?>) type;
+		final double size = realType.getMaxValue() - realType.getMinValue() + 1;
+		return size <= MAX_SIZE;
+	}
+
+	/**
+	 * Tabulates the given operation over all values of the given pixel type.
+	 * Returns null if the type is not supported.
+	 */
+	public static <O extends ComplexType<O>> UnaryLookupTable create(
+		final Object type, final ComplexUnaryOperation<O, O> operation,
+		final O outType)
+	{
+		if (!isSupported(type)) return null;
+		final RealType<?> realType = (RealType<?>) type;
+		final long min = (long) realType.getMinValue();
+		final int size = (int) ((long) realType.getMaxValue() - min + 1);
+		final ComplexUnaryOperation<O, O> op = operation.copy();
+		final O input = outType.createVariable();
+		final O output = outType.createVariable();
+		final double[] values = new double[size];
+		for (int i = 0; i < size; i++) {
+			input.setComplexNumber(min + i, 0.0);
+			op.compute(input, output);
+			values[i] = output.getRealDouble();
+		}
+		return new UnaryLookupTable(min, values);
+	}
+
+	/** Returns the smallest value covered by the table. */
+	public long getMin() {
+		return min;
+	}
+
+	/** Returns the number of entries in the table. */
+	public int size() {
+		return values.length;
+	}
+
+	/** Returns the result of the operation for the given input value. */
+	public double get(final long value) {
+		return values[(int) (value - min)];
+	}
+}
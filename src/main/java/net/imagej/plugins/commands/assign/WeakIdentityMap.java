@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A map that compares its keys by identity and only holds them weakly. An
+ * entry disappears once nothing else refers to its key, so a cache keyed by
+ * datasets or overlays does not keep them alive. Values must not refer to
+ * their keys, or the keys can never be collected.
+ * <p>
+ * This map is not synchronized. Callers that share it between threads must
+ * synchronize on it themselves.
+ */
+public class WeakIdentityMap<K, V> {
+
+	// -- instance variables --
+
+	private final Map<Key<K>, V> map = new HashMap<Key<K>, V>();
+	private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+	// -- public interface --
+
+	/** Returns the value of the given key, or null if there is none. */
+	public V get(final K key) {
+		purge();
+		return map.get(new Key<K>(key, null));
+	}
+
+	/** Sets the value of the given key. Returns the previous value, if any. */
+	public V put(final K key, final V value) {
+		purge();
+		return map.put(new Key<K>(key, queue), value);
+	}
+
+	/** Removes the given key. Returns its value, if any. */
+	public V remove(final K key) {
+		purge();
+		return map.remove(new Key<K>(key, null));
+	}
+
+	/** Returns the number of entries whose keys have not been collected yet. */
+	public int size() {
+		purge();
+		return map.size();
+	}
+
+	// -- private helpers --
+
+	/** Removes the entries whose keys have been collected. */
+	private void purge() {
+		Reference<? extends K> ref;
+		while ((ref = queue.poll()) != null) {
+			map.remove(ref);
+		}
+	}
+
+	/**
+	 * A weak reference that is equal to another one if both refer to the same
+	 * object. A collected key is only equal to itself.
+	 */
+	private static class Key<K> extends WeakReference<K> {
+
+		private final int hash;
+
+		public Key(final K referent, final ReferenceQueue<K> queue) {
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (o == this) return true;
+			if (!(o instanceof Key)) return false;
+			final Object referent = get();
+			return referent != null && referent == ((Key<?>) o).get();
+		}
+	}
+}
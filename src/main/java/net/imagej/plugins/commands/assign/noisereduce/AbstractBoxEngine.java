@@ -0,0 +1,209 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.Cancelable;
+
+/**
+ * Base class for engines that reduce box neighborhoods lying in the XY plane.
+ * Each XY plane of a tile is done in chunks of rows. The input of a chunk,
+ * including the rows and columns its boxes reach beyond it, is gathered into
+ * primitive buffers, reduced by the subclass and written out. Chunks overlap
+ * by the height of the box less one row, and the buffers stay small however
+ * big the image is.
+ */
+public abstract class AbstractBoxEngine<U extends RealType<U>> implements
+	ReductionEngine<U>
+{
+
+	// -- constants --
+
+	/** Number of values the input buffer of a chunk aims to stay under. */
+	protected static final int CHUNK_VALUES = 1 << 20;
+
+	// -- instance variables --
+
+	/** Offset of the first column and row of the box from its origin. */
+	protected final int minX, minY;
+
+	/** Width and height of the box. */
+	protected final int kx, ky;
+
+	// -- constructor --
+
+	protected AbstractBoxEngine(final OffsetPointSet points) {
+		if (!isSupported(points)) throw new IllegalArgumentException(
+			"neighborhood is not a box in the XY plane");
+		final long[] min = points.getMinOffsets();
+		final long[] max = points.getMaxOffsets();
+		minX = (int) min[0];
+		kx = (int) (max[0] - min[0] + 1);
+		if (min.length > 1) {
+			minY = (int) min[1];
+			ky = (int) (max[1] - min[1] + 1);
+		}
+		else {
+			minY = 0;
+			ky = 1;
+		}
+	}
+
+	// -- public interface --
+
+	/**
+	 * Returns true if the neighborhood is a box that spans only dimensions 0
+	 * and 1 (as rectangular neighborhoods do).
+	 */
+	public static boolean isSupported(final Neighborhood neighborhood) {
+		final Object points = neighborhood.getPoints();
+		return points instanceof OffsetPointSet &&
+			isSupported((OffsetPointSet) points);
+	}
+
+	// -- ReductionEngine methods --
+
+	@Override
+	public void reduce(final RandomAccessible<U> input,
+		final RandomAccessibleInterval<U> output, final long[] origin,
+		final long[] span, final Cancelable canceler)
+	{
+		if (span[0] > Integer.MAX_VALUE - kx) throw new IllegalArgumentException(
+			"rows are too long");
+		final int width = (int) span[0];
+		final long height = span.length > 1 ? span[1] : 1;
+		final int srcWidth = width + kx - 1;
+		final int chunkRows = (int) Math.max(1, Math.min(height,
+			CHUNK_VALUES / srcWidth - (ky - 1)));
+		final double[][] src = new double[chunkRows + ky - 1][srcWidth];
+		final double[][] dst = new double[chunkRows][width];
+		final ChunkReducer reducer = createChunkReducer(width, chunkRows);
+		final RandomAccess<U> in = input.randomAccess();
+		final RandomAccess<U> out = output.randomAccess();
+		final long[] pos = origin.clone();
+		do {
+			// pos addresses the first row of an XY plane
+			final long y0 = span.length > 1 ? origin[1] : 0;
+			for (long y = y0; y < y0 + height; y += chunkRows) {
+				if (canceler != null && canceler.isCanceled()) return;
+				final int rows = (int) Math.min(chunkRows, y0 + height - y);
+				if (span.length > 1) pos[1] = y;
+				gather(in, pos, srcWidth, rows + ky - 1, src);
+				reducer.reduce(src, width, rows, dst);
+				write(out, pos, width, rows, dst);
+			}
+			if (span.length > 1) pos[1] = y0;
+		}
+		while (nextPlane(pos, origin, span));
+	}
+
+	// -- subclass interface --
+
+	/**
+	 * Reduces one chunk. Row r of the source holds the input row that lies minY
+	 * + r rows below the first output row of the chunk, starting minX columns
+	 * right of the first output column. So the box of output point (x, r) covers
+	 * src[r .. r+ky-1][x .. x+kx-1].
+	 */
+	protected interface ChunkReducer {
+
+		void reduce(double[][] src, int width, int rows, double[][] dst);
+	}
+
+	/**
+	 * Creates the reducer for one call of reduce(). It may keep working storage
+	 * for chunks of up to the given number of rows of the given width.
+	 */
+	protected abstract ChunkReducer createChunkReducer(int width, int rows);
+
+	// -- private helpers --
+
+	private static boolean isSupported(final OffsetPointSet points) {
+		if (!points.isBox()) return false;
+		final long[] min = points.getMinOffsets();
+		final long[] max = points.getMaxOffsets();
+		for (int d = 0; d < min.length; d++) {
+			final long extent = max[d] - min[d] + 1;
+			if (d >= 2 && extent != 1) return false;
+			if (extent > CHUNK_VALUES) return false;
+		}
+		return true;
+	}
+
+	private void gather(final RandomAccess<U> in, final long[] pos,
+		final int srcWidth, final int srcRows, final double[][] src)
+	{
+		for (int r = 0; r < srcRows; r++) {
+			in.setPosition(pos);
+			if (pos.length > 1) in.setPosition(pos[1] + minY + r, 1);
+			in.setPosition(pos[0] + minX, 0);
+			final double[] row = src[r];
+			for (int i = 0; i < srcWidth; i++) {
+				row[i] = in.get().getRealDouble();
+				in.fwd(0);
+			}
+		}
+	}
+
+	private void write(final RandomAccess<U> out, final long[] pos,
+		final int width, final int rows, final double[][] dst)
+	{
+		for (int r = 0; r < rows; r++) {
+			out.setPosition(pos);
+			if (pos.length > 1) out.setPosition(pos[1] + r, 1);
+			final double[] row = dst[r];
+			for (int x = 0; x < width; x++) {
+				out.get().setReal(row[x]);
+				out.fwd(0);
+			}
+		}
+	}
+
+	/**
+	 * Moves pos to the next XY plane of the box. Returns false when there are
+	 * no more planes.
+	 */
+	private static boolean nextPlane(final long[] pos, final long[] origin,
+		final long[] span)
+	{
+		for (int d = 2; d < pos.length; d++) {
+			pos[d]++;
+			if (pos[d] < origin[d] + span[d]) return true;
+			pos[d] = origin[d];
+		}
+		return false;
+	}
+}
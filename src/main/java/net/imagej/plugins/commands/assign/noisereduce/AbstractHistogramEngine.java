@@ -0,0 +1,149 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.Cancelable;
+
+/**
+ * Base class for engines that compute order statistics of integer images of
+ * at most 16 bits from a sliding histogram (after Huang). As the neighborhood
+ * moves one step along a row only its trailing points are taken out of the
+ * histogram and its leading points put in. So the cost per pixel grows with
+ * the size of the neighborhood's edge rather than with its volume.
+ */
+public abstract class AbstractHistogramEngine<U extends RealType<U>>
+	implements ReductionEngine<U>
+{
+
+	// -- constants --
+
+	private static final int MAX_BITS = 16;
+
+	// -- instance variables --
+
+	private final NeighborhoodLines lines;
+	private final double minValue;
+	private final int numBins;
+
+	// -- constructor --
+
+	protected AbstractHistogramEngine(final U type,
+		final OffsetPointSet points)
+	{
+		if (!isSupported(type)) throw new IllegalArgumentException(
+			"histogram engines require an integer type of at most " + MAX_BITS +
+				" bits");
+		lines = new NeighborhoodLines(points);
+		minValue = type.getMinValue();
+		numBins = (int) (type.getMaxValue() - minValue + 1);
+	}
+
+	// -- public interface --
+
+	/** Returns true if histograms of the given type can be made. */
+	public static boolean isSupported(final RealType<?> type) {
+		return type instanceof IntegerType &&
+			type.getBitsPerPixel() <= MAX_BITS &&
+			type.getMaxValue() - type.getMinValue() < (1 << MAX_BITS);
+	}
+
+	/**
+	 * Returns true if histograms of the given type can be made over the given
+	 * neighborhood.
+	 */
+	public static boolean isSupported(final RealType<?> type,
+		final Neighborhood neighborhood)
+	{
+		return isSupported(type) &&
+			neighborhood.getPoints() instanceof OffsetPointSet;
+	}
+
+	// -- ReductionEngine methods --
+
+	@Override
+	public void reduce(final RandomAccessible<U> input,
+		final RandomAccessibleInterval<U> output, final long[] origin,
+		final long[] span, final Cancelable canceler)
+	{
+		if (span[0] > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"rows are too long");
+		final int rowLength = (int) span[0];
+		final int size = lines.size();
+		final int[] trailing = lines.getTrailingPoints();
+		final int[] leading = lines.getLeadingPoints();
+		final double[][] buffers = lines.createBuffers(rowLength);
+		final SlidingHistogram histogram = new SlidingHistogram(minValue, numBins);
+		final RandomAccess<U> in = input.randomAccess();
+		final RandomAccess<U> out = output.randomAccess();
+		final long[] pos = origin.clone();
+		do {
+			if (canceler != null && canceler.isCanceled()) return;
+			lines.gather(in, pos, rowLength, buffers);
+			for (int p = 0; p < size; p++)
+				histogram.add(bin(histogram, buffers, p, 0));
+			out.setPosition(pos);
+			for (int x = 0; x < rowLength; x++) {
+				if (x > 0) {
+					for (final int p : trailing)
+						histogram.remove(bin(histogram, buffers, p, x - 1));
+					for (final int p : leading)
+						histogram.add(bin(histogram, buffers, p, x));
+				}
+				out.get().setReal(statistic(histogram));
+				out.fwd(0);
+			}
+			// empty the histogram for the next row
+			for (int p = 0; p < size; p++)
+				histogram.remove(bin(histogram, buffers, p, rowLength - 1));
+		}
+		while (NeighborhoodLines.nextRow(pos, origin, span));
+	}
+
+	// -- subclass interface --
+
+	/** Computes the statistic of the neighborhood held in the histogram. */
+	protected abstract double statistic(SlidingHistogram histogram);
+
+	// -- private helpers --
+
+	private int bin(final SlidingHistogram histogram, final double[][] buffers,
+		final int point, final int x)
+	{
+		return histogram.bin(buffers[lines.getLine(point)][lines.index(point, x)]);
+	}
+}
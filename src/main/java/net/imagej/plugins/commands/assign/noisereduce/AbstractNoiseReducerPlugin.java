@@ -46,6 +46,7 @@ import net.imglib2.outofbounds.OutOfBoundsMirrorFactory.Boundary;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 
+import org.scijava.Cancelable;
 import org.scijava.ItemIO;
 import org.scijava.command.CommandModule;
 import org.scijava.command.CommandService;
@@ -65,8 +66,8 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 
 	public enum NeighborhoodType {RADIAL, RECTANGULAR}
 
-	private static final String RADIAL_STRING = "Radial (n dimensional)";
-	private static final String RECTANGULAR_STRING = "Rectangular (2 dimensional)";
+	static final String RADIAL_STRING = "Radial (n dimensional)";
+	static final String RECTANGULAR_STRING = "Rectangular (2 dimensional)";
 	
 	// -- Parameters --
 
@@ -87,15 +88,28 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 	
 	private NeighborhoodType neighType;
 	
-	private String cancelReason;
+	private volatile String cancelReason;
 
 	private Neighborhood userProvidedNeighborhood = null;
+
+	private boolean inPlace;
+
+	private boolean cellOutput;
 	
 	// -- public API --
 	
 	public abstract Function<PointSet,DoubleType> getFunction(
 		Function<long[],DoubleType> otherFunc);
 
+	/**
+	 * Returns an engine that computes the same reduction as
+	 * {@link #getFunction(Function)} faster for the given kind of pixel and
+	 * neighborhood, or null if there is none. By default there is none.
+	 */
+	public ReductionEngine<U> getEngine(U type, Neighborhood neighborhood) {
+		return null;
+	}
+
 	@Override
 	public void run() {
 		Neighborhood neighborhood = determineNeighborhood(input.numDimensions());
@@ -106,11 +120,24 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 				new OutOfBoundsMirrorFactory<U,RandomAccessibleInterval<U>>(Boundary.DOUBLE);
 		Function<long[],DoubleType> otherFunc =
 				new RealImageFunction<U,DoubleType>(inputImg, oobFactory, new DoubleType());
-		PointSet ps = neighborhood.getPoints();
 		Reducer<U,DoubleType> reducer =
 			new Reducer<U, DoubleType>(getContext(), inputImg,
-				getFunction(otherFunc), ps);
-		output = reducer.reduceNoise(neighborhood.getDescription());
+				getFunction(otherFunc), neighborhood);
+		reducer.setEngine(getEngine(inputImg.firstElement(), neighborhood));
+		reducer.setCellOutput(cellOutput);
+		reducer.setCanceler(this);
+		if (inPlace) {
+			reducer.reduceNoiseInPlace(neighborhood.getDescription());
+			// NB - a canceled reduction is not output, but when streamed it may
+			// have changed part of the input, so displays are still updated
+			input.update();
+			output = isCanceled() ? null : input;
+		}
+		else {
+			output = reducer.reduceNoise(neighborhood.getDescription());
+			// NB - a canceled reduction is incomplete so it is not output
+			if (isCanceled()) output = null;
+		}
 	}
 
 	public void setInput(Dataset ds) {
@@ -125,6 +152,29 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 		return output;
 	}
 
+	public boolean isInPlace() {
+		return inPlace;
+	}
+
+	/**
+	 * Sets whether the input is overwritten rather than a new output made. With
+	 * an engine, planes are then streamed so little extra memory is needed. A
+	 * canceled streamed run leaves the input partly reduced (see
+	 * {@link Reducer#reduceNoiseInPlace(String)}).
+	 */
+	public void setInPlace(boolean inPlace) {
+		this.inPlace = inPlace;
+	}
+
+	public boolean isCellOutput() {
+		return cellOutput;
+	}
+
+	/** Sets whether a new output is made as a cell image. */
+	public void setCellOutput(boolean cellOutput) {
+		this.cellOutput = cellOutput;
+	}
+
 	public void setNeighborhood(Neighborhood n) {
 		userProvidedNeighborhood = n;
 	}
@@ -143,6 +193,11 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 		return cancelReason != null;
 	}
 
+	@Override
+	public void cancel(String reason) {
+		cancelReason = reason == null ? "Canceled" : reason;
+	}
+
 	@Override
 	public String getCancelReason() {
 		return cancelReason;
@@ -153,6 +208,18 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 	private Neighborhood determineNeighborhood(int numDims) {
 		if (userProvidedNeighborhood != null) return userProvidedNeighborhood;
 		setNeighType();
+		return specifyNeighborhood(commandService, neighType, numDims, this);
+	}
+
+	/**
+	 * Runs the specifier of the given type of neighborhood and returns the
+	 * neighborhood it makes. If the specifier fails or is canceled the canceler
+	 * is canceled and null is returned. Shared with the other noise reduction
+	 * commands.
+	 */
+	static Neighborhood specifyNeighborhood(CommandService commandService,
+		NeighborhoodType neighType, int numDims, Cancelable canceler)
+	{
 		CommandModule module = null;
 		try {
 			Map<String,Object> inputs = new HashMap<String,Object>();
@@ -169,13 +236,13 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 				module = futureModule.get();
 			}
 		} catch (Exception e) {
-			cancelReason = e.getMessage();
+			canceler.cancel(e.getMessage());
 			return null;
 		}
 		// unnecessary:
 		//module.run();
 		if (module.isCanceled()) {
-			cancelReason = "Neighborhood specification cancelled by user";
+			canceler.cancel("Neighborhood specification cancelled by user");
 			return null;
 		}
 		return (Neighborhood) module.getOutputs().get("neighborhood");
@@ -189,9 +256,12 @@ public abstract class AbstractNoiseReducerPlugin<U extends RealType<U>>
 	}
 	
 	private void setNeighType() {
-		if (neighTypeString.equals(RADIAL_STRING))
-			neighType = NeighborhoodType.RADIAL;
-		else
-			neighType = NeighborhoodType.RECTANGULAR;
+		neighType = neighborhoodType(neighTypeString);
+	}
+
+	/** Returns the type of neighborhood named by a neighborhood type choice. */
+	static NeighborhoodType neighborhoodType(String choice) {
+		if (choice.equals(RADIAL_STRING)) return NeighborhoodType.RADIAL;
+		return NeighborhoodType.RECTANGULAR;
 	}
 }
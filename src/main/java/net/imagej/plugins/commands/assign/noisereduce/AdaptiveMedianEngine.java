@@ -0,0 +1,201 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import java.util.Arrays;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.Cancelable;
+
+/**
+ * Computes adaptive medians. A window is tested at each point. If its median
+ * is an impulse (equal to the window's min or max) the window grows by one
+ * step in X and Y and is tested again, up to a maximum number of windows. The
+ * point keeps its value if that value is not an impulse and otherwise takes
+ * the median. When no window passes the median of the largest is used.
+ * <p>
+ * The values of a window are kept in order. When the window grows only the
+ * ring of new values is sorted and merged in, so the order statistics of the
+ * smaller window are never recomputed. All buffers are allocated once per call
+ * of reduce().
+ */
+public class AdaptiveMedianEngine<U extends RealType<U>> implements
+	ReductionEngine<U>
+{
+
+	// -- instance variables --
+
+	private final NeighborhoodLines lines;
+	private final int[][] rings;
+	private final int center;
+
+	// -- constructor --
+
+	/**
+	 * @param below How far the first window reaches below its center along each
+	 *          dimension.
+	 * @param above How far the first window reaches above its center along each
+	 *          dimension.
+	 * @param numWindows The number of windows to try, the first included. Each
+	 *          window reaches one more position in X and Y than the last.
+	 */
+	public AdaptiveMedianEngine(final long[] below, final long[] above,
+		final int numWindows)
+	{
+		if (numWindows < 1) throw new IllegalArgumentException(
+			"there must be at least one window");
+		final int numDims = below.length;
+		final int grownDims = Math.min(2, numDims);
+		final long[] maxBelow = below.clone();
+		final long[] maxAbove = above.clone();
+		for (int d = 0; d < grownDims; d++) {
+			maxBelow[d] += numWindows - 1;
+			maxAbove[d] += numWindows - 1;
+		}
+		final OffsetPointSet points = OffsetPointSet.box(maxBelow, maxAbove);
+		lines = new NeighborhoodLines(points);
+
+		// assign each point to the first window that holds it
+		final long[] offsets = points.getOffsets();
+		final int size = (int) points.size();
+		final int[] windowOf = new int[size];
+		final int[] ringSizes = new int[numWindows];
+		int centerPoint = -1;
+		for (int p = 0; p < size; p++) {
+			long window = 0;
+			boolean isCenter = true;
+			for (int d = 0; d < numDims; d++) {
+				final long offset = offsets[p * numDims + d];
+				if (offset != 0) isCenter = false;
+				if (d < grownDims) {
+					window = Math.max(window, -offset - below[d]);
+					window = Math.max(window, offset - above[d]);
+				}
+			}
+			windowOf[p] = (int) window;
+			ringSizes[(int) window]++;
+			if (isCenter) centerPoint = p;
+		}
+		center = centerPoint;
+		rings = new int[numWindows][];
+		for (int w = 0; w < numWindows; w++)
+			rings[w] = new int[ringSizes[w]];
+		Arrays.fill(ringSizes, 0);
+		for (int p = 0; p < size; p++) {
+			final int w = windowOf[p];
+			rings[w][ringSizes[w]++] = p;
+		}
+	}
+
+	// -- ReductionEngine methods --
+
+	@Override
+	public void reduce(final RandomAccessible<U> input,
+		final RandomAccessibleInterval<U> output, final long[] origin,
+		final long[] span, final Cancelable canceler)
+	{
+		if (span[0] > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"rows are too long");
+		final int rowLength = (int) span[0];
+		final int size = lines.size();
+		final double[][] buffers = lines.createBuffers(rowLength);
+		final double[] ring = new double[size];
+		double[] sorted = new double[size];
+		double[] merged = new double[size];
+		final RandomAccess<U> in = input.randomAccess();
+		final RandomAccess<U> out = output.randomAccess();
+		final long[] pos = origin.clone();
+		do {
+			if (canceler != null && canceler.isCanceled()) return;
+			lines.gather(in, pos, rowLength, buffers);
+			out.setPosition(pos);
+			for (int x = 0; x < rowLength; x++) {
+				int n = 0;
+				double median = Double.NaN;
+				double value = Double.NaN;
+				boolean found = false;
+				for (int w = 0; w < rings.length && !found; w++) {
+					// merge the new ring into the ordered values
+					final int[] points = rings[w];
+					final int m = points.length;
+					for (int i = 0; i < m; i++)
+						ring[i] = sample(buffers, points[i], x);
+					Arrays.sort(ring, 0, m);
+					merge(sorted, n, ring, m, merged);
+					final double[] t = sorted;
+					sorted = merged;
+					merged = t;
+					n += m;
+
+					final double min = sorted[0];
+					final double max = sorted[n - 1];
+					median = n % 2 == 1 ? sorted[n / 2]
+						: (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+					if (min < median && median < max) {
+						final double v = sample(buffers, center, x);
+						value = min < v && v < max ? v : median;
+						found = true;
+					}
+				}
+				out.get().setReal(found ? value : median);
+				out.fwd(0);
+			}
+		}
+		while (NeighborhoodLines.nextRow(pos, origin, span));
+	}
+
+	// -- private helpers --
+
+	private double sample(final double[][] buffers, final int point,
+		final int x)
+	{
+		return buffers[lines.getLine(point)][lines.index(point, x)];
+	}
+
+	/** Merges two ordered runs of values into dst. */
+	private static void merge(final double[] a, final int na, final double[] b,
+		final int nb, final double[] dst)
+	{
+		int i = 0, j = 0, k = 0;
+		while (i < na && j < nb) {
+			dst[k++] = Double.compare(a[i], b[j]) <= 0 ? a[i++] : b[j++];
+		}
+		while (i < na)
+			dst[k++] = a[i++];
+		while (j < nb)
+			dst[k++] = b[j++];
+	}
+}
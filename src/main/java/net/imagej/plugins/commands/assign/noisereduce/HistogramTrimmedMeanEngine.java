@@ -0,0 +1,69 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Computes neighborhood trimmed means of integer images of at most 16 bits
+ * with a sliding histogram. The sum of the values left after trimming is read
+ * from the histogram without ordering any values.
+ */
+public class HistogramTrimmedMeanEngine<U extends RealType<U>> extends
+	AbstractHistogramEngine<U>
+{
+
+	private final int trim;
+
+	/**
+	 * @param trim The number of values to drop from each end of the ordered
+	 *          neighborhood.
+	 */
+	public HistogramTrimmedMeanEngine(final U type, final OffsetPointSet points,
+		final int trim)
+	{
+		super(type, points);
+		if (trim < 0) throw new IllegalArgumentException(
+			"trim must not be negative");
+		this.trim = trim;
+	}
+
+	// -- AbstractHistogramEngine methods --
+
+	@Override
+	protected double statistic(final SlidingHistogram histogram) {
+		final int size = histogram.size();
+		final int kept = size - 2 * trim;
+		if (kept <= 0) return 0.0 / kept;
+		return histogram.sumRanks(trim, size - trim) / kept;
+	}
+}
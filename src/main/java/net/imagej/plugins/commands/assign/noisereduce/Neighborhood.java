@@ -35,7 +35,8 @@ import net.imglib2.ops.pointset.PointSet;
 
 /**
  * A Neighborhood ties together a set of points ({@link PointSet}) and a text
- * description.
+ * description. Neighborhoods that can be copied for use by several threads at
+ * once implement {@link CopyableNeighborhood}.
  * 
  * @author Barry DeZonia
  */
@@ -0,0 +1,256 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * The input rows that a neighborhood reaches as it slides along dimension 0.
+ * Points of the neighborhood that share their offsets in all other dimensions
+ * lie on the same line. Engines gather each line of a row once into a primitive
+ * buffer and then read any point at any output position directly.
+ * <p>
+ * Also records which points leave the neighborhood (trailing points) and which
+ * enter it (leading points) when it moves one step along dimension 0.
+ */
+public class NeighborhoodLines {
+
+	// -- instance variables --
+
+	private final int numDims;
+	private final long[][] lineOffsets;
+	private final int[] pointLine;
+	private final int[] pointDx;
+	private final int minDx;
+	private final int maxDx;
+	private final int[] trailing;
+	private final int[] leading;
+
+	// -- constructor --
+
+	public NeighborhoodLines(final OffsetPointSet points) {
+		numDims = points.numDimensions();
+		final long[] offsets = points.getOffsets();
+		final int count = (int) points.size();
+		final Map<LineKey, Integer> lineIndices = new HashMap<LineKey, Integer>();
+		final List<long[]> lines = new ArrayList<long[]>();
+		pointLine = new int[count];
+		pointDx = new int[count];
+		int lo = Integer.MAX_VALUE;
+		int hi = Integer.MIN_VALUE;
+		for (int p = 0; p < count; p++) {
+			final long[] line = new long[numDims];
+			System.arraycopy(offsets, p * numDims, line, 0, numDims);
+			final long dx = line[0];
+			if (dx < Integer.MIN_VALUE || dx > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("neighborhood is too wide");
+			}
+			line[0] = 0;
+			final LineKey key = new LineKey(line);
+			Integer index = lineIndices.get(key);
+			if (index == null) {
+				index = lines.size();
+				lineIndices.put(key, index);
+				lines.add(line);
+			}
+			pointLine[p] = index;
+			pointDx[p] = (int) dx;
+			lo = Math.min(lo, (int) dx);
+			hi = Math.max(hi, (int) dx);
+		}
+		minDx = lo;
+		maxDx = hi;
+		lineOffsets = lines.toArray(new long[lines.size()][]);
+
+		// find the points at the ends of each run of points along a line
+		final int[][] lineDxs = new int[lineOffsets.length][];
+		final int[] lineCounts = new int[lineOffsets.length];
+		for (int p = 0; p < count; p++)
+			lineCounts[pointLine[p]]++;
+		for (int l = 0; l < lineDxs.length; l++)
+			lineDxs[l] = new int[lineCounts[l]];
+		Arrays.fill(lineCounts, 0);
+		for (int p = 0; p < count; p++) {
+			final int l = pointLine[p];
+			lineDxs[l][lineCounts[l]++] = pointDx[p];
+		}
+		for (int l = 0; l < lineDxs.length; l++)
+			Arrays.sort(lineDxs[l]);
+		final List<Integer> trail = new ArrayList<Integer>();
+		final List<Integer> lead = new ArrayList<Integer>();
+		for (int p = 0; p < count; p++) {
+			final int[] dxs = lineDxs[pointLine[p]];
+			if (Arrays.binarySearch(dxs, pointDx[p] - 1) < 0) trail.add(p);
+			if (Arrays.binarySearch(dxs, pointDx[p] + 1) < 0) lead.add(p);
+		}
+		trailing = toArray(trail);
+		leading = toArray(lead);
+	}
+
+	// -- public interface --
+
+	/** Returns the number of points in the neighborhood. */
+	public int size() {
+		return pointLine.length;
+	}
+
+	/** Returns the number of distinct lines the neighborhood touches. */
+	public int numLines() {
+		return lineOffsets.length;
+	}
+
+	/** Returns the line that a point of the neighborhood lies on. */
+	public int getLine(final int point) {
+		return pointLine[point];
+	}
+
+	/** Returns the offset along dimension 0 of a point of the neighborhood. */
+	public int getDx(final int point) {
+		return pointDx[point];
+	}
+
+	public int getMinDx() {
+		return minDx;
+	}
+
+	public int getMaxDx() {
+		return maxDx;
+	}
+
+	/**
+	 * Returns the points whose samples are no longer in the neighborhood after
+	 * it moves one step forward along dimension 0.
+	 */
+	public int[] getTrailingPoints() {
+		return trailing.clone();
+	}
+
+	/**
+	 * Returns the points whose samples were not in the neighborhood before it
+	 * moved one step forward along dimension 0.
+	 */
+	public int[] getLeadingPoints() {
+		return leading.clone();
+	}
+
+	/** Allocates buffers for gathering rows of the given length. */
+	public double[][] createBuffers(final int rowLength) {
+		return new double[lineOffsets.length][rowLength + maxDx - minDx];
+	}
+
+	/**
+	 * Returns the index into a line buffer at which a point of the neighborhood
+	 * is found when the neighborhood sits at position x of the gathered row.
+	 */
+	public int index(final int point, final int x) {
+		return x + pointDx[point] - minDx;
+	}
+
+	/**
+	 * Gathers the values of every line for the row of output that starts at
+	 * rowStart and has the given length.
+	 * 
+	 * @param input Access to the (extended) input image.
+	 * @param rowStart The position of the first output point of the row.
+	 * @param rowLength The number of output points in the row.
+	 * @param buffers Buffers made by {@link #createBuffers(int)}.
+	 */
+	public <U extends RealType<U>> void gather(final RandomAccess<U> input,
+		final long[] rowStart, final int rowLength, final double[][] buffers)
+	{
+		final int length = rowLength + maxDx - minDx;
+		for (int l = 0; l < lineOffsets.length; l++) {
+			final long[] offset = lineOffsets[l];
+			for (int d = 1; d < numDims; d++) {
+				input.setPosition(rowStart[d] + offset[d], d);
+			}
+			input.setPosition(rowStart[0] + minDx, 0);
+			final double[] buffer = buffers[l];
+			for (int i = 0; i < length; i++) {
+				buffer[i] = input.get().getRealDouble();
+				input.fwd(0);
+			}
+		}
+	}
+
+	/**
+	 * Moves pos to the start of the next row of the box that starts at origin and
+	 * has the given span. Returns false when there are no more rows.
+	 */
+	public static boolean nextRow(final long[] pos, final long[] origin,
+		final long[] span)
+	{
+		for (int d = 1; d < pos.length; d++) {
+			pos[d]++;
+			if (pos[d] < origin[d] + span[d]) return true;
+			pos[d] = origin[d];
+		}
+		return false;
+	}
+
+	// -- private helpers --
+
+	private static int[] toArray(final List<Integer> list) {
+		final int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+
+	/** Wraps the offsets of a line so they can be used as a map key. */
+	private static class LineKey {
+
+		private final long[] offsets;
+
+		public LineKey(final long[] offsets) {
+			this.offsets = offsets;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof LineKey && Arrays.equals(offsets,
+				((LineKey) o).offsets);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(offsets);
+		}
+	}
+}
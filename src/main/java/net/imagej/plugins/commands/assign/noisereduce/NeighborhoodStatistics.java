@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import java.util.List;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.Cancelable;
+
+/**
+ * Computes several statistics of every neighborhood of an image at once. Each
+ * neighborhood is gathered a single time into a primitive scratch buffer and
+ * all chosen statistics are computed from it, each into its own output.
+ * <p>
+ * The statistics match those of the single statistic noise reducers. A NaN in
+ * a neighborhood makes its minimum, maximum and midpoint NaN, as with
+ * {@link SeparableBoxEngine}. Like a {@link ReductionEngine}, an instance can
+ * reduce several boxes of the image at the same time.
+ */
+public class NeighborhoodStatistics<U extends RealType<U>> {
+
+	// -- constants --
+
+	/** The statistics that can be computed. */
+	public enum Statistic {
+		MEAN("Mean"), MEDIAN("Median"), MIN("Minimum"), MAX("Maximum"), MIDPOINT(
+			"Midpoint"), GEOMETRIC_MEAN("Geometric Mean"), HARMONIC_MEAN(
+				"Harmonic Mean");
+
+		private final String label;
+
+		private Statistic(final String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	// -- instance variables --
+
+	private final NeighborhoodLines lines;
+	private final Statistic[] statistics;
+
+	// -- constructor --
+
+	public NeighborhoodStatistics(final OffsetPointSet points,
+		final List<Statistic> statistics)
+	{
+		if (statistics.isEmpty()) throw new IllegalArgumentException(
+			"no statistics chosen");
+		this.lines = new NeighborhoodLines(points);
+		this.statistics = statistics.toArray(new Statistic[statistics.size()]);
+	}
+
+	// -- public interface --
+
+	/**
+	 * Computes the statistics of every point in the box that starts at origin
+	 * and has the given span. The box must cover whole rows along dimension 0.
+	 * 
+	 * @param input The input image, extended so it can be read anywhere.
+	 * @param outputs One output per statistic, in the order they were given.
+	 * @param origin The first point of the box.
+	 * @param span The size of the box along each dimension.
+	 * @param canceler Tells when to stop early. May be null.
+	 */
+	public void reduce(final RandomAccessible<U> input,
+		final List<? extends RandomAccessibleInterval<U>> outputs,
+		final long[] origin, final long[] span, final Cancelable canceler)
+	{
+		if (outputs.size() != statistics.length) {
+			throw new IllegalArgumentException(
+				"need one output per statistic");
+		}
+		if (span[0] > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"rows are too long");
+		final int rowLength = (int) span[0];
+		final int size = lines.size();
+		final int[] pointLines = new int[size];
+		final int[] pointIndices = new int[size];
+		for (int p = 0; p < size; p++) {
+			pointLines[p] = lines.getLine(p);
+			pointIndices[p] = lines.index(p, 0);
+		}
+		final double[][] buffers = lines.createBuffers(rowLength);
+		final double[] scratch = new double[size];
+		final double[] results = new double[statistics.length];
+		final boolean needMedian = uses(Statistic.MEDIAN);
+		final boolean needLogs = uses(Statistic.GEOMETRIC_MEAN);
+		final boolean needInverses = uses(Statistic.HARMONIC_MEAN);
+		final RandomAccess<U> in = input.randomAccess();
+		final RandomAccess<U>[] out = newAccessArray(outputs.size());
+		for (int s = 0; s < out.length; s++)
+			out[s] = outputs.get(s).randomAccess();
+		final long[] pos = origin.clone();
+		do {
+			if (canceler != null && canceler.isCanceled()) return;
+			lines.gather(in, pos, rowLength, buffers);
+			for (final RandomAccess<U> access : out)
+				access.setPosition(pos);
+			for (int x = 0; x < rowLength; x++) {
+				// one pass over the neighborhood for all the sums and extremes
+				double sum = 0, logSum = 0, inverseSum = 0;
+				double min = Double.POSITIVE_INFINITY;
+				double max = Double.NEGATIVE_INFINITY;
+				for (int p = 0; p < size; p++) {
+					final double v = buffers[pointLines[p]][pointIndices[p] + x];
+					scratch[p] = v;
+					sum += v;
+					if (needLogs) logSum += Math.log(v);
+					if (needInverses) inverseSum += 1 / v;
+					min = Math.min(min, v);
+					max = Math.max(max, v);
+				}
+				final double median = needMedian ? median(scratch, size) : 0;
+				for (int s = 0; s < statistics.length; s++) {
+					switch (statistics[s]) {
+						case MEAN:
+							results[s] = sum / size;
+							break;
+						case MEDIAN:
+							results[s] = median;
+							break;
+						case MIN:
+							results[s] = min;
+							break;
+						case MAX:
+							results[s] = max;
+							break;
+						case MIDPOINT:
+							results[s] = (min + max) / 2;
+							break;
+						case GEOMETRIC_MEAN:
+							results[s] = Math.exp(logSum / size);
+							break;
+						case HARMONIC_MEAN:
+							results[s] = size / inverseSum;
+							break;
+					}
+				}
+				for (int s = 0; s < out.length; s++) {
+					out[s].get().setReal(results[s]);
+					out[s].fwd(0);
+				}
+			}
+		}
+		while (NeighborhoodLines.nextRow(pos, origin, span));
+	}
+
+	// -- private helpers --
+
+	private boolean uses(final Statistic statistic) {
+		for (final Statistic s : statistics) {
+			if (s == statistic) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Averages the two middle values when there is an even number. NaNs rank
+	 * last, as they do when sorting.
+	 */
+	private static double median(final double[] values, final int n) {
+		final int k = (n - 1) / 2;
+		Selection.select(values, 0, n, k);
+		if (n % 2 == 1) return values[k];
+		double next = values[k + 1];
+		for (int i = k + 2; i < n; i++) {
+			final double v = values[i];
+			if (v < next || (next != next && v == v)) next = v;
+		}
+		return (values[k] + next) / 2;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RandomAccess<U>[] newAccessArray(final int length) {
+		return new RandomAccess[length];
+	}
+}
@@ -58,7 +58,8 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 /**
- * Reduces noise in an image by applying an adaptive median algorithm.
+ * Reduces noise in an image by applying an adaptive median algorithm. The
+ * maximum window is set by the number of expansions.
  * 
  * @author Barry DeZonia
  */
@@ -115,7 +116,51 @@ public class NoiseReductionAdaptiveMedian<U extends RealType<U>> extends
 		final Reducer<U, DoubleType> reducer =
 			new Reducer<U, DoubleType>(context, inputImg, getFunction(otherFunc,
 				pointSets), pointSets.get(0));
+		final int numDims = input.numDimensions();
+		reducer.setEngine(new AdaptiveMedianEngine<U>(offsets(windowNegWidthSpan,
+			windowNegHeightSpan, numDims), offsets(windowPosWidthSpan,
+				windowPosHeightSpan, numDims), windowExpansions));
+		reducer.setCanceler(this);
 		output = reducer.reduceNoise("Adaptive window neighborhood");
+		// NB - a canceled reduction is incomplete so it is not output
+		if (isCanceled()) output = null;
+	}
+
+	public void setInput(final Dataset ds) {
+		input = ds;
+	}
+
+	public Dataset getInput() {
+		return input;
+	}
+
+	public Dataset getOutput() {
+		return output;
+	}
+
+	/**
+	 * Sets the size of the first window: how far it reaches left, up, right and
+	 * down from its center.
+	 */
+	public void setWindow(final int negWidth, final int negHeight,
+		final int posWidth, final int posHeight)
+	{
+		windowNegWidthSpan = negWidth;
+		windowNegHeightSpan = negHeight;
+		windowPosWidthSpan = posWidth;
+		windowPosHeightSpan = posHeight;
+	}
+
+	/**
+	 * Sets the number of windows tried. The largest window reaches this many
+	 * positions less one further than the first in each direction.
+	 */
+	public void setWindowExpansions(final int expansions) {
+		windowExpansions = expansions;
+	}
+
+	public int getWindowExpansions() {
+		return windowExpansions;
 	}
 
 	// -- private helpers --
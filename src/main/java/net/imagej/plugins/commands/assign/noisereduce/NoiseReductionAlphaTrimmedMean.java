@@ -74,6 +74,20 @@ public class NoiseReductionAlphaTrimmedMean<T extends RealType<T>> extends
 		return new RealAlphaTrimmedMeanFunction<DoubleType>(otherFunc, alpha);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!(neighborhood.getPoints() instanceof OffsetPointSet)) return null;
+		final OffsetPointSet points = (OffsetPointSet) neighborhood.getPoints();
+		final int trim = (int) (alpha * points.size());
+		if (trim < 0) return null;
+		if (HistogramTrimmedMeanEngine.isSupported(type)) {
+			return new HistogramTrimmedMeanEngine<T>(type, points, trim);
+		}
+		return new SelectionTrimmedMeanEngine<T>(points, trim);
+	}
+
 	public void setAlpha(final double alpha) {
 		this.alpha = alpha;
 	}
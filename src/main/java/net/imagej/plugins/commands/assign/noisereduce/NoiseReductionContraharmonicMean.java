@@ -71,6 +71,16 @@ public class NoiseReductionContraharmonicMean<T extends RealType<T>> extends
 		return new RealContraharmonicMeanFunction<DoubleType>(otherFunc, order);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!SummedAreaEngine.isSupported(neighborhood)) return null;
+		return new SummedAreaEngine<T>(
+			SummedAreaEngine.Statistic.CONTRAHARMONIC_MEAN, order,
+			(OffsetPointSet) neighborhood.getPoints());
+	}
+
 	public void setOrder(final double val) {
 		order = val;
 	}
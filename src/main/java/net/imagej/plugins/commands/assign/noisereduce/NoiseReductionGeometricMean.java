@@ -67,4 +67,14 @@ public class NoiseReductionGeometricMean<T extends RealType<T>> extends
 		return new RealGeometricMeanFunction<DoubleType>(otherFunc);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!SummedAreaEngine.isSupported(neighborhood)) return null;
+		return new SummedAreaEngine<T>(
+			SummedAreaEngine.Statistic.GEOMETRIC_MEAN,
+			(OffsetPointSet) neighborhood.getPoints());
+	}
+
 }
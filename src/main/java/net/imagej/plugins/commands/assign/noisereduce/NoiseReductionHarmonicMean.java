@@ -67,4 +67,14 @@ public class NoiseReductionHarmonicMean<T extends RealType<T>> extends
 		return new RealHarmonicMeanFunction<DoubleType>(otherFunc);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!SummedAreaEngine.isSupported(neighborhood)) return null;
+		return new SummedAreaEngine<T>(
+			SummedAreaEngine.Statistic.HARMONIC_MEAN,
+			(OffsetPointSet) neighborhood.getPoints());
+	}
+
 }
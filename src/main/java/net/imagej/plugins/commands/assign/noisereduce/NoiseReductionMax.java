@@ -66,4 +66,13 @@ public class NoiseReductionMax<T extends RealType<T>> extends
 		return new RealMaxFunction<DoubleType>(otherFunc);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!SeparableBoxEngine.isSupported(neighborhood)) return null;
+		return new SeparableBoxEngine<T>(SeparableBoxEngine.Statistic.MAX,
+			(OffsetPointSet) neighborhood.getPoints());
+	}
+
 }
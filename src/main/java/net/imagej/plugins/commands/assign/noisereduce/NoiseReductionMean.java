@@ -68,4 +68,13 @@ public class NoiseReductionMean<T extends RealType<T>> extends
 		return new RealArithmeticMeanFunction<DoubleType>(otherFunc);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!SeparableBoxEngine.isSupported(neighborhood)) return null;
+		return new SeparableBoxEngine<T>(SeparableBoxEngine.Statistic.MEAN,
+			(OffsetPointSet) neighborhood.getPoints());
+	}
+
 }
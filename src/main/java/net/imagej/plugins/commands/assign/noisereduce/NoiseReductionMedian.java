@@ -45,7 +45,8 @@ import org.scijava.plugin.Plugin;
 
 /**
  * Reduces noise in an image by replacing each pixel with the calculated median
- * of neighboring values.
+ * of neighboring values. Integer images of up to 16 bits use a sliding
+ * histogram.
  * 
  * @author Barry DeZonia
  */
@@ -66,4 +67,13 @@ public class NoiseReductionMedian<T extends RealType<T>> extends
 		return new RealMedianFunction<DoubleType>(otherFunc);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!HistogramMedianEngine.isSupported(type, neighborhood)) return null;
+		return new HistogramMedianEngine<T>(type,
+			(OffsetPointSet) neighborhood.getPoints());
+	}
+
 }
@@ -66,4 +66,13 @@ public class NoiseReductionMidpoint<T extends RealType<T>> extends
 		return new RealMidpointFunction<DoubleType>(otherFunc);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!SeparableBoxEngine.isSupported(neighborhood)) return null;
+		return new SeparableBoxEngine<T>(SeparableBoxEngine.Statistic.MIDPOINT,
+			(OffsetPointSet) neighborhood.getPoints());
+	}
+
 }
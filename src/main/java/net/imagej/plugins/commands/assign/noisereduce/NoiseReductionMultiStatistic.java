@@ -0,0 +1,413 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.imagej.Dataset;
+import net.imagej.DefaultDataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imagej.plugins.commands.assign.ParallelTasks;
+import net.imagej.plugins.commands.assign.noisereduce.NeighborhoodStatistics.Statistic;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.CommandService;
+import org.scijava.command.ContextCommand;
+import org.scijava.menu.MenuConstants;
+import org.scijava.plugin.Attr;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Computes several noise reduction statistics of an image in one pass. Each
+ * neighborhood is visited once and every chosen statistic is computed from it.
+ * The results are either one dataset per statistic or the channels of a
+ * single dataset.
+ */
+@Plugin(type = Command.class, menu = {
+	@Menu(label = MenuConstants.PROCESS_LABEL,
+		weight = MenuConstants.PROCESS_WEIGHT,
+		mnemonic = MenuConstants.PROCESS_MNEMONIC),
+	@Menu(label = "Noise", mnemonic = 'n'),
+	@Menu(label = "Noise Reduction", mnemonic = 'r'),
+	@Menu(label = "Multiple Statistics...") }, headless = true, attrs = { @Attr(name = "no-legacy") })
+public class NoiseReductionMultiStatistic<U extends RealType<U>> extends
+	ContextCommand
+{
+	// -- constants --
+
+	/** Number of tiles per thread. More tiles than threads balances load. */
+	private static final int TILES_PER_THREAD = 4;
+
+	// -- Parameters --
+
+	@Parameter
+	private CommandService commandService;
+
+	@Parameter(required = false)
+	private StatusService statusService;
+
+	@Parameter(required = false)
+	private ThreadService threadService;
+
+	@Parameter
+	private Dataset input;
+
+	@Parameter(label = "Neighborhood type", choices = {
+		AbstractNoiseReducerPlugin.RADIAL_STRING,
+		AbstractNoiseReducerPlugin.RECTANGULAR_STRING })
+	private String neighTypeString = AbstractNoiseReducerPlugin.RADIAL_STRING;
+
+	@Parameter(label = "Mean")
+	private boolean mean = true;
+
+	@Parameter(label = "Median")
+	private boolean median = true;
+
+	@Parameter(label = "Minimum")
+	private boolean min;
+
+	@Parameter(label = "Maximum")
+	private boolean max;
+
+	@Parameter(label = "Midpoint")
+	private boolean midpoint;
+
+	@Parameter(label = "Geometric mean")
+	private boolean geometricMean;
+
+	@Parameter(label = "Harmonic mean")
+	private boolean harmonicMean;
+
+	@Parameter(label = "Output statistics as channels of one dataset")
+	private boolean asChannels;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset output;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset meanOutput;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset medianOutput;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset minOutput;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset maxOutput;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset midpointOutput;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset geometricMeanOutput;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private Dataset harmonicMeanOutput;
+
+	// -- instance variables --
+
+	private Neighborhood userProvidedNeighborhood;
+
+	private int numThreads = ParallelTasks.defaultThreadCount();
+
+	// -- Command methods --
+
+	@Override
+	public void run() {
+		final List<Statistic> statistics = chosenStatistics();
+		if (statistics.isEmpty()) {
+			cancel("No statistics chosen");
+			return;
+		}
+		final Neighborhood neighborhood = determineNeighborhood();
+		if (neighborhood == null) return;
+		if (!(neighborhood.getPoints() instanceof OffsetPointSet)) {
+			cancel("Neighborhood is not made of fixed offsets");
+			return;
+		}
+		@SuppressWarnings("unchecked")
+		final ImgPlus<U> inputImg = (ImgPlus<U>) input.getImgPlus();
+		final NeighborhoodStatistics<U> gatherer = new NeighborhoodStatistics<U>(
+			(OffsetPointSet) neighborhood.getPoints(), statistics);
+
+		// make the outputs
+		final List<ImgPlus<U>> images = new ArrayList<ImgPlus<U>>();
+		final List<RandomAccessibleInterval<U>> outputs =
+			new ArrayList<RandomAccessibleInterval<U>>();
+		ImgPlus<U> stack = null;
+		if (asChannels) {
+			stack = createStack(inputImg, statistics.size());
+			final int statDim = stack.numDimensions() - 1;
+			for (int s = 0; s < statistics.size(); s++)
+				outputs.add(Views.hyperSlice(stack, statDim, s));
+		}
+		else {
+			for (final Statistic statistic : statistics) {
+				final ImgPlus<U> image = createImage(inputImg, statistic);
+				images.add(image);
+				outputs.add(image);
+			}
+		}
+
+		showStatus(neighborhood.getDescription() + " ... beginning processing");
+		reduce(inputImg, gatherer, outputs);
+		if (isCanceled()) {
+			showStatus(neighborhood.getDescription() + " ... canceled");
+			return;
+		}
+		showStatus(neighborhood.getDescription() + " ... completed processing");
+
+		if (stack != null) {
+			output = new DefaultDataset(getContext(), stack);
+			return;
+		}
+		for (int s = 0; s < statistics.size(); s++) {
+			setOutput(statistics.get(s), new DefaultDataset(getContext(), images
+				.get(s)));
+		}
+	}
+
+	// -- public interface --
+
+	public void setInput(final Dataset ds) {
+		input = ds;
+	}
+
+	public Dataset getInput() {
+		return input;
+	}
+
+	public void setNeighborhood(final Neighborhood n) {
+		userProvidedNeighborhood = n;
+	}
+
+	/** Chooses whether a statistic is computed. */
+	public void setStatistic(final Statistic statistic, final boolean value) {
+		switch (statistic) {
+			case MEAN:
+				mean = value;
+				break;
+			case MEDIAN:
+				median = value;
+				break;
+			case MIN:
+				min = value;
+				break;
+			case MAX:
+				max = value;
+				break;
+			case MIDPOINT:
+				midpoint = value;
+				break;
+			case GEOMETRIC_MEAN:
+				geometricMean = value;
+				break;
+			case HARMONIC_MEAN:
+				harmonicMean = value;
+				break;
+		}
+	}
+
+	public boolean isAsChannels() {
+		return asChannels;
+	}
+
+	public void setAsChannels(final boolean asChannels) {
+		this.asChannels = asChannels;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(final int numThreads) {
+		if (numThreads < 1) throw new IllegalArgumentException(
+			"number of threads must be at least 1");
+		this.numThreads = numThreads;
+	}
+
+	/** Returns the multichannel output, if statistics were output as channels. */
+	public Dataset getOutput() {
+		return output;
+	}
+
+	/** Returns the output of a statistic, if output separately. */
+	public Dataset getOutput(final Statistic statistic) {
+		switch (statistic) {
+			case MEAN:
+				return meanOutput;
+			case MEDIAN:
+				return medianOutput;
+			case MIN:
+				return minOutput;
+			case MAX:
+				return maxOutput;
+			case MIDPOINT:
+				return midpointOutput;
+			case GEOMETRIC_MEAN:
+				return geometricMeanOutput;
+			default:
+				return harmonicMeanOutput;
+		}
+	}
+
+	// -- private helpers --
+
+	private List<Statistic> chosenStatistics() {
+		final List<Statistic> list = new ArrayList<Statistic>();
+		if (mean) list.add(Statistic.MEAN);
+		if (median) list.add(Statistic.MEDIAN);
+		if (min) list.add(Statistic.MIN);
+		if (max) list.add(Statistic.MAX);
+		if (midpoint) list.add(Statistic.MIDPOINT);
+		if (geometricMean) list.add(Statistic.GEOMETRIC_MEAN);
+		if (harmonicMean) list.add(Statistic.HARMONIC_MEAN);
+		return list;
+	}
+
+	private void setOutput(final Statistic statistic, final Dataset ds) {
+		switch (statistic) {
+			case MEAN:
+				meanOutput = ds;
+				break;
+			case MEDIAN:
+				medianOutput = ds;
+				break;
+			case MIN:
+				minOutput = ds;
+				break;
+			case MAX:
+				maxOutput = ds;
+				break;
+			case MIDPOINT:
+				midpointOutput = ds;
+				break;
+			case GEOMETRIC_MEAN:
+				geometricMeanOutput = ds;
+				break;
+			case HARMONIC_MEAN:
+				harmonicMeanOutput = ds;
+				break;
+		}
+	}
+
+	/** Computes all statistics over tiles of the image in parallel. */
+	private void reduce(final ImgPlus<U> img,
+		final NeighborhoodStatistics<U> gatherer,
+		final List<RandomAccessibleInterval<U>> outputs)
+	{
+		final RandomAccessible<U> source = Views.extendMirrorDouble(img);
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+		final int threads =
+			img.firstElement().getBitsPerPixel() % 8 == 0 ? numThreads : 1;
+		int splitDim = 0;
+		for (int d = 1; d < dims.length; d++) {
+			if (splitDim == 0 || dims[d] > dims[splitDim]) splitDim = d;
+		}
+		final long[] bounds = ParallelTasks.split(dims[splitDim],
+			threads == 1 ? 1 : threads * TILES_PER_THREAD);
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < bounds.length - 1; t++) {
+			if (bounds[t + 1] == bounds[t]) continue;
+			final long[] origin = new long[dims.length];
+			final long[] span = dims.clone();
+			origin[splitDim] = bounds[t];
+			span[splitDim] = bounds[t + 1] - bounds[t];
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					gatherer.reduce(source, outputs, origin, span,
+						NoiseReductionMultiStatistic.this);
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(threadService, tasks, threads);
+	}
+
+	/** Makes an image like the input with one more axis for the statistics. */
+	private ImgPlus<U> createStack(final ImgPlus<U> img, final int count) {
+		final int numDims = img.numDimensions();
+		final long[] dims = new long[numDims + 1];
+		img.dimensions(dims);
+		dims[numDims] = count;
+		final Img<U> newImg = img.factory().create(dims, img.firstElement());
+		final CalibratedAxis[] axes = new CalibratedAxis[numDims + 1];
+		for (int d = 0; d < numDims; d++)
+			axes[d] = img.axis(d).copy();
+		final AxisType type = img.dimensionIndex(Axes.CHANNEL) < 0
+			? Axes.CHANNEL : Axes.get("Statistic");
+		axes[numDims] = new DefaultLinearAxis(type);
+		return new ImgPlus<U>(newImg, img.getName() + " statistics", axes);
+	}
+
+	private ImgPlus<U> createImage(final ImgPlus<U> img,
+		final Statistic statistic)
+	{
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+		final ImgPlus<U> image = new ImgPlus<U>(img.factory().create(dims, img
+			.firstElement()), img);
+		image.setName(img.getName() + " " + statistic.getLabel());
+		return image;
+	}
+
+	private Neighborhood determineNeighborhood() {
+		if (userProvidedNeighborhood != null) return userProvidedNeighborhood;
+		return AbstractNoiseReducerPlugin.specifyNeighborhood(commandService,
+			AbstractNoiseReducerPlugin.neighborhoodType(neighTypeString), input
+				.numDimensions(), this);
+	}
+
+	private void showStatus(final String message) {
+		if (statusService != null) statusService.showStatus(message);
+	}
+}
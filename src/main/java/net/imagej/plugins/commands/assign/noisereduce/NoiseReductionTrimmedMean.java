@@ -74,6 +74,20 @@ public class NoiseReductionTrimmedMean<T extends RealType<T>> extends
 			halfTrimWidth);
 	}
 
+	@Override
+	public ReductionEngine<T> getEngine(final T type,
+		final Neighborhood neighborhood)
+	{
+		if (!(neighborhood.getPoints() instanceof OffsetPointSet)) return null;
+		final OffsetPointSet points = (OffsetPointSet) neighborhood.getPoints();
+		final int trim = halfTrimWidth;
+		if (trim < 0) return null;
+		if (HistogramTrimmedMeanEngine.isSupported(type)) {
+			return new HistogramTrimmedMeanEngine<T>(type, points, trim);
+		}
+		return new SelectionTrimmedMeanEngine<T>(points, trim);
+	}
+
 	public void setHalfTrimWidth(final int halfWidth) {
 		halfTrimWidth = halfWidth;
 	}
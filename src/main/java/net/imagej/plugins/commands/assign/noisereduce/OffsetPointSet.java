@@ -0,0 +1,326 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import net.imglib2.AbstractCursor;
+import net.imglib2.ops.pointset.AbstractPointSet;
+import net.imglib2.ops.pointset.PointSet;
+import net.imglib2.ops.pointset.PointSetIterator;
+
+/**
+ * A {@link PointSet} made of a fixed table of offsets from a movable origin.
+ * The offsets are worked out once when a neighborhood is built, so iterating
+ * the set tests nothing: every offset is a member. Translating the set only
+ * moves its origin. Copies share the (read only) offset table.
+ * <p>
+ * The table is stored flat: the offsets of point {@code i} are at
+ * {@code [i * numDims, (i+1) * numDims)}. Points are kept in the order they
+ * were given so reductions see the same sequence of values as before.
+ */
+public class OffsetPointSet extends AbstractPointSet {
+
+	// -- instance variables --
+
+	private final int numDims;
+	private final int count;
+	private final long[] offsets;
+	private final long[] minOffsets;
+	private final long[] maxOffsets;
+	private final long[] origin;
+	private final long[] boundMin;
+	private final long[] boundMax;
+
+	// -- constructors --
+
+	/**
+	 * Creates a point set from a flat table of offsets. The table is not copied
+	 * and must not be changed afterwards.
+	 * 
+	 * @param numDims The dimensionality of the points.
+	 * @param offsets numDims offsets per point.
+	 */
+	public OffsetPointSet(final int numDims, final long[] offsets) {
+		if (numDims < 1) throw new IllegalArgumentException(
+			"point set must have at least one dimension");
+		if (offsets.length == 0 || offsets.length % numDims != 0) {
+			throw new IllegalArgumentException(
+				"offset table must hold a whole, nonzero number of points");
+		}
+		this.numDims = numDims;
+		this.count = offsets.length / numDims;
+		this.offsets = offsets;
+		this.minOffsets = new long[numDims];
+		this.maxOffsets = new long[numDims];
+		for (int d = 0; d < numDims; d++) {
+			minOffsets[d] = Long.MAX_VALUE;
+			maxOffsets[d] = Long.MIN_VALUE;
+		}
+		for (int i = 0; i < offsets.length; i++) {
+			final int d = i % numDims;
+			if (offsets[i] < minOffsets[d]) minOffsets[d] = offsets[i];
+			if (offsets[i] > maxOffsets[d]) maxOffsets[d] = offsets[i];
+		}
+		this.origin = new long[numDims];
+		this.boundMin = new long[numDims];
+		this.boundMax = new long[numDims];
+		updateBounds();
+	}
+
+	private OffsetPointSet(final OffsetPointSet other) {
+		this.numDims = other.numDims;
+		this.count = other.count;
+		this.offsets = other.offsets;
+		this.minOffsets = other.minOffsets;
+		this.maxOffsets = other.maxOffsets;
+		this.origin = other.origin.clone();
+		this.boundMin = other.boundMin.clone();
+		this.boundMax = other.boundMax.clone();
+	}
+
+	// -- static methods --
+
+	/**
+	 * Creates the point set of a box that reaches below[d] positions below and
+	 * above[d] positions above the origin along each dimension d. Dimension 0
+	 * varies fastest, as in a HyperVolumePointSet.
+	 */
+	public static OffsetPointSet box(final long[] below, final long[] above) {
+		final int numDims = below.length;
+		long count = 1;
+		for (int d = 0; d < numDims; d++) {
+			if (below[d] < 0 || above[d] < 0) throw new IllegalArgumentException(
+				"box offsets must not be negative");
+			count *= 1 + below[d] + above[d];
+		}
+		if (count * numDims > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"box is too large");
+		final long[] offsets = new long[(int) (count * numDims)];
+		final long[] pos = new long[numDims];
+		for (int d = 0; d < numDims; d++)
+			pos[d] = -below[d];
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(pos, 0, offsets, i * numDims, numDims);
+			for (int d = 0; d < numDims; d++) {
+				if (pos[d] < above[d]) {
+					pos[d]++;
+					break;
+				}
+				pos[d] = -below[d];
+			}
+		}
+		return new OffsetPointSet(numDims, offsets);
+	}
+
+	// -- OffsetPointSet methods --
+
+	/**
+	 * Returns a copy of the flat offset table: numDims offsets per point.
+	 */
+	public long[] getOffsets() {
+		return offsets.clone();
+	}
+
+	/**
+	 * Returns the offset of each point as a single index into storage with the
+	 * given strides. Array backed images can visit a neighborhood by adding these
+	 * to the index of its origin.
+	 */
+	public long[] linearOffsets(final long[] strides) {
+		if (strides.length != numDims) throw new IllegalArgumentException(
+			"strides do not match the dimensionality of the point set");
+		final long[] linear = new long[count];
+		for (int i = 0; i < count; i++) {
+			long index = 0;
+			for (int d = 0; d < numDims; d++) {
+				index += offsets[i * numDims + d] * strides[d];
+			}
+			linear[i] = index;
+		}
+		return linear;
+	}
+
+	/** Returns the smallest offset of any point along each dimension. */
+	public long[] getMinOffsets() {
+		return minOffsets.clone();
+	}
+
+	/** Returns the largest offset of any point along each dimension. */
+	public long[] getMaxOffsets() {
+		return maxOffsets.clone();
+	}
+
+	/**
+	 * Returns true if the points fill the box between the smallest and largest
+	 * offsets. Offsets are assumed to be distinct.
+	 */
+	public boolean isBox() {
+		long volume = 1;
+		for (int d = 0; d < numDims; d++) {
+			volume *= maxOffsets[d] - minOffsets[d] + 1;
+			if (volume > count) return false;
+		}
+		return volume == count;
+	}
+
+	// -- PointSet methods --
+
+	@Override
+	public long[] getOrigin() {
+		return origin;
+	}
+
+	@Override
+	public void translate(final long[] deltas) {
+		for (int d = 0; d < numDims; d++) {
+			origin[d] += deltas[d];
+		}
+		updateBounds();
+		invalidateBounds();
+	}
+
+	@Override
+	public PointSetIterator iterator() {
+		return new OffsetPointSetIterator();
+	}
+
+	@Override
+	public int numDimensions() {
+		return numDims;
+	}
+
+	@Override
+	public boolean includes(final long[] point) {
+		for (int i = 0; i < count; i++) {
+			final int base = i * numDims;
+			boolean match = true;
+			for (int d = 0; d < numDims && match; d++) {
+				match = point[d] == origin[d] + offsets[base + d];
+			}
+			if (match) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public long[] findBoundMin() {
+		return boundMin;
+	}
+
+	@Override
+	public long[] findBoundMax() {
+		return boundMax;
+	}
+
+	@Override
+	public long size() {
+		return count;
+	}
+
+	@Override
+	public OffsetPointSet copy() {
+		return new OffsetPointSet(this);
+	}
+
+	// -- private helpers --
+
+	private void updateBounds() {
+		for (int d = 0; d < numDims; d++) {
+			boundMin[d] = origin[d] + minOffsets[d];
+			boundMax[d] = origin[d] + maxOffsets[d];
+		}
+	}
+
+	private class OffsetPointSetIterator extends AbstractCursor<long[]>
+		implements PointSetIterator
+	{
+
+		private final long[] pos;
+		private int index;
+
+		public OffsetPointSetIterator() {
+			super(numDims);
+			pos = new long[numDims];
+			index = -1;
+		}
+
+		public OffsetPointSetIterator(final OffsetPointSetIterator other) {
+			super(numDims);
+			pos = other.pos.clone();
+			index = other.index;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index + 1 < count;
+		}
+
+		@Override
+		public void fwd() {
+			index++;
+			final int base = index * numDims;
+			for (int d = 0; d < numDims; d++) {
+				pos[d] = origin[d] + offsets[base + d];
+			}
+		}
+
+		@Override
+		public void reset() {
+			index = -1;
+		}
+
+		@Override
+		public long[] get() {
+			return pos;
+		}
+
+		@Override
+		public void localize(final long[] position) {
+			for (int d = 0; d < numDims; d++) {
+				position[d] = pos[d];
+			}
+		}
+
+		@Override
+		public long getLongPosition(final int d) {
+			return pos[d];
+		}
+
+		@Override
+		public OffsetPointSetIterator copy() {
+			return new OffsetPointSetIterator(this);
+		}
+
+		public OffsetPointSetIterator copyCursor() {
+			return copy();
+		}
+	}
+}
@@ -31,35 +31,35 @@
 
 package net.imagej.plugins.commands.assign.noisereduce;
 
-import net.imglib2.ops.condition.Condition;
-import net.imglib2.ops.pointset.ConditionalPointSet;
-import net.imglib2.ops.pointset.HyperVolumePointSet;
+import java.util.Arrays;
+
 import net.imglib2.ops.pointset.PointSet;
 
 /**
- * A circular neighborhood of specifiable radius.
+ * A circular neighborhood of specifiable radius. The points within the radius
+ * are found once, when the neighborhood is built, and kept as a table of
+ * offsets.
  * 
  * @author Barry DeZonia
  */
-public class RadialNeigh implements Neighborhood {
+public class RadialNeigh implements CopyableNeighborhood {
 
-	private final PointSet points;
+	private final OffsetPointSet points;
 	private final long radius;
 	private final int numDims;
 
 	public RadialNeigh(final int numDims, final long radius) {
+		if (radius < 1) throw new IllegalArgumentException(
+			"radius must be at least 1");
 		this.numDims = numDims;
 		this.radius = radius;
-		final long[] posOff = new long[numDims];
-		final long[] negOff = new long[numDims];
-		for (int i = 0; i < numDims; i++) {
-			posOff[i] = negOff[i] = radius - 1;
-		}
-		final PointSet space =
-			new HyperVolumePointSet(new long[numDims], posOff, negOff);
-		final Condition<long[]> condition =
-			new WithinRadiusOfPointSetOriginCondition(radius, space);
-		this.points = new ConditionalPointSet(space, condition);
+		this.points = new OffsetPointSet(numDims, ballOffsets(numDims, radius));
+	}
+
+	private RadialNeigh(final RadialNeigh other) {
+		this.numDims = other.numDims;
+		this.radius = other.radius;
+		this.points = other.points.copy();
 	}
 
 	@Override
@@ -73,4 +73,61 @@ public class RadialNeigh implements Neighborhood {
 			" pixel radial neighborhood";
 	}
 
+	@Override
+	public RadialNeigh copy() {
+		// NB - the copy shares the offset table but has its own origin
+		return new RadialNeigh(this);
+	}
+
+	// -- private helpers --
+
+	/**
+	 * Returns the offsets of the box reaching radius-1 from the origin that lie
+	 * within the radius. Dimension 0 varies fastest, as in the box iteration this
+	 * neighborhood was previously filtered from.
+	 */
+	private static long[] ballOffsets(final int numDims, final long radius) {
+		final long reach = radius - 1;
+		final long radiusSquared = radius * radius;
+		final long[] pos = new long[numDims];
+		for (int d = 0; d < numDims; d++)
+			pos[d] = -reach;
+		final LongList offsets = new LongList();
+		while (true) {
+			long sumSq = 0;
+			for (int d = 0; d < numDims; d++)
+				sumSq += pos[d] * pos[d];
+			if (sumSq <= radiusSquared) {
+				for (int d = 0; d < numDims; d++)
+					offsets.add(pos[d]);
+			}
+			int d = 0;
+			while (d < numDims && pos[d] == reach) {
+				pos[d] = -reach;
+				d++;
+			}
+			if (d == numDims) break;
+			pos[d]++;
+		}
+		return offsets.toArray();
+	}
+
+	/** A growable list of longs. */
+	private static class LongList {
+
+		private long[] values = new long[64];
+		private int size;
+
+		public void add(final long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2 * size);
+			}
+			values[size++] = value;
+		}
+
+		public long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
 }
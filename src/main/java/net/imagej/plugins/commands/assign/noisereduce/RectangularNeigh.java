@@ -31,25 +31,33 @@
 
 package net.imagej.plugins.commands.assign.noisereduce;
 
-import net.imglib2.ops.pointset.HyperVolumePointSet;
 import net.imglib2.ops.pointset.PointSet;
 
 /**
- * A rectangular neighborhood of specifiable size.
+ * A rectangular neighborhood of specifiable size. Its points are kept as a
+ * table of offsets.
  * 
  * @author Barry DeZonia
  */
-public class RectangularNeigh implements Neighborhood {
+public class RectangularNeigh implements CopyableNeighborhood {
 
 	private final long[] posOffsets;
 	private final long[] negOffsets;
-	private final PointSet points;
+	private final OffsetPointSet points;
 
 	public RectangularNeigh(final long[] posOffsets, final long[] negOffsets) {
 		this.posOffsets = posOffsets;
 		this.negOffsets = negOffsets;
-		final long[] origin = new long[posOffsets.length];
-		points = new HyperVolumePointSet(origin, posOffsets, negOffsets);
+		// NB - the box reaches posOffsets below the origin and negOffsets above
+		// it, as the HyperVolumePointSet(origin, posOffsets, negOffsets) that
+		// this neighborhood used to be did.
+		points = OffsetPointSet.box(posOffsets, negOffsets);
+	}
+
+	private RectangularNeigh(final RectangularNeigh other) {
+		this.posOffsets = other.posOffsets.clone();
+		this.negOffsets = other.negOffsets.clone();
+		this.points = other.points.copy();
 	}
 
 	@Override
@@ -70,4 +78,9 @@ public class RectangularNeigh implements Neighborhood {
 		return builder.toString();
 	}
 
+	@Override
+	public RectangularNeigh copy() {
+		return new RectangularNeigh(this);
+	}
+
 }
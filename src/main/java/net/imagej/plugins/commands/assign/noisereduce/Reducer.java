@@ -31,42 +31,110 @@
 
 package net.imagej.plugins.commands.assign.noisereduce;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import net.imagej.Dataset;
 import net.imagej.DefaultDataset;
 import net.imagej.ImgPlus;
+import net.imagej.plugins.commands.assign.ParallelTasks;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.ops.function.Function;
 import net.imglib2.ops.img.SerialImageAssignment;
 import net.imglib2.ops.input.PointSetInputIterator;
+import net.imglib2.ops.pointset.ConditionalPointSet;
 import net.imglib2.ops.pointset.HyperVolumePointSet;
 import net.imglib2.ops.pointset.PointSet;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
+import org.scijava.Cancelable;
 import org.scijava.Context;
 import org.scijava.app.StatusService;
 import org.scijava.plugin.Parameter;
+import org.scijava.thread.ThreadService;
 
 /**
  * Reduces noise in an {@link ImgPlus} using a given reduction func across a
  * given neighborhood.
+ * <p>
+ * The output is split into disjoint tiles that are reduced in parallel. Each
+ * tile has its own copy of the reduction function and of the neighborhood so
+ * threads never share the neighborhood that they move around the image.
+ * <p>
+ * If a {@link ReductionEngine} is set it reduces the tiles instead of the
+ * reduction function. The input is then read with the same mirrored boundary
+ * the reduction functions use.
+ * <p>
+ * The output is a new image made by the input's factory, or a new cell image if
+ * asked for. With an engine the input can also be reduced in place. Planes
+ * along the outermost non-XY axis are then streamed: each output plane is
+ * written over its input plane as soon as it is done. Only the input planes
+ * that later planes still need are kept, in a ring of the neighborhood's reach.
+ * <p>
+ * Progress is reported per tile, or per plane when streaming. A canceler can
+ * be set to stop a reduction early: it is checked between tiles and planes,
+ * and by engines between rows. A canceled reduction leaves its output only
+ * partly reduced. When reducing in place the input is left unchanged, or if
+ * streamed, reduced up to the plane in progress, which is put back as it was.
  * 
  * @author Barry DeZonia
  */
 public class Reducer<U extends RealType<U>,V extends RealType<V>>
 {
+	// -- constants --
+
+	/** Number of tiles per thread. More tiles than threads balances load. */
+	private static final int TILES_PER_THREAD = 4;
+
+	// -- instance variables --
+
 	private final Context context;
 	
 	private final Function<PointSet,V> inputFunction;
 	
 	private final PointSet neighborhood;
+
+	private final Neighborhood neighborhoodSpec;
 	
 	private final ImgPlus<U> input;
 
+	private int numThreads = ParallelTasks.defaultThreadCount();
+
+	private ReductionEngine<U> engine;
+
+	private boolean cellOutput;
+
+	private Cancelable canceler;
+
+	private final AtomicInteger tilesDone = new AtomicInteger();
+
+	private int tileCount;
+
 	@Parameter(required = false)
 	private StatusService statusService;
+
+	@Parameter(required = false)
+	private ThreadService threadService;
 	
 	// -- public interface --
 
-	
+	/**
+	 * Creates a reducer over a bare {@link PointSet}. Such a neighborhood is
+	 * copied for each thread with {@link PointSet#copy()}, unless it is a
+	 * {@link ConditionalPointSet} whose condition may depend on the original.
+	 * The image is then reduced on a single thread.
+	 */
 	public Reducer(Context context, ImgPlus<U> input, Function<PointSet,V> func,
 		PointSet neighborhood)
 	{
@@ -75,41 +143,303 @@ public class Reducer<U extends RealType<U>,V extends RealType<V>>
 		this.input = input;
 		this.inputFunction = func;
 		this.neighborhood = neighborhood;
+		this.neighborhoodSpec = null;
 	}
 
-	// NOTE - because the neighborhood could be a spherical neighborhood that
-	// relies on a WithinRadiusOfPointCondition we cannot parallelize this
-	// algorithm. If we did we'd get one point per Thread with only one being
-	// updated correctly. One can see by trial that using a regular
-	// ImageAssignment here results in only a portion of the image getting noise
-	// reduced.
+	/**
+	 * Creates a reducer over a {@link Neighborhood}. Each thread works with its
+	 * own copy of a {@link CopyableNeighborhood}. Any other neighborhood is
+	 * shared, so the image is then reduced on a single thread.
+	 */
+	public Reducer(Context context, ImgPlus<U> input, Function<PointSet,V> func,
+		Neighborhood neighborhood)
+	{
+		this.context = context;
+		context.inject(this);
+		this.input = input;
+		this.inputFunction = func;
+		this.neighborhood = neighborhood.getPoints();
+		this.neighborhoodSpec = neighborhood;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1) throw new IllegalArgumentException(
+			"number of threads must be at least 1");
+		this.numThreads = numThreads;
+	}
+
+	public ReductionEngine<U> getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Sets an engine that reduces the image in place of the reduction function.
+	 * The engine must compute the same thing as the function. Null restores the
+	 * function.
+	 */
+	public void setEngine(ReductionEngine<U> engine) {
+		this.engine = engine;
+	}
+
+	public boolean isCellOutput() {
+		return cellOutput;
+	}
+
+	/**
+	 * Sets whether {@link #reduceNoise(String)} writes to a new cell image
+	 * rather than to an image made by the input's factory.
+	 */
+	public void setCellOutput(boolean cellOutput) {
+		this.cellOutput = cellOutput;
+	}
+
+	public Cancelable getCanceler() {
+		return canceler;
+	}
+
+	/** Sets what tells the reducer to stop early. May be null. */
+	public void setCanceler(Cancelable canceler) {
+		this.canceler = canceler;
+	}
+
+	/** Returns true if the reduction has been told to stop. */
+	public boolean isCanceled() {
+		return canceler != null && canceler.isCanceled();
+	}
+
+	// NOTE - the built in neighborhoods are tables of offsets (see
+	// OffsetPointSet) and copy cheaply. A bare ConditionalPointSet may have a
+	// condition that refers to the original point set. Copying it leaves every
+	// copy's condition watching the original, so only a portion of the image
+	// would get noise reduced. Thus each tile gets its own neighborhood (and
+	// reduction function) and is assigned serially.
 	
+	/** Reduces noise into a new image and returns it as a new Dataset. */
 	public Dataset reduceNoise(String neighDescrip) {
 		notifyUserAtStart(neighDescrip);
-		ImgPlus<U> newImg = input.copy();
+		// NB - every output point is assigned so the input need not be copied
+		ImgPlus<U> newImg = createOutput();
 		long[] dims = new long[newImg.numDimensions()];
 		newImg.dimensions(dims);
-		PointSet space = new HyperVolumePointSet(dims);
-		PointSetInputIterator inputIterator =
-				new PointSetInputIterator(space, neighborhood);
-		long[] outputOrigin = new long[input.numDimensions()];
-		long[] outputSpan = outputOrigin.clone();
-		input.dimensions(outputSpan);
-		// NB - regular ImageAssignement won't work here for radial neighborhood due
-		// to the duplication of neighborhoods for parallelization and its
-		// interference with the WithinRadiusOfPointSetOriginCondition.
-		SerialImageAssignment<U,V,PointSet> assigner =
-				new SerialImageAssignment<U,V,PointSet>(
-					newImg,
-					inputFunction,
-					inputIterator,
-					null);
-		assigner.assign();
+		reduceBox(Views.extendMirrorDouble(input), newImg, new long[dims.length],
+			dims, -1, true);
 		notifyUserAtEnd(neighDescrip);
 		return new DefaultDataset(context, newImg);
 	}
 
+	/**
+	 * Reduces noise in the input image itself. With an engine and an image
+	 * with planes to stream this takes little more memory than the input.
+	 * Otherwise the image is reduced into a new image that is copied back.
+	 * <p>
+	 * If canceled while streaming, the input is left partly reduced: the planes
+	 * done before the cancel are reduced and the plane in progress is restored
+	 * from its saved copy, so the input always stops at a plane boundary. If
+	 * canceled otherwise, the input is left unchanged.
+	 */
+	public void reduceNoiseInPlace(String neighDescrip) {
+		final int streamDim = streamDimension();
+		if (engine == null || streamDim < 0) {
+			final Dataset reduced = reduceNoise(neighDescrip);
+			if (isCanceled()) return;
+			@SuppressWarnings("unchecked")
+			final ImgPlus<U> result = (ImgPlus<U>) reduced.getImgPlus();
+			copy(result, input);
+			return;
+		}
+		notifyUserAtStart(neighDescrip);
+		streamPlanes(streamDim);
+		notifyUserAtEnd(neighDescrip);
+	}
+
 	// -- private interface --
+
+	private ImgPlus<U> createOutput() {
+		long[] dims = new long[input.numDimensions()];
+		input.dimensions(dims);
+		final Img<U> img;
+		if (cellOutput) img = createCellImg(dims);
+		else img = input.factory().create(dims, input.firstElement());
+		return new ImgPlus<U>(img, input);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Img<U> createCellImg(long[] dims) {
+		final U type = input.firstElement();
+		if (!(type instanceof NativeType)) {
+			return input.factory().create(dims, type);
+		}
+		return new CellImgFactory((NativeType) type).create(dims);
+	}
+
+	/**
+	 * Reduces the box of output with the given origin and span, reading input
+	 * from source. The box is split into tiles along its longest dimension
+	 * other than 0 and fixedDim.
+	 */
+	private void reduceBox(RandomAccessible<U> source, ImgPlus<U> output,
+		long[] origin, long[] span, int fixedDim, boolean reportTiles)
+	{
+		final int threads = canParallelize(output) ? numThreads : 1;
+		final int splitDim = splitDimension(span, fixedDim);
+		final long[] bounds = ParallelTasks.split(span[splitDim],
+			threads == 1 ? 1 : threads * TILES_PER_THREAD);
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < bounds.length - 1; t++) {
+			final long[] tileOrigin = origin.clone();
+			final long[] tileOffsets = new long[span.length];
+			for (int d = 0; d < span.length; d++)
+				tileOffsets[d] = span[d] - 1;
+			tileOrigin[splitDim] = origin[splitDim] + bounds[t];
+			tileOffsets[splitDim] = bounds[t + 1] - bounds[t] - 1;
+			if (tileOffsets[splitDim] < 0) continue;
+			tasks.add(new TileTask(source, output, tileOrigin, tileOffsets,
+				splitDim, reportTiles));
+		}
+		if (reportTiles) {
+			tilesDone.set(0);
+			tileCount = tasks.size();
+		}
+		ParallelTasks.run(threadService, tasks, threads);
+	}
+
+	/**
+	 * Reduces the input in place one plane (hyperslice) along streamDim at a
+	 * time. Before a plane is written it is saved, and saved planes are kept
+	 * while later planes can still reach them.
+	 */
+	private void streamPlanes(int streamDim) {
+		final int numDims = input.numDimensions();
+		final long planes = input.dimension(streamDim);
+		final PointSet points = neighborhoodCopy();
+		final long below = Math.max(0, points.getOrigin()[streamDim] -
+			points.findBoundMin()[streamDim]);
+		final long above = Math.max(0, points.findBoundMax()[streamDim] -
+			points.getOrigin()[streamDim]);
+		// NB - mirrored reads near the far end can reach back as far as above
+		final long keep = Math.max(below, above);
+		final long[] planeDims = new long[numDims - 1];
+		for (int d = 0, k = 0; d < numDims; d++) {
+			if (d != streamDim) planeDims[k++] = input.dimension(d);
+		}
+		final Map<Long, Img<U>> saved = new HashMap<Long, Img<U>>();
+		final List<Img<U>> free = new ArrayList<Img<U>>();
+		final long[] origin = new long[numDims];
+		final long[] span = new long[numDims];
+		input.dimensions(span);
+		span[streamDim] = 1;
+		for (long p = 0; p < planes; p++) {
+			if (isCanceled()) return;
+			// save this plane before it is overwritten
+			final Img<U> copy = free.isEmpty() ? input.factory().create(planeDims,
+				input.firstElement()) : free.remove(free.size() - 1);
+			copy(Views.hyperSlice(input, streamDim, p), copy);
+			saved.put(p, copy);
+
+			// stack up the original planes that this plane's neighborhoods reach
+			final List<RandomAccessibleInterval<U>> window =
+				new ArrayList<RandomAccessibleInterval<U>>();
+			for (long j = p - below; j <= p + above; j++) {
+				final long src = mirror(j, planes);
+				if (src <= p) window.add(saved.get(src));
+				else window.add(Views.hyperSlice(input, streamDim, src));
+			}
+			final long[] shift = new long[numDims];
+			shift[streamDim] = p - below;
+			final RandomAccessibleInterval<U> stack = Views.translate(Views.moveAxis(
+				Views.stack(window), numDims - 1, streamDim), shift);
+			origin[streamDim] = p;
+			reduceBox(Views.extendMirrorDouble(stack), input, origin, span,
+				streamDim, false);
+			if (isCanceled()) {
+				// put back the plane in progress so no plane is left half written
+				copy(copy, Views.hyperSlice(input, streamDim, p));
+				return;
+			}
+			showProgress(p + 1, planes);
+
+			// release the planes no later plane can reach
+			final Img<U> old = saved.remove(p - keep);
+			if (old != null) free.add(old);
+		}
+	}
+
+	/** Maps a plane index into [0, planes) as a mirror with doubled edges. */
+	private static long mirror(long index, long planes) {
+		final long period = 2 * planes;
+		long i = index % period;
+		if (i < 0) i += period;
+		return i < planes ? i : period - 1 - i;
+	}
+
+	/**
+	 * Returns the outermost dimension beyond X and Y that has more than one
+	 * plane, or -1 if there is none.
+	 */
+	private int streamDimension() {
+		for (int d = input.numDimensions() - 1; d >= 2; d--) {
+			if (input.dimension(d) > 1) return d;
+		}
+		return -1;
+	}
+
+	/** Copies the values of one image to another of the same size. */
+	private void copy(RandomAccessibleInterval<U> from,
+		RandomAccessibleInterval<U> to)
+	{
+		final Cursor<U> cursor = Views.iterable(from).localizingCursor();
+		final RandomAccess<U> access = to.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			access.setPosition(cursor);
+			access.get().set(cursor.get());
+		}
+	}
+
+	/**
+	 * Returns true if tiles can be reduced at the same time: the neighborhood
+	 * can be copied safely and the output type does not pack several pixels into
+	 * one storage element.
+	 */
+	private boolean canParallelize(ImgPlus<U> img) {
+		if (neighborhoodSpec == null &&
+			neighborhood instanceof ConditionalPointSet)
+		{
+			return false;
+		}
+		if (neighborhoodSpec != null &&
+			!(neighborhoodSpec instanceof CopyableNeighborhood))
+		{
+			return false;
+		}
+		return img.firstElement().getBitsPerPixel() % 8 == 0;
+	}
+
+	/**
+	 * Returns the dimension (other than 0 and fixedDim if possible) with most
+	 * positions.
+	 */
+	private int splitDimension(long[] dims, int fixedDim) {
+		int best = 0;
+		for (int d = 1; d < dims.length; d++) {
+			if (d == fixedDim) continue;
+			if (best == 0 || dims[d] > dims[best]) best = d;
+		}
+		return best;
+	}
+
+	private PointSet neighborhoodCopy() {
+		if (neighborhoodSpec instanceof CopyableNeighborhood) {
+			return ((CopyableNeighborhood) neighborhoodSpec).copy().getPoints();
+		}
+		// NB - a neighborhood that cannot be copied is only used by one thread
+		if (neighborhoodSpec != null) return neighborhood;
+		return neighborhood.copy();
+	}
 	
 	private void notifyUserAtStart(String neighDescrip) {
 		if (statusService != null)
@@ -117,7 +447,78 @@ public class Reducer<U extends RealType<U>,V extends RealType<V>>
 	}
 	
 	private void notifyUserAtEnd(String neighDescrip) {
-		if (statusService != null)
+		if (statusService == null) return;
+		if (isCanceled())
+			statusService.showStatus(neighDescrip + " ... canceled");
+		else
 			statusService.showStatus(neighDescrip + " ... completed processing");
 	}
+
+	private void showProgress(long done, long total) {
+		if (statusService == null) return;
+		// NB - StatusService takes int progress so scale large counts down
+		final long scale = total / Integer.MAX_VALUE + 1;
+		statusService.showProgress((int) (done / scale), (int) (total / scale));
+	}
+
+	/** Reduces the points of one tile of the output. */
+	private class TileTask implements Callable<Void> {
+
+		private final RandomAccessible<U> source;
+		private final ImgPlus<U> output;
+		private final long[] tileOrigin;
+		private final long[] tileOffsets;
+		private final int splitDim;
+		private final boolean reportTile;
+
+		public TileTask(RandomAccessible<U> source, ImgPlus<U> output,
+			long[] tileOrigin, long[] tileOffsets, int splitDim, boolean reportTile)
+		{
+			this.source = source;
+			this.output = output;
+			this.tileOrigin = tileOrigin;
+			this.tileOffsets = tileOffsets;
+			this.splitDim = splitDim;
+			this.reportTile = reportTile;
+		}
+
+		@Override
+		public Void call() {
+			if (isCanceled()) return null;
+			if (engine != null) {
+				final long[] span = new long[tileOffsets.length];
+				for (int d = 0; d < span.length; d++)
+					span[d] = tileOffsets[d] + 1;
+				engine.reduce(source, output, tileOrigin, span, canceler);
+			}
+			else {
+				// NB - assign one slab of the tile at a time so that a cancel is
+				// noticed between slabs
+				final long[] slabOrigin = tileOrigin.clone();
+				final long[] slabOffsets = tileOffsets.clone();
+				slabOffsets[splitDim] = 0;
+				final long end = tileOrigin[splitDim] + tileOffsets[splitDim];
+				for (long i = tileOrigin[splitDim]; i <= end; i++) {
+					if (isCanceled()) return null;
+					slabOrigin[splitDim] = i;
+					assign(new HyperVolumePointSet(slabOrigin,
+						new long[slabOffsets.length], slabOffsets));
+				}
+			}
+			if (reportTile) showProgress(tilesDone.incrementAndGet(), tileCount);
+			return null;
+		}
+
+		private void assign(PointSet tile) {
+			PointSetInputIterator inputIterator =
+					new PointSetInputIterator(tile, neighborhoodCopy());
+			SerialImageAssignment<U,V,PointSet> assigner =
+					new SerialImageAssignment<U,V,PointSet>(
+						output,
+						inputFunction.copy(),
+						inputIterator,
+						null);
+			assigner.assign();
+		}
+	}
 }
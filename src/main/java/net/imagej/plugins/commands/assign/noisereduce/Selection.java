@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import java.util.Arrays;
+
+/**
+ * Partial selection on primitive double arrays (introselect). Values are
+ * ordered as by {@link Arrays#sort(double[])}, which puts NaNs last.
+ */
+public final class Selection {
+
+	private Selection() {
+		// NB: prevent instantiation of utility class
+	}
+
+	// -- public interface --
+
+	/**
+	 * Rearranges values[from, to) so the value that would be at index k if the
+	 * range were sorted is at k, no value before k is greater and no value after
+	 * k is smaller. Quickselect falls back to sorting the range left when it
+	 * makes poor progress, so the worst case is O(n log n).
+	 */
+	public static void select(final double[] values, int from, int to,
+		final int k)
+	{
+		if (k < from || k >= to) throw new IllegalArgumentException(
+			"rank out of range");
+		int depth = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+		while (to - from > 16) {
+			if (depth-- == 0) {
+				Arrays.sort(values, from, to);
+				return;
+			}
+			final int mid = (from + to) >>> 1;
+			final double pivot =
+				medianOf3(values[from], values[mid], values[to - 1]);
+			// three way partition: [from,lt) < pivot, [lt,gt) == pivot, [gt,to) >
+			int lt = from, i = from, gt = to;
+			while (i < gt) {
+				final double v = values[i];
+				if (less(v, pivot)) swap(values, lt++, i++);
+				else if (less(pivot, v)) swap(values, i, --gt);
+				else i++;
+			}
+			if (k < lt) to = lt;
+			else if (k >= gt) from = gt;
+			else return;
+		}
+		Arrays.sort(values, from, to);
+	}
+
+	/**
+	 * Returns the sum of the values whose ranks lie in [lo, hi) when values[0,
+	 * n) is sorted. Rearranges the values.
+	 */
+	public static double sumRanks(final double[] values, final int n,
+		final int lo, final int hi)
+	{
+		if (lo >= hi) return 0;
+		if (lo > 0) select(values, 0, n, lo);
+		if (hi < n) select(values, lo, n, hi - 1);
+		double sum = 0;
+		for (int i = lo; i < hi; i++)
+			sum += values[i];
+		return sum;
+	}
+
+	// -- private helpers --
+
+	/** Orders as Double.compare does, apart from the sign of zero. */
+	private static boolean less(final double a, final double b) {
+		return a < b || (b != b && a == a);
+	}
+
+	private static double medianOf3(final double a, final double b,
+		final double c)
+	{
+		if (less(a, b)) {
+			if (less(b, c)) return b;
+			return less(a, c) ? c : a;
+		}
+		if (less(a, c)) return a;
+		return less(b, c) ? c : b;
+	}
+
+	private static void swap(final double[] values, final int i, final int j) {
+		final double t = values[i];
+		values[i] = values[j];
+		values[j] = t;
+	}
+}
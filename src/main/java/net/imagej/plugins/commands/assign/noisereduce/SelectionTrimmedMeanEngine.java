@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.Cancelable;
+
+/**
+ * Computes neighborhood trimmed means of any real image. The values of each
+ * neighborhood are copied into a primitive scratch buffer that lives as long
+ * as one call of reduce(), and the values to keep are found by partial
+ * selection ({@link Selection}) rather than by sorting. No memory is allocated
+ * per pixel.
+ */
+public class SelectionTrimmedMeanEngine<U extends RealType<U>> implements
+	ReductionEngine<U>
+{
+
+	// -- instance variables --
+
+	private final NeighborhoodLines lines;
+	private final int trim;
+
+	// -- constructor --
+
+	/**
+	 * @param trim The number of values to drop from each end of the ordered
+	 *          neighborhood.
+	 */
+	public SelectionTrimmedMeanEngine(final OffsetPointSet points,
+		final int trim)
+	{
+		if (trim < 0) throw new IllegalArgumentException(
+			"trim must not be negative");
+		this.lines = new NeighborhoodLines(points);
+		this.trim = trim;
+	}
+
+	// -- ReductionEngine methods --
+
+	@Override
+	public void reduce(final RandomAccessible<U> input,
+		final RandomAccessibleInterval<U> output, final long[] origin,
+		final long[] span, final Cancelable canceler)
+	{
+		if (span[0] > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"rows are too long");
+		final int rowLength = (int) span[0];
+		final int size = lines.size();
+		final int kept = size - 2 * trim;
+		final int[] pointLines = new int[size];
+		final int[] pointIndices = new int[size];
+		for (int p = 0; p < size; p++) {
+			pointLines[p] = lines.getLine(p);
+			pointIndices[p] = lines.index(p, 0);
+		}
+		final double[][] buffers = lines.createBuffers(rowLength);
+		final double[] scratch = new double[size];
+		final RandomAccess<U> in = input.randomAccess();
+		final RandomAccess<U> out = output.randomAccess();
+		final long[] pos = origin.clone();
+		do {
+			if (canceler != null && canceler.isCanceled()) return;
+			lines.gather(in, pos, rowLength, buffers);
+			out.setPosition(pos);
+			for (int x = 0; x < rowLength; x++) {
+				final double value;
+				if (kept <= 0) value = 0.0 / kept;
+				else {
+					for (int p = 0; p < size; p++)
+						scratch[p] = buffers[pointLines[p]][pointIndices[p] + x];
+					value =
+						Selection.sumRanks(scratch, size, trim, size - trim) / kept;
+				}
+				out.get().setReal(value);
+				out.fwd(0);
+			}
+		}
+		while (NeighborhoodLines.nextRow(pos, origin, span));
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Computes box neighborhood statistics that are separable: the box is
+ * reduced along X and then along Y. Minima and maxima use the van Herk /
+ * Gil-Werman algorithm and means use running sums. Either way the cost per
+ * pixel does not depend on the size of the box. A mean is the sum of the row
+ * sums divided once by the number of points, as the mean function does.
+ */
+public class SeparableBoxEngine<U extends RealType<U>> extends
+	AbstractBoxEngine<U>
+{
+
+	// -- constants --
+
+	/** The statistics this engine computes. */
+	public enum Statistic {
+		MIN, MAX, MIDPOINT, MEAN
+	}
+
+	// -- instance variables --
+
+	private final Statistic statistic;
+
+	// -- constructor --
+
+	public SeparableBoxEngine(final Statistic statistic,
+		final OffsetPointSet points)
+	{
+		super(points);
+		this.statistic = statistic;
+	}
+
+	// -- AbstractBoxEngine methods --
+
+	@Override
+	protected ChunkReducer createChunkReducer(final int width, final int rows) {
+		return new SeparableReducer(width, rows);
+	}
+
+	// -- private helpers --
+
+	/**
+	 * Reduces windows of k values of src into n values of dst. For midpoints
+	 * dst receives the minima and dst2 (when given) the maxima. For means dst
+	 * receives the sums.
+	 */
+	private void filter(final double[] src, final int n, final int k,
+		final double[] dst, final double[] dst2, final SeparableReducer b)
+	{
+		switch (statistic) {
+			case MIN:
+				runningExtreme(src, n, k, dst, false, b);
+				break;
+			case MAX:
+				runningExtreme(src, n, k, dst, true, b);
+				break;
+			case MIDPOINT:
+				runningExtreme(src, n, k, dst, false, b);
+				if (dst2 != null) runningExtreme(src, n, k, dst2, true, b);
+				break;
+			case MEAN:
+				runningSum(src, n, k, dst);
+				break;
+		}
+	}
+
+	/**
+	 * Van Herk / Gil-Werman: splits src into blocks of k values and builds the
+	 * running extreme from the start (g) and from the end (h) of each block. The
+	 * extreme of any window of k values is then the extreme of one h value and
+	 * one g value.
+	 */
+	private static void runningExtreme(final double[] src, final int n,
+		final int k, final double[] dst, final boolean max,
+		final SeparableReducer b)
+	{
+		if (k == 1) {
+			System.arraycopy(src, 0, dst, 0, n);
+			return;
+		}
+		final int m = n + k - 1;
+		final double[] g = b.g;
+		final double[] h = b.h;
+		for (int start = 0; start < m; start += k) {
+			final int end = Math.min(start + k, m) - 1;
+			g[start] = src[start];
+			for (int i = start + 1; i <= end; i++)
+				g[i] = max ? Math.max(g[i - 1], src[i]) : Math.min(g[i - 1], src[i]);
+			h[end] = src[end];
+			for (int i = end - 1; i >= start; i--)
+				h[i] = max ? Math.max(h[i + 1], src[i]) : Math.min(h[i + 1], src[i]);
+		}
+		for (int i = 0; i < n; i++) {
+			dst[i] = max ? Math.max(h[i], g[i + k - 1]) : Math.min(h[i],
+				g[i + k - 1]);
+		}
+	}
+
+	/**
+	 * Running sum of windows of k values. The sum is slid along and summed
+	 * afresh every k values so rounding errors cannot build up. It is also
+	 * summed afresh while it is not finite: a NaN or infinity cannot be taken
+	 * back out of a sum once it has left the window.
+	 */
+	private static void runningSum(final double[] src, final int n,
+		final int k, final double[] dst)
+	{
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			if (i % k == 0 || !Double.isFinite(sum)) {
+				sum = 0;
+				for (int j = i; j < i + k; j++)
+					sum += src[j];
+			}
+			else {
+				sum += src[i + k - 1] - src[i - 1];
+			}
+			dst[i] = sum;
+		}
+	}
+
+	/** Reduces chunks along X and then along Y. */
+	private class SeparableReducer implements ChunkReducer {
+
+		private final double[][] horiz;
+		private final double[][] horiz2;
+		private final double[] column;
+		private final double[] result;
+		private final double[] result2;
+		private final double[] g;
+		private final double[] h;
+
+		public SeparableReducer(final int width, final int rows) {
+			final int srcWidth = width + kx - 1;
+			final int srcRows = rows + ky - 1;
+			horiz = new double[srcRows][width];
+			horiz2 = statistic == Statistic.MIDPOINT ? new double[srcRows][width]
+				: null;
+			column = new double[srcRows];
+			result = new double[rows];
+			result2 = new double[rows];
+			g = new double[Math.max(srcWidth, srcRows)];
+			h = new double[Math.max(srcWidth, srcRows)];
+		}
+
+		@Override
+		public void reduce(final double[][] src, final int width, final int rows,
+			final double[][] dst)
+		{
+			final int srcRows = rows + ky - 1;
+			for (int r = 0; r < srcRows; r++) {
+				filter(src[r], width, kx, horiz[r], horiz2 == null ? null
+					: horiz2[r], this);
+			}
+			for (int x = 0; x < width; x++) {
+				for (int r = 0; r < srcRows; r++)
+					column[r] = horiz[r][x];
+				filter(column, rows, ky, result, null, this);
+				if (statistic == Statistic.MEAN) {
+					final double count = (double) kx * ky;
+					for (int r = 0; r < rows; r++)
+						result[r] /= count;
+				}
+				else if (statistic == Statistic.MIDPOINT) {
+					for (int r = 0; r < srcRows; r++)
+						column[r] = horiz2[r][x];
+					runningExtreme(column, rows, ky, result2, true, this);
+					for (int r = 0; r < rows; r++)
+						result[r] = (result[r] + result2[r]) / 2;
+				}
+				for (int r = 0; r < rows; r++)
+					dst[r][x] = result[r];
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+/**
+ * A histogram of integer values that supports fast order statistics. Bins
+ * are grouped in blocks and the count and sum of each block is kept, so
+ * finding a value by rank or summing the lowest values looks at a block
+ * count's worth of blocks and then at most one block's worth of bins.
+ */
+public class SlidingHistogram {
+
+	// -- instance variables --
+
+	private final double minValue;
+	private final int[] counts;
+	private final int[] blockCounts;
+	private final long[] blockSums;
+	private final int shift;
+	private int size;
+	private long sum;
+
+	// -- constructor --
+
+	/**
+	 * Creates a histogram of integer values from minValue to minValue + numBins
+	 * - 1.
+	 */
+	public SlidingHistogram(final double minValue, final int numBins) {
+		if (numBins < 1) throw new IllegalArgumentException(
+			"histogram must have at least one bin");
+		this.minValue = minValue;
+		int bits = 0;
+		while ((1L << bits) < numBins)
+			bits++;
+		shift = (bits + 1) / 2;
+		counts = new int[numBins];
+		blockCounts = new int[((numBins - 1) >> shift) + 1];
+		blockSums = new long[blockCounts.length];
+	}
+
+	// -- public interface --
+
+	/** Returns the bin that holds a value. */
+	public int bin(final double value) {
+		return (int) (value - minValue);
+	}
+
+	/** Returns the value that a bin holds. */
+	public double value(final int bin) {
+		return bin + minValue;
+	}
+
+	/** Returns the number of values in the histogram. */
+	public int size() {
+		return size;
+	}
+
+	/** Puts a value (given by its bin) in the histogram. */
+	public void add(final int bin) {
+		counts[bin]++;
+		blockCounts[bin >> shift]++;
+		blockSums[bin >> shift] += bin;
+		size++;
+		sum += bin;
+	}
+
+	/** Takes a value (given by its bin) out of the histogram. */
+	public void remove(final int bin) {
+		counts[bin]--;
+		blockCounts[bin >> shift]--;
+		blockSums[bin >> shift] -= bin;
+		size--;
+		sum -= bin;
+	}
+
+	/** Returns the bin holding the value of the given (0 based) rank. */
+	public int select(final int rank) {
+		int seen = 0;
+		int block = 0;
+		while (seen + blockCounts[block] <= rank) {
+			seen += blockCounts[block];
+			block++;
+		}
+		int bin = block << shift;
+		while (seen + counts[bin] <= rank) {
+			seen += counts[bin];
+			bin++;
+		}
+		return bin;
+	}
+
+	/** Returns the sum of the k smallest values in the histogram. */
+	public double sumLowest(final int k) {
+		return binSumLowest(k) + k * minValue;
+	}
+
+	/**
+	 * Returns the sum of the values whose (0 based) ranks lie in [from, to).
+	 */
+	public double sumRanks(final int from, final int to) {
+		return binSumLowest(to) - binSumLowest(from) + (to - from) * minValue;
+	}
+
+	/** Returns the sum of all the values in the histogram. */
+	public double sum() {
+		return sum + size * minValue;
+	}
+
+	// -- private helpers --
+
+	/** Returns the sum of the bin numbers of the k smallest values. */
+	private long binSumLowest(final int k) {
+		int seen = 0;
+		long total = 0;
+		int block = 0;
+		while (block < blockCounts.length && seen + blockCounts[block] <= k) {
+			seen += blockCounts[block];
+			total += blockSums[block];
+			block++;
+		}
+		int bin = block << shift;
+		while (seen < k) {
+			final int take = Math.min(counts[bin], k - seen);
+			seen += take;
+			total += (long) take * bin;
+			bin++;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Computes geometric, harmonic and contraharmonic means over box
+ * neighborhoods with summed area tables. The terms of each mean (log(x), 1/x,
+ * x^Q and x^(Q+1)) are accumulated in double precision. The sum over any box
+ * is then found from four table entries, so the cost per pixel does not depend
+ * on the size of the box.
+ * <p>
+ * Subtracting table entries loses the precision of the largest terms in the
+ * table, which can swamp the sum of a box of small terms (think of x^(Q+1) of
+ * a dark box next to a bright one). Tables are therefore built per tile of at
+ * most {@value #TILE} by {@value #TILE} outputs, and they also sum the
+ * magnitudes of the terms. From those the error of each box sum is bounded.
+ * Boxes whose mean could be off by more than {@value #TOLERANCE} relative are
+ * computed point by point.
+ * <p>
+ * Values whose terms are not finite (such as zeros for the harmonic mean, or
+ * zeros and negative values for the geometric mean) cannot be summed this way.
+ * The tables count them instead, and the boxes that hold any are computed point
+ * by point.
+ */
+public class SummedAreaEngine<U extends RealType<U>> extends
+	AbstractBoxEngine<U>
+{
+
+	// -- constants --
+
+	/** The statistics this engine computes. */
+	public enum Statistic {
+		GEOMETRIC_MEAN, HARMONIC_MEAN, CONTRAHARMONIC_MEAN
+	}
+
+	/** Largest width and height of the outputs of one set of tables. */
+	private static final int TILE = 32;
+
+	/** Largest relative error allowed in a mean found from the tables. */
+	private static final double TOLERANCE = 1e-9;
+
+	/** Largest relative rounding error of one double operation. */
+	private static final double ROUNDOFF = Math.ulp(1.0) / 2;
+
+	// -- instance variables --
+
+	private final Statistic statistic;
+	private final double order;
+
+	// -- constructors --
+
+	public SummedAreaEngine(final Statistic statistic,
+		final OffsetPointSet points)
+	{
+		this(statistic, 0, points);
+	}
+
+	/**
+	 * @param order The order Q of a contraharmonic mean. Ignored for the other
+	 *          statistics.
+	 */
+	public SummedAreaEngine(final Statistic statistic, final double order,
+		final OffsetPointSet points)
+	{
+		super(points);
+		this.statistic = statistic;
+		this.order = order;
+	}
+
+	// -- AbstractBoxEngine methods --
+
+	@Override
+	protected ChunkReducer createChunkReducer(final int width, final int rows) {
+		return new TableReducer(width, rows);
+	}
+
+	// -- private helpers --
+
+	/** Returns the term summed for the numerator (or only sum) of the mean. */
+	private double term1(final double x) {
+		switch (statistic) {
+			case GEOMETRIC_MEAN:
+				return Math.log(x);
+			case HARMONIC_MEAN:
+				return 1 / x;
+			default:
+				return Math.pow(x, order + 1);
+		}
+	}
+
+	/** Returns the term summed for the denominator of the contraharmonic mean. */
+	private double term2(final double x) {
+		return Math.pow(x, order);
+	}
+
+	/** Returns true if a value's terms cannot go in the tables. */
+	private boolean isSpecial(final double x) {
+		if (Double.isNaN(x) || Double.isInfinite(x)) return true;
+		switch (statistic) {
+			case GEOMETRIC_MEAN:
+				return x <= 0;
+			case HARMONIC_MEAN:
+				return x == 0;
+			default:
+				return isNotFinite(term1(x)) || isNotFinite(term2(x));
+		}
+	}
+
+	private static boolean isNotFinite(final double v) {
+		return Double.isNaN(v) || Double.isInfinite(v);
+	}
+
+	/** Computes the mean of a box of values. */
+	private double mean(final double sum1, final double sum2, final int n) {
+		switch (statistic) {
+			case GEOMETRIC_MEAN:
+				return Math.exp(sum1 / n);
+			case HARMONIC_MEAN:
+				return n / sum1;
+			default:
+				return sum1 / sum2;
+		}
+	}
+
+	/**
+	 * Returns true if the mean of box sums with the given error bounds is
+	 * within the tolerance.
+	 */
+	private boolean isAccurate(final double sum1, final double error1,
+		final double sum2, final double error2, final int n)
+	{
+		switch (statistic) {
+			case GEOMETRIC_MEAN:
+				// exp(sum1 / n) is off by a factor of about 1 + error1 / n
+				return error1 <= TOLERANCE * n;
+			case HARMONIC_MEAN:
+				return error1 <= TOLERANCE * Math.abs(sum1);
+			default:
+				return error1 <= TOLERANCE / 2 * Math.abs(sum1) &&
+					error2 <= TOLERANCE / 2 * Math.abs(sum2);
+		}
+	}
+
+	/** Reduces chunks tile by tile through summed area tables. */
+	private class TableReducer implements ChunkReducer {
+
+		private final double[][] sums1;
+		private final double[][] sums2;
+		private final double[][] mags1;
+		private final double[][] mags2;
+		private final int[][] specials;
+
+		public TableReducer(final int width, final int rows) {
+			final int tableWidth = Math.min(TILE, width) + kx;
+			final int tableRows = Math.min(TILE, rows) + ky;
+			final boolean two = statistic == Statistic.CONTRAHARMONIC_MEAN;
+			sums1 = new double[tableRows][tableWidth];
+			mags1 = new double[tableRows][tableWidth];
+			sums2 = two ? new double[tableRows][tableWidth] : null;
+			mags2 = two ? new double[tableRows][tableWidth] : null;
+			specials = new int[tableRows][tableWidth];
+		}
+
+		@Override
+		public void reduce(final double[][] src, final int width, final int rows,
+			final double[][] dst)
+		{
+			final int n = kx * ky;
+			for (int r0 = 0; r0 < rows; r0 += TILE) {
+				final int tileRows = Math.min(TILE, rows - r0);
+				for (int x0 = 0; x0 < width; x0 += TILE) {
+					final int tileWidth = Math.min(TILE, width - x0);
+					buildTables(src, r0, x0, tileWidth + kx - 1,
+						tileRows + ky - 1);
+					for (int r = 0; r < tileRows; r++) {
+						final double[] row = dst[r0 + r];
+						for (int x = 0; x < tileWidth; x++)
+							row[x0 + x] = boxMean(src, r0, x0, r, x, n);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Computes the mean of the box of the output at (x, r) of the tile that
+		 * starts at (x0, r0).
+		 */
+		private double boxMean(final double[][] src, final int r0, final int x0,
+			final int r, final int x, final int n)
+		{
+			if (boxSum(specials, r, x) != 0) {
+				return direct(src, r0 + r, x0 + x, n);
+			}
+			final double sum1 = boxSum(sums1, r, x);
+			final double sum2 = sums2 == null ? 0 : boxSum(sums2, r, x);
+			final double error1 = error(mags1, r, x);
+			final double error2 = mags2 == null ? 0 : error(mags2, r, x);
+			if (!isAccurate(sum1, error1, sum2, error2, n)) {
+				return direct(src, r0 + r, x0 + x, n);
+			}
+			return mean(sum1, sum2, n);
+		}
+
+		/**
+		 * Builds the tables of the given numbers of columns and rows of src
+		 * starting at column x0 and row r0.
+		 */
+		private void buildTables(final double[][] src, final int r0,
+			final int x0, final int cols, final int rows)
+		{
+			for (int r = 0; r < rows; r++) {
+				final double[] values = src[r0 + r];
+				final double[] above1 = sums1[r], here1 = sums1[r + 1];
+				final double[] aboveM1 = mags1[r], hereM1 = mags1[r + 1];
+				final double[] above2 = sums2 == null ? null : sums2[r];
+				final double[] here2 = sums2 == null ? null : sums2[r + 1];
+				final double[] aboveM2 = mags2 == null ? null : mags2[r];
+				final double[] hereM2 = mags2 == null ? null : mags2[r + 1];
+				final int[] aboveS = specials[r], hereS = specials[r + 1];
+				double row1 = 0, row2 = 0, rowM1 = 0, rowM2 = 0;
+				int rowS = 0;
+				for (int i = 0; i < cols; i++) {
+					final double v = values[x0 + i];
+					if (isSpecial(v)) rowS++;
+					else {
+						final double t1 = term1(v);
+						row1 += t1;
+						rowM1 += Math.abs(t1);
+						if (here2 != null) {
+							final double t2 = term2(v);
+							row2 += t2;
+							rowM2 += Math.abs(t2);
+						}
+					}
+					here1[i + 1] = above1[i + 1] + row1;
+					hereM1[i + 1] = aboveM1[i + 1] + rowM1;
+					if (here2 != null) {
+						here2[i + 1] = above2[i + 1] + row2;
+						hereM2[i + 1] = aboveM2[i + 1] + rowM2;
+					}
+					hereS[i + 1] = aboveS[i + 1] + rowS;
+				}
+			}
+		}
+
+		private double boxSum(final double[][] t, final int r, final int x) {
+			return t[r + ky][x + kx] - t[r][x + kx] - t[r + ky][x] + t[r][x];
+		}
+
+		private int boxSum(final int[][] t, final int r, final int x) {
+			return t[r + ky][x + kx] - t[r][x + kx] - t[r + ky][x] + t[r][x];
+		}
+
+		/**
+		 * Bounds the rounding error of a box sum. Each of its four table
+		 * entries took at most as many additions as its row plus column, each
+		 * off by at most the roundoff of the sum of magnitudes up to the far
+		 * corner.
+		 */
+		private double error(final double[][] mags, final int r, final int x) {
+			final int adds = r + ky + x + kx;
+			return 4 * adds * ROUNDOFF * mags[r + ky][x + kx];
+		}
+
+		/** Computes the mean of one box point by point. */
+		private double direct(final double[][] src, final int r, final int x,
+			final int n)
+		{
+			double sum1 = 0, sum2 = 0;
+			for (int j = r; j < r + ky; j++) {
+				for (int i = x; i < x + kx; i++) {
+					sum1 += term1(src[j][i]);
+					if (sums2 != null) sum2 += term2(src[j][i]);
+				}
+			}
+			return mean(sum1, sum2, n);
+		}
+	}
+}
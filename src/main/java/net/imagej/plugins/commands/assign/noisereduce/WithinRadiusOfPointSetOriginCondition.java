@@ -70,10 +70,10 @@ public class WithinRadiusOfPointSetOriginCondition implements Condition<long[]>
 
 	@Override
 	public WithinRadiusOfPointSetOriginCondition copy() {
-		// TODO - there is some question as to whether this should copy space or not
-		// As it is I think this class only works with SerialImageAssignments. It
-		// may misbehave when used with regular parallel ImageAssignments. However
-		// it can also be used outside of assignment code as it is a valid condition
+		// NB - the copy shares the point set and thus follows its origin. So a
+		// copied ConditionalPointSet that uses this condition does not work on its
+		// own. Parallel code copies the whole neighborhood instead (see
+		// CopyableNeighborhood.copy()).
 		return new WithinRadiusOfPointSetOriginCondition(radius, pointSet);
 	}
 
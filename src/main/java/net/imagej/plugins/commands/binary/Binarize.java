@@ -41,6 +41,7 @@ import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.display.ImageDisplayService;
+import net.imagej.plugins.commands.dataset.DataRangeCache;
 import net.imagej.threshold.ThresholdMethod;
 import net.imagej.threshold.ThresholdService;
 import net.imglib2.IterableInterval;
@@ -143,6 +144,9 @@ public class Binarize<T extends RealType<T>> extends ContextCommand {
 	@Parameter
 	private AutoscaleService autoscaleSrv;
 
+	@Parameter(required = false)
+	private DataRangeCache rangeCache;
+
 	// -- accessors --
 
 	/**
@@ -396,6 +400,7 @@ public class Binarize<T extends RealType<T>> extends ContextCommand {
 	// gets the range of the pixel values in a dataset
 
 	private DataRange calcDataRange(Dataset ds) {
+		if (rangeCache != null) return rangeCache.getAutoscaleRange(ds);
 		return autoscaleSrv.getDefaultIntervalRange(ds.getImgPlus());
 	}
 
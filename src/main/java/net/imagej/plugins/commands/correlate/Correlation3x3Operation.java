@@ -33,6 +33,7 @@ package net.imagej.plugins.commands.correlate;
 
 import net.imagej.Dataset;
 import net.imagej.plugins.commands.neigh.Neighborhood3x3Operation;
+import net.imagej.plugins.commands.neigh.Neighborhood3x3RowWatcher;
 import net.imagej.plugins.commands.neigh.Neighborhood3x3Watcher;
 
 import org.scijava.util.RealRect;
@@ -73,7 +74,13 @@ public class Correlation3x3Operation {
 		this.kernel = kernel;
 		this.neighOperation =
 			new Neighborhood3x3Operation(input, selection,
-				new CorrelateWatcher(input));
+				new Neighborhood3x3Operation.WatcherFactory() {
+
+					@Override
+					public Neighborhood3x3Watcher createWatcher() {
+						return new CorrelateWatcher(input, kernel);
+					}
+				});
 
 		if (kernel.length != 9) throw new IllegalArgumentException(
 			"kernel must contain nine elements (shaped 3x3)");
@@ -97,15 +104,17 @@ public class Correlation3x3Operation {
 	 * CorrelateWatcher tallies that information and returns appropriate values as
 	 * necessary.
 	 */
-	private class CorrelateWatcher implements Neighborhood3x3Watcher {
+	static class CorrelateWatcher implements Neighborhood3x3RowWatcher {
 
+		private final double[] kernel;
 		private double scale;
 		private double sum;
 		private final boolean integerDataset;
 		private final double typeMinValue;
 		private final double typeMaxValue;
 
-		public CorrelateWatcher(final Dataset ds) {
+		public CorrelateWatcher(final Dataset ds, final double[] kernel) {
+			this.kernel = kernel;
 			integerDataset = ds.isInteger();
 			typeMinValue = ds.getType().getMinValue();
 			typeMaxValue = ds.getType().getMaxValue();
@@ -142,15 +151,43 @@ public class Correlation3x3Operation {
 		 */
 		@Override
 		public double calcOutputValue() {
+			return scale(sum);
+		}
+
+		/** Correlates a whole row at once, visiting the values in the same order. */
+		@Override
+		public void calcOutputRow(final double[] above, final double[] row,
+			final double[] below, final double[] output, final int width)
+		{
+			final double k0 = kernel[0], k1 = kernel[1], k2 = kernel[2];
+			final double k3 = kernel[3], k4 = kernel[4], k5 = kernel[5];
+			final double k6 = kernel[6], k7 = kernel[7], k8 = kernel[8];
+			for (int x = 0; x < width; x++) {
+				double s = 0;
+				s += above[x] * k0;
+				s += above[x + 1] * k1;
+				s += above[x + 2] * k2;
+				s += row[x] * k3;
+				s += row[x + 1] * k4;
+				s += row[x + 2] * k5;
+				s += below[x] * k6;
+				s += below[x + 1] * k7;
+				s += below[x + 2] * k8;
+				output[x] = scale(s);
+			}
+		}
+
+		/** Divides a sum by the kernel scale. */
+		private double scale(final double total) {
 			double value;
 
 			if (integerDataset) {
-				value = (sum + (scale / 2)) / scale;
+				value = (total + (scale / 2)) / scale;
 				if (value < typeMinValue) value = typeMinValue;
 				if (value > typeMaxValue) value = typeMaxValue;
 			}
 			else {
-				value = sum / scale;
+				value = total / scale;
 			}
 			return value;
 		}
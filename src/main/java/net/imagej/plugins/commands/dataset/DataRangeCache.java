@@ -0,0 +1,395 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.dataset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imagej.Position;
+import net.imagej.autoscale.AutoscaleMethod;
+import net.imagej.autoscale.AutoscaleService;
+import net.imagej.autoscale.DataRange;
+import net.imagej.axis.Axes;
+import net.imagej.event.DatasetDeletedEvent;
+import net.imagej.event.DatasetRestructuredEvent;
+import net.imagej.event.DatasetUpdatedEvent;
+import net.imagej.plugins.commands.assign.ParallelTasks;
+import net.imagej.plugins.commands.assign.WeakIdentityMap;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.view.Views;
+
+import org.scijava.event.EventHandler;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Service that caches the smallest and largest data values of each
+ * {@link Dataset} and of each of its XY planes. Commands that need a data range
+ * share the results so a large dataset is scanned once rather than once per
+ * command. The range of a whole dataset is computed plane by plane in parallel
+ * and fills the plane cache along the way. A dataset's ranges are discarded
+ * whenever its data is updated or restructured. Datasets are held weakly, so
+ * a dataset that is dropped without being deleted (such as a temporary one
+ * made by a command) is not kept alive by the cache.
+ * <p>
+ * Ranges are computed from the values actually present. NaN values are
+ * ignored. A region without any other values has a minimum of positive
+ * infinity and a maximum of negative infinity.
+ * <p>
+ * These are raw ranges. The ranges chosen by the default method of the
+ * {@link AutoscaleService}, which may clip them, are cached separately by
+ * {@link #getAutoscaleRange(Dataset)} and
+ * {@link #getAutoscalePlaneRange(Dataset, Position)}. They are discarded
+ * along with the raw ranges, and also when the default autoscale method is
+ * replaced. Changing the settings of the default method itself is not noticed;
+ * call {@link #invalidate(Dataset)} after doing so.
+ */
+@Plugin(type = Service.class)
+public class DataRangeCache extends AbstractService {
+
+	@Parameter
+	private AutoscaleService autoscaleService;
+
+	@Parameter(required = false)
+	private ThreadService threadService;
+
+	private final WeakIdentityMap<Dataset, Entry> entries =
+		new WeakIdentityMap<Dataset, Entry>();
+
+	/** Counts invalidations so a range computed meanwhile is not cached. */
+	private long generation;
+
+	// -- DataRangeCache methods --
+
+	/** Returns the range of the data values of the whole dataset. */
+	public DataRange getRange(final Dataset ds) {
+		final long startGeneration;
+		final Entry entry;
+		synchronized (entries) {
+			entry = entry(ds);
+			if (entry.whole != null) return entry.whole;
+			startGeneration = generation;
+		}
+		final long count = entry.planeCount();
+		final int numThreads =
+			(int) Math.min(count, ParallelTasks.defaultThreadCount());
+		final long[] bounds = ParallelTasks.split(count, numThreads);
+		final List<PlaneTask> tasks = new ArrayList<PlaneTask>();
+		for (int t = 0; t < bounds.length - 1; t++) {
+			tasks.add(new PlaneTask(entry, bounds[t], bounds[t + 1]));
+		}
+		ParallelTasks.run(threadService, tasks, numThreads);
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (final PlaneTask task : tasks) {
+			min = Math.min(min, task.min);
+			max = Math.max(max, task.max);
+		}
+		final DataRange range = new DataRange(min, max);
+		synchronized (entries) {
+			if (generation == startGeneration) {
+				for (final PlaneTask task : tasks) {
+					entry.planes.putAll(task.ranges);
+				}
+				entry.whole = range;
+			}
+		}
+		return range;
+	}
+
+	/**
+	 * Returns the range of the data values of one XY plane of a dataset. The
+	 * plane position lists the positions of the non XY axes in axis order, as
+	 * with {@link net.imagej.display.DatasetView#getPlanePosition()}.
+	 */
+	public DataRange getPlaneRange(final Dataset ds, final Position planePos) {
+		final long[] pos = new long[planePos.numDimensions()];
+		for (int i = 0; i < pos.length; i++)
+			pos[i] = planePos.getLongPosition(i);
+		return getPlaneRange(ds, pos);
+	}
+
+	/**
+	 * Returns the range of the data values of one XY plane of a dataset. The
+	 * plane position lists the positions of the non XY axes in axis order.
+	 */
+	public DataRange getPlaneRange(final Dataset ds, final long[] planePos) {
+		final long startGeneration;
+		final Entry entry;
+		final long index;
+		synchronized (entries) {
+			entry = entry(ds);
+			index = entry.planeIndex(planePos);
+			final DataRange range = entry.planes.get(index);
+			if (range != null) return range;
+			startGeneration = generation;
+		}
+		final double[] minMax = entry.scanPlane(index);
+		final DataRange range = new DataRange(minMax[0], minMax[1]);
+		synchronized (entries) {
+			if (generation == startGeneration) entry.planes.put(index, range);
+		}
+		return range;
+	}
+
+	/**
+	 * Returns the range chosen by the default autoscale method for the whole
+	 * dataset.
+	 */
+	public DataRange getAutoscaleRange(final Dataset ds) {
+		final long startGeneration;
+		final Entry entry;
+		final AutoscaleMethod<?> method;
+		synchronized (entries) {
+			entry = entry(ds);
+			method = autoscaleService.getDefaultAutoscaleMethod();
+			entry.useAutoscaleMethod(method);
+			if (entry.autoWhole != null) return entry.autoWhole;
+			startGeneration = generation;
+		}
+		final DataRange range =
+			autoscaleService.getDefaultIntervalRange(entry.img);
+		synchronized (entries) {
+			if (generation == startGeneration && entry.autoMethod == method &&
+				autoscaleService.getDefaultAutoscaleMethod() == method)
+			{
+				entry.autoWhole = range;
+			}
+		}
+		return range;
+	}
+
+	/**
+	 * Returns the range chosen by the default autoscale method for one XY plane
+	 * of a dataset. The plane position is given as with
+	 * {@link #getPlaneRange(Dataset, Position)}.
+	 */
+	public DataRange getAutoscalePlaneRange(final Dataset ds,
+		final Position planePos)
+	{
+		final long[] pos = new long[planePos.numDimensions()];
+		for (int i = 0; i < pos.length; i++)
+			pos[i] = planePos.getLongPosition(i);
+		final long startGeneration;
+		final Entry entry;
+		final AutoscaleMethod<?> method;
+		final long index;
+		synchronized (entries) {
+			entry = entry(ds);
+			index = entry.planeIndex(pos);
+			method = autoscaleService.getDefaultAutoscaleMethod();
+			entry.useAutoscaleMethod(method);
+			final DataRange range = entry.autoPlanes.get(index);
+			if (range != null) return range;
+			startGeneration = generation;
+		}
+		final DataRange range =
+			autoscaleService.getDefaultRandomAccessRange(entry.plane(index));
+		synchronized (entries) {
+			if (generation == startGeneration && entry.autoMethod == method &&
+				autoscaleService.getDefaultAutoscaleMethod() == method)
+			{
+				entry.autoPlanes.put(index, range);
+			}
+		}
+		return range;
+	}
+
+	/** Discards the cached ranges of the given dataset, if any. */
+	public void invalidate(final Dataset ds) {
+		synchronized (entries) {
+			entries.remove(ds);
+			generation++;
+		}
+	}
+
+	// -- Event handlers --
+
+	@EventHandler
+	protected void onEvent(final DatasetUpdatedEvent evt) {
+		if (!evt.isMetaDataOnly()) invalidate(evt.getObject());
+	}
+
+	@EventHandler
+	protected void onEvent(final DatasetRestructuredEvent evt) {
+		invalidate(evt.getObject());
+	}
+
+	@EventHandler
+	protected void onEvent(final DatasetDeletedEvent evt) {
+		invalidate(evt.getObject());
+	}
+
+	// -- private helpers --
+
+	/** Returns the entry of a dataset, replacing it if the data was swapped. */
+	private Entry entry(final Dataset ds) {
+		Entry entry = entries.get(ds);
+		if (entry == null || entry.img != ds.getImgPlus()) {
+			entry = new Entry(ds);
+			entries.put(ds, entry);
+		}
+		return entry;
+	}
+
+	/** The cached ranges of one dataset. */
+	private static class Entry {
+
+		private final ImgPlus<? extends RealType<?>> img;
+		private final int xIndex, yIndex;
+		private final long[] planeDims;
+		private final Map<Long, DataRange> planes = new HashMap<Long, DataRange>();
+		private DataRange whole;
+		private AutoscaleMethod<?> autoMethod;
+		private final Map<Long, DataRange> autoPlanes =
+			new HashMap<Long, DataRange>();
+		private DataRange autoWhole;
+
+		public Entry(final Dataset ds) {
+			img = ds.getImgPlus();
+			final int x = ds.dimensionIndex(Axes.X);
+			final int y = ds.dimensionIndex(Axes.Y);
+			// NB - data without XY axes is treated as a single plane
+			xIndex = (x < 0 || y < 0) ? -1 : x;
+			yIndex = (x < 0 || y < 0) ? -1 : y;
+			planeDims =
+				new long[(xIndex < 0) ? 0 : img.numDimensions() - 2];
+			int p = 0;
+			for (int d = 0; d < img.numDimensions(); d++) {
+				if (xIndex < 0) break;
+				if (d == xIndex || d == yIndex) continue;
+				planeDims[p++] = img.dimension(d);
+			}
+		}
+
+		public long planeCount() {
+			long count = 1;
+			for (final long dim : planeDims)
+				count *= dim;
+			return count;
+		}
+
+		/** Returns the index of the plane at the given non XY position. */
+		public long planeIndex(final long[] planePos) {
+			if (planePos.length != planeDims.length) {
+				throw new IllegalArgumentException("plane position has " +
+					planePos.length + " dimensions but " + planeDims.length +
+					" are required");
+			}
+			return IntervalIndexer.positionToIndex(planePos, planeDims);
+		}
+
+		/** Drops the autoscale ranges if they came from another method. */
+		public void useAutoscaleMethod(final AutoscaleMethod<?> method) {
+			if (method == autoMethod) return;
+			autoMethod = method;
+			autoPlanes.clear();
+			autoWhole = null;
+		}
+
+		/** Returns the plane with the given index. */
+		public RandomAccessibleInterval<? extends RealType<?>> plane(
+			final long index)
+		{
+			final long[] min = new long[img.numDimensions()];
+			final long[] max = new long[img.numDimensions()];
+			img.min(min);
+			img.max(max);
+			if (xIndex >= 0) {
+				final long[] planePos = new long[planeDims.length];
+				IntervalIndexer.indexToPosition(index, planeDims, planePos);
+				int p = 0;
+				for (int d = 0; d < min.length; d++) {
+					if (d == xIndex || d == yIndex) continue;
+					min[d] += planePos[p];
+					max[d] = min[d];
+					p++;
+				}
+			}
+			return Views.interval(img, min, max);
+		}
+
+		/** Returns the {min, max} of the plane with the given index. */
+		public double[] scanPlane(final long index) {
+			final RandomAccessibleInterval<? extends RealType<?>> plane =
+				plane(index);
+			double lo = Double.POSITIVE_INFINITY;
+			double hi = Double.NEGATIVE_INFINITY;
+			final Cursor<? extends RealType<?>> cursor =
+				Views.flatIterable(plane).cursor();
+			while (cursor.hasNext()) {
+				final double value = cursor.next().getRealDouble();
+				if (value < lo) lo = value;
+				if (value > hi) hi = value;
+			}
+			return new double[] { lo, hi };
+		}
+	}
+
+	/** Scans a range of planes and remembers their ranges. */
+	private static class PlaneTask implements Callable<Void> {
+
+		private final Entry entry;
+		private final long first, last;
+		private final Map<Long, DataRange> ranges = new HashMap<Long, DataRange>();
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+
+		public PlaneTask(final Entry entry, final long first, final long last) {
+			this.entry = entry;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		public Void call() {
+			for (long index = first; index < last; index++) {
+				final double[] minMax = entry.scanPlane(index);
+				ranges.put(index, new DataRange(minMax[0], minMax[1]));
+				min = Math.min(min, minMax[0]);
+				max = Math.max(max, minMax[1]);
+			}
+			return null;
+		}
+	}
+}
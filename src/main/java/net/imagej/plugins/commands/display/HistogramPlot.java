@@ -32,12 +32,14 @@
 package net.imagej.plugins.commands.display;
 
 import net.imagej.Dataset;
+import net.imagej.autoscale.DataRange;
 import net.imagej.axis.Axes;
 import net.imagej.display.ImageDisplay;
 import net.imagej.display.ImageDisplayService;
 import net.imagej.display.OverlayService;
 import net.imagej.event.DatasetRestructuredEvent;
 import net.imagej.event.DatasetUpdatedEvent;
+import net.imagej.plugins.commands.dataset.DataRangeCache;
 import net.imagej.widget.HistogramBundle;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
@@ -97,6 +99,9 @@ public class HistogramPlot<T extends RealType<T>> extends InteractiveCommand
 	@Parameter
 	private OverlayService overlayService;
 
+	@Parameter(required = false)
+	private DataRangeCache rangeCache;
+
 	@Parameter
 	private ImageDisplay display;
 
@@ -346,14 +351,21 @@ public class HistogramPlot<T extends RealType<T>> extends InteractiveCommand
 	}
 
 	private void calcBinInfo() {
-		// calc the data ranges - 1st pass thru data
-		dataMin = Double.POSITIVE_INFINITY;
-		dataMax = Double.NEGATIVE_INFINITY;
-		Cursor<? extends RealType<?>> cursor = dataset.getImgPlus().cursor();
-		while (cursor.hasNext()) {
-			double val = cursor.next().getRealDouble();
-			if (val < dataMin) dataMin = val;
-			if (val > dataMax) dataMax = val;
+		// calc the data ranges - 1st pass thru data unless already known
+		if (rangeCache != null) {
+			DataRange range = rangeCache.getRange(dataset);
+			dataMin = range.getMin();
+			dataMax = range.getMax();
+		}
+		else {
+			dataMin = Double.POSITIVE_INFINITY;
+			dataMax = Double.NEGATIVE_INFINITY;
+			Cursor<? extends RealType<?>> cursor = dataset.getImgPlus().cursor();
+			while (cursor.hasNext()) {
+				double val = cursor.next().getRealDouble();
+				if (val < dataMin) dataMin = val;
+				if (val > dataMax) dataMax = val;
+			}
 		}
 		if (dataMin > dataMax) {
 			dataMin = 0;
@@ -468,6 +480,8 @@ public class HistogramPlot<T extends RealType<T>> extends InteractiveCommand
 	private void liveUpdate(Dataset ds) {
 		if (!liveUpdates) return;
 		if (ds != dataset) return;
+		// NB - the cache may not have seen this event yet
+		if (rangeCache != null) rangeCache.invalidate(ds);
 		build();
 		bundle.setHasChanges(true);
 		display(currHistNum);
@@ -35,6 +35,7 @@ import net.imagej.autoscale.AutoscaleService;
 import net.imagej.autoscale.DataRange;
 import net.imagej.command.InteractiveImageCommand;
 import net.imagej.display.DatasetView;
+import net.imagej.plugins.commands.dataset.DataRangeCache;
 import net.imagej.widget.HistogramBundle;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.histogram.BinMapper1d;
@@ -98,6 +99,9 @@ public class BrightnessContrast<T extends RealType<T>> extends
 	@Parameter
 	private AutoscaleService autoscaleService;
 
+	@Parameter(required = false)
+	private DataRangeCache rangeCache;
+
 	@Parameter(type = ItemIO.BOTH, callback = "viewChanged")
 	private DatasetView view;
 
@@ -206,7 +210,13 @@ public class BrightnessContrast<T extends RealType<T>> extends
 		if (rangeChoice.equals(PLANE)) interval = view.xyPlane();
 		else interval = view.getData().getImgPlus();
 		
-		computeDataMinMax(interval);
+		DataRange range = null;
+		if (rangeCache != null) {
+			if (rangeChoice.equals(PLANE)) range = rangeCache
+				.getAutoscalePlaneRange(view.getData(), view.getPlanePosition());
+			else range = rangeCache.getAutoscaleRange(view.getData());
+		}
+		computeDataMinMax(interval, range);
 		computeInitialMinMax();
 		if (Double.isNaN(min)) min = initialMin;
 		if (Double.isNaN(max)) max = initialMax;
@@ -246,7 +256,8 @@ public class BrightnessContrast<T extends RealType<T>> extends
 	// (since in this case equals() would not work either).
 
 	private void computeDataMinMax(
-		final RandomAccessibleInterval<? extends RealType<?>> img)
+		final RandomAccessibleInterval<? extends RealType<?>> img,
+		final DataRange knownRange)
 	{
 		// FIXME: Reconcile this with DefaultDatasetView.autoscale(int). There is
 		// no reason to hardcode the usage of ComputeMinMax twice. Rather, there
@@ -255,7 +266,8 @@ public class BrightnessContrast<T extends RealType<T>> extends
 		// Dataset (not DatasetView) is a good place for it, because it is metadata
 		// independent of the visualization settings.
 
-		DataRange range = autoscaleService.getDefaultRandomAccessRange(img);
+		DataRange range = (knownRange != null) ? knownRange
+			: autoscaleService.getDefaultRandomAccessRange(img);
 		dataMin = range.getMin();
 		dataMax = range.getMax();
 
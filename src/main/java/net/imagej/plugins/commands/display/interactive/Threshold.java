@@ -41,6 +41,7 @@ import net.imagej.display.ImageDisplay;
 import net.imagej.display.ImageDisplayService;
 import net.imagej.display.event.AxisPositionEvent;
 import net.imagej.overlay.ThresholdOverlay;
+import net.imagej.plugins.commands.dataset.DataRangeCache;
 import net.imagej.threshold.ThresholdMethod;
 import net.imagej.threshold.ThresholdService;
 import net.imagej.widget.HistogramBundle;
@@ -179,6 +180,9 @@ public class Threshold<T extends RealType<T>> extends InteractiveImageCommand {
 	@Parameter
 	private AutoscaleService autoscaleService;
 
+	@Parameter(required = false)
+	private DataRangeCache rangeCache;
+
 	@Parameter
 	private UIService uiSrv;
 
@@ -404,6 +408,7 @@ public class Threshold<T extends RealType<T>> extends InteractiveImageCommand {
 
 	private DataRange calcDataRange() {
 		Dataset ds = imgDispSrv.getActiveDataset(display);
+		if (rangeCache != null) return rangeCache.getAutoscaleRange(ds);
 		return autoscaleService.getDefaultIntervalRange(ds.getImgPlus());
 	}
 
@@ -31,18 +31,22 @@
 
 package net.imagej.plugins.commands.imglib;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
 
 import net.imagej.Dataset;
 import net.imagej.Extents;
 import net.imagej.Position;
-import net.imagej.autoscale.AutoscaleService;
-import net.imagej.autoscale.DataRange;
 import net.imagej.display.ImageDisplay;
 import net.imagej.display.ImageDisplayService;
 import net.imagej.display.OverlayService;
+import net.imagej.plugins.commands.assign.ParallelTasks;
+import net.imagej.plugins.commands.assign.SeededAddNoise;
+import net.imagej.plugins.commands.dataset.DataRangeCache;
 import net.imglib2.RandomAccess;
-import net.imglib2.algorithm.stats.ComputeMinMax;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
 
@@ -54,12 +58,17 @@ import org.scijava.plugin.Attr;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 import org.scijava.util.RealRect;
 
 /**
  * Adds salt and pepper noise to an image. Image must be an integral type.
  * Assigns random pixels to max or min pixel values. These assignments are
  * evenly balanced and total 5% of the image.
+ * <p>
+ * Each plane draws its pixels from its own random stream derived from the seed
+ * and the plane's index. Planes are processed in parallel and a given seed
+ * always produces the same noise.
  * 
  * @author Barry DeZonia
  */
@@ -74,7 +83,7 @@ public class SaltAndPepper extends ContextCommand {
 	// -- instance variables that are Parameters --
 
 	@Parameter
-	private AutoscaleService autoscaleService;
+	private DataRangeCache rangeCache;
 
 	@Parameter
 	private ImageDisplayService imageDisplayService;
@@ -82,6 +91,9 @@ public class SaltAndPepper extends ContextCommand {
 	@Parameter
 	private OverlayService overlayService;
 
+	@Parameter(required = false)
+	private ThreadService threadService;
+
 	@Parameter(type = ItemIO.BOTH)
 	private ImageDisplay display;
 	
@@ -94,13 +106,15 @@ public class SaltAndPepper extends ContextCommand {
 	@Parameter(label="Pepper Value")
 	private double pepperValue = 0;
 
+	@Parameter(label = "Seed", required = false,
+		description = "Seed of the noise. Leave empty for a random seed.")
+	private Long seed;
+
 	// -- other instance variables --
 
 	private Dataset input;
 	private RealRect selection;
 	private Img<? extends RealType<?>> inputImage;
-	private RandomAccess<? extends RealType<?>> accessor;
-	private long[] position;
 
 	// -- public interface --
 
@@ -137,6 +151,14 @@ public class SaltAndPepper extends ContextCommand {
 		return pepperValue;
 	}
 
+	public void setSeed(Long val) {
+		seed = val;
+	}
+
+	public Long getSeed() {
+		return seed;
+	}
+
 	// -- private interface --
 
 	private boolean inputOkay() {
@@ -163,89 +185,130 @@ public class SaltAndPepper extends ContextCommand {
 	private void setupWorkingData() {
 		selection = overlayService.getSelectionBounds(display);
 		inputImage = input.getImgPlus();
-		position = new long[inputImage.numDimensions()];
-		accessor = inputImage.randomAccess();
 		if (autoCalcMinMax) {
-			DataRange range =
-				autoscaleService.getDefaultIntervalRange(inputImage);
-			pepperValue = range.getMin();
-			saltValue = range.getMax();
-			RealType<?> t = inputImage.firstElement();
-			@SuppressWarnings({"unchecked","rawtypes"})
-			final ComputeMinMax<? extends RealType<?>> cmm =
-				new ComputeMinMax(inputImage, t.createVariable(), t.createVariable());
-				cmm.process();
-				pepperValue = cmm.getMin().getRealDouble();
-				saltValue = cmm.getMax().getRealDouble();
+			pepperValue = rangeCache.getRange(input).getMin();
+			saltValue = rangeCache.getRange(input).getMax();
 		}
 	}
 
 	private void assignPixels() {
-		final Random rng = new Random();
-
-		rng.setSeed(System.currentTimeMillis());
+		final long noiseSeed = (seed == null) ? new Random().nextLong() : seed;
 
+		final List<long[]> planes = new ArrayList<long[]>();
 		final long[] planeDims = new long[inputImage.numDimensions() - 2];
 		for (int i = 0; i < planeDims.length; i++)
 			planeDims[i] = inputImage.dimension(i + 2);
-		final Extents extents = new Extents(planeDims);
-		final Position planePos = extents.createPosition();
 		if (planeDims.length == 0) { // 2d only
-			assignPlanePixels(planePos, rng);
+			planes.add(new long[0]);
 		}
 		else { // 3 or more dimensions
+			final Extents extents = new Extents(planeDims);
+			final Position planePos = extents.createPosition();
 			while (planePos.hasNext()) {
 				planePos.fwd();
-				assignPlanePixels(planePos, rng);
+				final long[] plane = new long[planeDims.length];
+				for (int i = 0; i < plane.length; i++)
+					plane[i] = planePos.getLongPosition(i);
+				planes.add(plane);
 			}
 		}
+
+		// NB - types that pack several pixels per storage element (such as bit
+		// types) cannot safely be written from several threads at once
+		final boolean byteAligned =
+			inputImage.firstElement().getBitsPerPixel() % 8 == 0;
+		final int numThreads = byteAligned ? Math.min(planes.size(),
+			ParallelTasks.defaultThreadCount()) : 1;
+		final long[] bounds = ParallelTasks.split(planes.size(), numThreads);
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < bounds.length - 1; t++) {
+			tasks.add(new PlaneTask(planes, (int) bounds[t], (int) bounds[t + 1],
+				noiseSeed));
+		}
+		ParallelTasks.run(threadService, tasks, numThreads);
 	}
 
 	private void cleanup() {
 		// nothing to do
 	}
 
-	private void assignPlanePixels(final Position planePos, final Random rng) {
-		// set plane coordinate values once
-		for (int i = 2; i < position.length; i++)
-			position[i] = planePos.getLongPosition(i - 2);
+	private static long nextLong(final SplittableRandom rng, final long bound) {
+		final double val = rng.nextDouble();
+		return (long) (val * bound);
+	}
 
-		final long ou = (long) selection.x;
-		final long ov = (long) selection.y;
-		long w = (long) selection.width;
-		long h = (long) selection.height;
+	/**
+	 * Assigns the pixels of a range of planes. Each plane has its own random
+	 * stream so the result does not depend on which task handles the plane.
+	 */
+	private class PlaneTask implements Callable<Void> {
+
+		private final List<long[]> planes;
+		private final int first, last;
+		private final long noiseSeed;
+		private final RandomAccess<? extends RealType<?>> accessor;
+		private final long[] position;
+
+		public PlaneTask(final List<long[]> planes, final int first,
+			final int last, final long noiseSeed)
+		{
+			this.planes = planes;
+			this.first = first;
+			this.last = last;
+			this.noiseSeed = noiseSeed;
+			this.accessor = inputImage.randomAccess();
+			this.position = new long[inputImage.numDimensions()];
+		}
 
-		if (w <= 0) w = inputImage.dimension(0);
-		if (h <= 0) h = inputImage.dimension(1);
+		@Override
+		public Void call() {
+			for (int p = first; p < last; p++) {
+				final SplittableRandom rng =
+					new SplittableRandom(SeededAddNoise.streamSeed(noiseSeed, p));
+				assignPlanePixels(planes.get(p), rng);
+			}
+			return null;
+		}
 
-		final double percentToChange = 0.05;
-		final long numPixels = (long) (percentToChange * w * h);
+		private void assignPlanePixels(final long[] planePos,
+			final SplittableRandom rng)
+		{
+			// set plane coordinate values once
+			for (int i = 2; i < position.length; i++)
+				position[i] = planePos[i - 2];
 
-		for (long p = 0; p < numPixels / 2; p++) {
-			long randomU, randomV;
+			final long ou = (long) selection.x;
+			final long ov = (long) selection.y;
+			long w = (long) selection.width;
+			long h = (long) selection.height;
 
-			randomU = ou + nextLong(rng, w);
-			randomV = ov + nextLong(rng, h);
-			setPixel(randomU, randomV, saltValue);
+			if (w <= 0) w = inputImage.dimension(0);
+			if (h <= 0) h = inputImage.dimension(1);
 
-			randomU = ou + nextLong(rng, w);
-			randomV = ov + nextLong(rng, h);
-			setPixel(randomU, randomV, pepperValue);
-		}
-	}
+			final double percentToChange = 0.05;
+			final long numPixels = (long) (percentToChange * w * h);
 
-	private long nextLong(final Random rng, final long bound) {
-		final double val = rng.nextDouble();
-		return (long) (val * bound);
-	}
+			for (long p = 0; p < numPixels / 2; p++) {
+				long randomU, randomV;
 
-	/**
-	 * Sets a value at a specific (u,v) location in the image to a given value
-	 */
-	private void setPixel(final long u, final long v, final double value) {
-		position[0] = u;
-		position[1] = v;
-		accessor.setPosition(position);
-		accessor.get().setReal(value);
+				randomU = ou + nextLong(rng, w);
+				randomV = ov + nextLong(rng, h);
+				setPixel(randomU, randomV, saltValue);
+
+				randomU = ou + nextLong(rng, w);
+				randomV = ov + nextLong(rng, h);
+				setPixel(randomU, randomV, pepperValue);
+			}
+		}
+
+		/**
+		 * Sets a value at a specific (u,v) location in the image to a given value
+		 */
+		private void setPixel(final long u, final long v, final double value) {
+			position[0] = u;
+			position[1] = v;
+			accessor.setPosition(position);
+			accessor.get().setReal(value);
+		}
 	}
 }
@@ -80,7 +80,13 @@ public class FindEdges extends ContextCommand {
 		final RealRect selection = overlayService.getSelectionBounds(display);
 		final Neighborhood3x3Operation operation =
 			new Neighborhood3x3Operation(input, selection,
-				new FindEdgesWatcher(input));
+				new Neighborhood3x3Operation.WatcherFactory() {
+
+					@Override
+					public Neighborhood3x3Watcher createWatcher() {
+						return new FindEdgesWatcher(input);
+					}
+				});
 		operation.run();
 	}
 
@@ -94,7 +100,7 @@ public class FindEdges extends ContextCommand {
 
 	// -- private interface --
 
-	private class FindEdgesWatcher implements Neighborhood3x3Watcher {
+	static class FindEdgesWatcher implements Neighborhood3x3RowWatcher {
 
 		/**
 		 * n - contains a local copy of the 9 values of a 3x3 neighborhood
@@ -147,13 +153,35 @@ public class FindEdges extends ContextCommand {
 
 			final double sum2 = n[0] + 2 * n[3] + n[6] - n[2] - 2 * n[5] - n[8];
 
-			double value = Math.sqrt(sum1 * sum1 + sum2 * sum2);
+			return clamp(Math.sqrt(sum1 * sum1 + sum2 * sum2));
+		}
+
+		/**
+		 * Calculates a whole row at once using the same algorithm.
+		 */
+		@Override
+		public void calcOutputRow(final double[] above, final double[] row,
+			final double[] below, final double[] output, final int width)
+		{
+			for (int x = 0; x < width; x++) {
+
+				final double sum1 =
+					above[x] + 2 * above[x + 1] + above[x + 2] - below[x] - 2 *
+						below[x + 1] - below[x + 2];
+
+				final double sum2 =
+					above[x] + 2 * row[x] + below[x] - above[x + 2] - 2 * row[x + 2] -
+						below[x + 2];
+
+				output[x] = clamp(Math.sqrt(sum1 * sum1 + sum2 * sum2));
+			}
+		}
 
+		private double clamp(double value) {
 			if (integerDataset) {
 				if (value < typeMinValue) value = typeMinValue;
 				if (value > typeMaxValue) value = typeMaxValue;
 			}
-
 			return value;
 		}
 	}
@@ -31,56 +31,108 @@
 
 package net.imagej.plugins.commands.neigh;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import net.imagej.Dataset;
 import net.imagej.Extents;
 import net.imagej.Position;
-import net.imglib2.Cursor;
+import net.imagej.plugins.commands.assign.ParallelTasks;
 import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
 import org.scijava.util.RealRect;
 
 /**
  * Neighborhood3x3Operation - a helper class for 3x3 neighborhood operation
  * plugins such as SmoothDataValues, SharpenDataValues, and FindEdges. Does the
- * work of communicating with a Neighborhood3x3Watcher.
+ * work of communicating with a Neighborhood3x3Watcher. Watchers that implement
+ * Neighborhood3x3RowWatcher are handed whole rows of values at a time. Given a
+ * WatcherFactory, planes and bands of rows are processed in parallel with one
+ * watcher per thread.
  * 
  * @author Barry DeZonia
  */
 public class Neighborhood3x3Operation {
 
+	// -- constants --
+
+	/** Number of bands of rows per thread. More bands balance the load. */
+	private static final int BANDS_PER_THREAD = 4;
+
 	// -- instance variables --
 
 	private final Dataset input;
 	private Img<? extends RealType<?>> inputImage;
-	private Img<? extends RealType<?>> inputImageCopy;
 	private final RealRect selection;
 	private final Neighborhood3x3Watcher watcher;
+	private final WatcherFactory watcherFactory;
+	private int numThreads = ParallelTasks.defaultThreadCount();
 
-	// -- constructor --
+	// -- constructors --
 
+	/**
+	 * Creates an operation that runs on one thread, since the single watcher
+	 * cannot be shared.
+	 */
 	public Neighborhood3x3Operation(final Dataset input,
 		final RealRect selection, final Neighborhood3x3Watcher watcher)
 	{
 		this.input = input;
 		this.watcher = watcher;
+		this.watcherFactory = null;
 		this.selection = selection;
 
 		if (watcher == null) throw new IllegalArgumentException(
 			"neighborhood watcher cannot be null!");
 	}
 
+	/**
+	 * Creates an operation that runs on several threads. Each thread gets its
+	 * own watcher from the factory.
+	 */
+	public Neighborhood3x3Operation(final Dataset input,
+		final RealRect selection, final WatcherFactory watcherFactory)
+	{
+		this.input = input;
+		this.watcher = null;
+		this.watcherFactory = watcherFactory;
+		this.selection = selection;
+
+		if (watcherFactory == null) throw new IllegalArgumentException(
+			"neighborhood watcher factory cannot be null!");
+	}
+
 	// -- public interface --
 
+	/** Creates a new watcher for each thread of a multithreaded operation. */
+	public interface WatcherFactory {
+
+		Neighborhood3x3Watcher createWatcher();
+	}
+
 	public void run() {
 		checkInput();
 		setupWorkingData();
 		runAssignment();
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Sets the number of threads to use. Only used when the operation was given
+	 * a watcher factory.
+	 */
+	public void setNumThreads(final int numThreads) {
+		if (numThreads < 1) throw new IllegalArgumentException(
+			"number of threads must be at least 1");
+		this.numThreads = numThreads;
+	}
+
 	// -- private interface --
 
 	/**
@@ -100,112 +152,252 @@ public class Neighborhood3x3Operation {
 
 	private void setupWorkingData() {
 		inputImage = input.getImgPlus();
-		inputImageCopy = cloneImage(inputImage);
+
+		if (selection.width == 0) selection.width = (int) inputImage.dimension(0);
+
+		if (selection.height == 0) selection.height =
+			(int) inputImage.dimension(1);
 	}
 
+	/**
+	 * Splits the planes into bands of rows and applies the operation to the
+	 * bands in parallel. The image is changed in place without copying it. Each
+	 * band only writes its own rows, and the two rows just outside of it are
+	 * saved before any band starts writing. So every band sees original values.
+	 */
 	private void runAssignment() {
+		final List<long[]> planes = planePositions();
+		final int threads = determineThreads();
+		final long height = (long) selection.height;
+		final int planeCount = planes.size();
+		final int bandsPerPlane = threads == 1 ? 1 : Math.max(1,
+			(threads * BANDS_PER_THREAD + planeCount - 1) / planeCount);
+		final long[] bounds = ParallelTasks.split(height, bandsPerPlane);
+		final ThreadLocal<Neighborhood3x3Watcher> watchers =
+			new ThreadLocal<Neighborhood3x3Watcher>() {
+
+				@Override
+				protected Neighborhood3x3Watcher initialValue() {
+					return watcher != null ? watcher : watcherFactory.createWatcher();
+				}
+			};
+		final long minY = (long) selection.y;
+		final RandomAccess<? extends RealType<?>> accessor =
+			inputImage.randomAccess();
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final long[] plane : planes) {
+			for (int b = 0; b < bounds.length - 1; b++) {
+				final long y0 = minY + bounds[b];
+				final long y1 = minY + bounds[b + 1];
+				if (y1 == y0) continue;
+				final double[] top = readRow(accessor, plane, y0 - 1);
+				final double[] bottom = readRow(accessor, plane, y1);
+				tasks.add(new Callable<Void>() {
+
+					@Override
+					public Void call() {
+						applyOperationToRows(plane, y0, y1, top, bottom, watchers.get());
+						return null;
+					}
+				});
+			}
+		}
+		ParallelTasks.run(ParallelTasks.threadService(input.getContext()), tasks,
+			threads);
+		input.update();
+	}
+
+	/** Returns the position of every plane: the coordinates of dims 2 and up. */
+	private List<long[]> planePositions() {
 		final long[] planeDims = new long[inputImage.numDimensions() - 2];
 		for (int i = 0; i < planeDims.length; i++)
 			planeDims[i] = inputImage.dimension(i + 2);
-		final Extents extents = new Extents(planeDims);
-		final Position planePos = extents.createPosition();
+		final List<long[]> planes = new ArrayList<long[]>();
 		if (planeDims.length == 0) { // dataset is 2d only
-			applyOperationToPlane(planePos);
+			planes.add(new long[0]);
+			return planes;
 		}
-		else { // 3 or more dimensions
-			while (planePos.hasNext()) {
-				planePos.fwd();
-				applyOperationToPlane(planePos);
-			}
+		// 3 or more dimensions
+		final Extents extents = new Extents(planeDims);
+		final Position planePos = extents.createPosition();
+		while (planePos.hasNext()) {
+			planePos.fwd();
+			final long[] plane = new long[planeDims.length];
+			planePos.localize(plane);
+			planes.add(plane);
 		}
-		input.update();
+		return planes;
 	}
 
-	private void applyOperationToPlane(final Position planePos) {
+	/**
+	 * A single watcher must not be shared between threads. Types narrower than a
+	 * byte pack several pixels per storage element, so neighboring rows cannot
+	 * safely be written at the same time either.
+	 */
+	private int determineThreads() {
+		if (watcherFactory == null) return 1;
+		if (inputImage.firstElement().getBitsPerPixel() % 8 != 0) return 1;
+		return numThreads;
+	}
 
+	/**
+	 * Applies the operation to rows [y0,y1) of the selected part of one plane.
+	 * Three rows of input values are kept in primitive buffers that roll down
+	 * the plane, so each input value is read only once. Values just outside of
+	 * the image are mirrored into the ends of the buffers as the rows are read.
+	 * The interior loop therefore never needs to check bounds.
+	 * <p>
+	 * A row is read before the row above it is written, so the rows of the band
+	 * are read from the image. The rows just above and below the band were
+	 * saved beforehand in top and bottom.
+	 */
+	private void applyOperationToRows(final long[] plane, final long y0,
+		final long y1, final double[] top, final double[] bottom,
+		final Neighborhood3x3Watcher w)
+	{
 		final long[] imageDims = new long[inputImage.numDimensions()];
 		inputImage.dimensions(imageDims);
 
-		if (selection.width == 0) selection.width = (int) imageDims[0];
-
-		if (selection.height == 0) selection.height = (int) imageDims[1];
-
 		// output is done by changin input image in place
-		final RandomAccess<? extends RealType<?>> outputAccessor =
+		final RandomAccess<? extends RealType<?>> accessor =
 			inputImage.randomAccess();
 
-		// input is a copy of the original data with out of bounds access enabled
-		final RandomAccessible<? extends RealType<?>> inputInterval =
-			Views.extendMirrorSingle(inputImageCopy);
-
-		final RandomAccess<? extends RealType<?>> extendedInput =
-			inputInterval.randomAccess();
-
 		// initialize the watcher
-		watcher.setup();
-
-		final long[] inputPosition = new long[imageDims.length];
-		final long[] localInputPosition = new long[imageDims.length];
+		w.setup();
 
-		for (int i = 2; i < inputPosition.length; i++) {
-			inputPosition[i] = planePos.getLongPosition(i - 2);
-			localInputPosition[i] = planePos.getLongPosition(i - 2);
+		final long[] position = new long[imageDims.length];
+		for (int i = 2; i < position.length; i++) {
+			position[i] = plane[i - 2];
 		}
 
 		final long minX = (long) selection.x;
-		final long minY = (long) selection.y;
-		final long width = (long) selection.width;
-		final long height = (long) selection.height;
-		for (long y = minY; y < minY + height; y++) {
-			inputPosition[1] = y;
-			for (long x = minX; x < minX + width; x++) {
-				inputPosition[0] = x;
-				watcher.initializeNeighborhood(inputPosition);
-
-				for (int dy = -1; dy <= 1; dy++) {
-					localInputPosition[1] = inputPosition[1] + dy;
-					for (int dx = -1; dx <= 1; dx++) {
-						localInputPosition[0] = inputPosition[0] + dx;
-						extendedInput.setPosition(localInputPosition);
-						final double localValue = extendedInput.get().getRealDouble();
-						watcher.visitLocation(dx, dy, localValue);
-					}
-				}
-				// assign output
-				outputAccessor.setPosition(inputPosition);
-				outputAccessor.get().setReal(watcher.calcOutputValue());
+		final int width = (int) selection.width;
+
+		double[] above = new double[width + 2];
+		double[] row = new double[width + 2];
+		double[] below = new double[width + 2];
+		final double[] output = new double[width];
+
+		System.arraycopy(top, 0, above, 0, above.length);
+		readRow(accessor, position, y0, minX, imageDims, row);
+		for (long y = y0; y < y1; y++) {
+			if (y + 1 < y1) {
+				readRow(accessor, position, y + 1, minX, imageDims, below);
 			}
+			else System.arraycopy(bottom, 0, below, 0, below.length);
+			position[1] = y;
+			calcRow(w, position, minX, above, row, below, output);
+			writeRow(accessor, position, minX, output);
+			final double[] tmp = above;
+			above = row;
+			row = below;
+			below = tmp;
 		}
 	}
 
-	// TODO - eliminate when ImgLib allows ability to duplicate/clone an Img
-	// TODO - find a way to eliminate use of raw types here
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private Img<? extends RealType<?>> cloneImage(final Img image) {
-		// TODO - used to be able to call Image::clone()
-		// For now copy data by hand
-
-		final long[] dimensions = new long[image.numDimensions()];
-		image.dimensions(dimensions);
-
-		final Img<? extends RealType<?>> copyOfImg =
-			image.factory().create(dimensions, image.firstElement());
+	/** Calculates the output values of one row of the selection. */
+	private void calcRow(final Neighborhood3x3Watcher watcher,
+		final long[] position, final long minX,
+		final double[] above, final double[] row, final double[] below,
+		final double[] output)
+	{
+		final int width = output.length;
+		if (watcher instanceof Neighborhood3x3RowWatcher) {
+			((Neighborhood3x3RowWatcher) watcher).calcOutputRow(above, row, below,
+				output, width);
+			return;
+		}
+		for (int x = 0; x < width; x++) {
+			position[0] = minX + x;
+			watcher.initializeNeighborhood(position);
+			watcher.visitLocation(-1, -1, above[x]);
+			watcher.visitLocation(0, -1, above[x + 1]);
+			watcher.visitLocation(1, -1, above[x + 2]);
+			watcher.visitLocation(-1, 0, row[x]);
+			watcher.visitLocation(0, 0, row[x + 1]);
+			watcher.visitLocation(1, 0, row[x + 2]);
+			watcher.visitLocation(-1, 1, below[x]);
+			watcher.visitLocation(0, 1, below[x + 1]);
+			watcher.visitLocation(1, 1, below[x + 2]);
+			output[x] = watcher.calcOutputValue();
+		}
+	}
 
-		final long[] position = new long[dimensions.length];
+	/** Reads row y of the selection, with its border columns, from a plane. */
+	private double[] readRow(final RandomAccess<? extends RealType<?>> accessor,
+		final long[] plane, final long y)
+	{
+		final long[] imageDims = new long[inputImage.numDimensions()];
+		inputImage.dimensions(imageDims);
+		final long[] position = new long[imageDims.length];
+		for (int i = 2; i < position.length; i++) {
+			position[i] = plane[i - 2];
+		}
+		final double[] buffer = new double[(int) selection.width + 2];
+		readRow(accessor, position, y, (long) selection.x, imageDims, buffer);
+		return buffer;
+	}
 
-		final Cursor<? extends RealType<?>> cursor = image.localizingCursor();
+	/**
+	 * Reads the values of row y from x = minX-1 to x = minX+width, where width is
+	 * the length of the buffer less two. Rows and columns outside of the image are
+	 * mirrored back into it.
+	 */
+	private void readRow(final RandomAccess<? extends RealType<?>> accessor,
+		final long[] position, final long y, final long minX,
+		final long[] imageDims, final double[] buffer)
+	{
+		final long w = imageDims[0];
+		position[1] = mirror(y, imageDims[1]);
+		// the part of the row that lies within the image
+		final long first = Math.max(minX - 1, 0);
+		final long last = Math.min(minX + buffer.length - 2, w - 1);
+		position[0] = first;
+		accessor.setPosition(position);
+		int i = (int) (first - minX + 1);
+		for (long x = first; x <= last; x++) {
+			buffer[i++] = accessor.get().getRealDouble();
+			accessor.fwd(0);
+		}
+		// the border columns, if they lie outside of the image
+		if (minX - 1 < 0) {
+			buffer[0] = readValue(accessor, position, mirror(minX - 1, w));
+		}
+		if (minX + buffer.length - 2 > w - 1) {
+			buffer[buffer.length - 1] =
+				readValue(accessor, position, mirror(minX + buffer.length - 2, w));
+		}
+	}
 
-		final RandomAccess<? extends RealType<?>> access =
-			copyOfImg.randomAccess();
+	private double readValue(final RandomAccess<? extends RealType<?>> accessor,
+		final long[] position, final long x)
+	{
+		position[0] = x;
+		accessor.setPosition(position);
+		return accessor.get().getRealDouble();
+	}
 
-		while (cursor.hasNext()) {
-			cursor.next();
-			final double currValue = cursor.get().getRealDouble();
-			cursor.localize(position);
-			access.setPosition(position);
-			access.get().setReal(currValue);
+	/** Writes the output values of one row of the selection. */
+	private void writeRow(final RandomAccess<? extends RealType<?>> accessor,
+		final long[] position, final long minX, final double[] output)
+	{
+		position[0] = minX;
+		accessor.setPosition(position);
+		for (int x = 0; x < output.length; x++) {
+			accessor.get().setReal(output[x]);
+			accessor.fwd(0);
 		}
+	}
 
-		return copyOfImg;
+	/**
+	 * Mirrors a coordinate back into [0,size) without repeating the edge value,
+	 * the same way Views.extendMirrorSingle() does.
+	 */
+	private static long mirror(final long i, final long size) {
+		if (size == 1) return 0;
+		final long period = 2 * size - 2;
+		long m = i % period;
+		if (m < 0) m += period;
+		return m < size ? m : period - m;
 	}
 }
@@ -0,0 +1,57 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.neigh;
+
+/**
+ * A {@link Neighborhood3x3Watcher} that can also calculate a whole row of
+ * output values at once. {@link Neighborhood3x3Operation} uses this instead of
+ * visiting each location of each neighborhood, which saves nine calls per
+ * pixel.
+ */
+public interface Neighborhood3x3RowWatcher extends Neighborhood3x3Watcher {
+
+	/**
+	 * Calculates the output values of one row. The input rows hold one extra
+	 * value at each end, so the neighborhood of output value x is made of values
+	 * x, x+1 and x+2 of the three input rows. Values outside of the image have
+	 * already been filled in by mirroring.
+	 * 
+	 * @param above The input row above the output row (dy = -1).
+	 * @param row The input row of the output row (dy = 0).
+	 * @param below The input row below the output row (dy = +1).
+	 * @param output Where to place the output values.
+	 * @param width The number of output values to calculate.
+	 */
+	void calcOutputRow(double[] above, double[] row, double[] below,
+		double[] output, int width);
+
+}
@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.ops.function.Function;
+import net.imglib2.ops.parse.RealEquationFunctionParser;
+import net.imglib2.ops.util.Tuple2;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link CompiledEquation} computes the same values as the function
+ * built by RealEquationFunctionParser.
+ */
+public class CompiledEquationTest {
+
+	private static final String[] EQUATIONS = { "img + 40", "10 - 4 - 3",
+		"8 / 4 * 2", "1 - 2 + 3", "2 ^ 3 ^ 2", "-2 ^ 2", "2 * -3", "2 ^ -1",
+		"(1 - 2) - 3", "[x,y], x * 2 + y", "[x,y], x - y - img",
+		"[u1,v1,w1] , -2.003*u1 + 8.41*w1 + E + PI",
+		"[x,y], sqrt(x*x + y*y) / (1 + img)",
+		"[x,y], sin(x) - cos(y) * tan(img)",
+		"[x,y], exp(-x/10) + log(1 + y) - abs(img) / floor(2.5) + ceil(0.5)",
+		"[x,y], x / y" };
+
+	@Test
+	public void testMatchesParser() {
+		final Img<FloatType> img = ArrayImgs.floats(5, 4, 3);
+		final RandomAccess<FloatType> access = img.randomAccess();
+		final long[] pos = new long[3];
+		for (final String equation : EQUATIONS) {
+			final Tuple2<Function<long[], DoubleType>, String> result =
+				new RealEquationFunctionParser().parse(equation, img);
+			assertNull(equation + ": " + result.get2(), result.get2());
+			final Function<long[], DoubleType> function = result.get1();
+			final CompiledEquation program = CompiledEquation.compile(equation);
+			assertNotNull(equation, program);
+			final double[] stack = new double[program.getStackSize()];
+			final DoubleType expected = new DoubleType();
+			for (pos[2] = 0; pos[2] < 3; pos[2]++) {
+				for (pos[1] = 0; pos[1] < 4; pos[1]++) {
+					for (pos[0] = 0; pos[0] < 5; pos[0]++) {
+						access.setPosition(pos);
+						final FloatType value = access.get();
+						value.setReal(pos[0] * 1.5 - pos[1] + pos[2] * 0.25);
+						function.compute(pos, expected);
+						// NB - division by zero is left to the parsed function
+						if (!program.evaluate(pos, value.getRealDouble(), stack)) continue;
+						final String where =
+							equation + " at " + pos[0] + "," + pos[1] + "," + pos[2];
+						assertEquals(where,
+							Double.doubleToLongBits(expected.getRealDouble()),
+							Double.doubleToLongBits(stack[0]));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGroupsFromTheRight() {
+		assertEquals(9, value("10 - 4 - 3"), 0);
+		assertEquals(1, value("8 / 4 * 2"), 0);
+		assertEquals(512, value("2 ^ 3 ^ 2"), 0);
+		assertEquals(4, value("-2 ^ 2"), 0);
+	}
+
+	@Test
+	public void testUnsupportedSyntax() {
+		assertNull(CompiledEquation.compile("7 % 3"));
+		assertNull(CompiledEquation.compile("round(2.5)"));
+		assertNull(CompiledEquation.compile("--3"));
+		assertNull(CompiledEquation.compile("[x,y], z"));
+	}
+
+	@Test
+	public void testDivisionByZeroIsLeftToParser() {
+		final CompiledEquation program = CompiledEquation.compile("1 / 0");
+		assertNotNull(program);
+		final double[] stack = new double[program.getStackSize()];
+		assertFalse(program.evaluate(new long[0], 0, stack));
+	}
+
+	private double value(final String equation) {
+		final CompiledEquation program = CompiledEquation.compile(equation);
+		final double[] stack = new double[program.getStackSize()];
+		assertTrue(program.evaluate(new long[0], 0, stack));
+		return stack[0];
+	}
+}
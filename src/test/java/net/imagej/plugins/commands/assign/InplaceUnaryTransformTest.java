@@ -0,0 +1,345 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.Extents;
+import net.imagej.ImgPlus;
+import net.imagej.Position;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.overlay.Overlay;
+import net.imagej.overlay.RectangleOverlay;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.ops.operation.real.unary.RealLog;
+import net.imglib2.ops.operation.real.unary.RealSqr;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that the tiled engines of {@link InplaceUnaryTransform} give the same
+ * results as its point by point ImageAssignment path.
+ */
+public class InplaceUnaryTransformTest {
+
+	private Context context;
+	private DatasetService datasetService;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testTiledMatchesGeneric() {
+		for (final int threads : new int[] { 1, 2, 5 }) {
+			final Dataset ds = create(8, false, false, 13, 7, 3);
+			assertTiledMatchesGeneric(ds, null,
+				new RealSqr<DoubleType, DoubleType>(), threads);
+		}
+	}
+
+	@Test
+	public void testTiledMatchesGenericInSelection() {
+		for (final int threads : new int[] { 1, 3 }) {
+			final Dataset ds = create(16, false, false, 17, 11, 2);
+			final RectangleOverlay overlay = new RectangleOverlay(context);
+			overlay.setOrigin(3, 0);
+			overlay.setOrigin(2, 1);
+			overlay.setExtent(9, 0);
+			overlay.setExtent(5, 1);
+			assertTiledMatchesGeneric(ds, overlay,
+				new RealSqr<DoubleType, DoubleType>(), threads);
+		}
+	}
+
+	@Test
+	public void testTiledMatchesGenericWithNaN() {
+		final Dataset ds = create(32, true, true, 9, 8, 2);
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		cursor.fwd();
+		cursor.get().setReal(Double.NaN);
+		cursor.jumpFwd(10);
+		cursor.get().setReal(Double.POSITIVE_INFINITY);
+		assertTiledMatchesGeneric(ds, null,
+			new RealLog<DoubleType, DoubleType>(), 4);
+	}
+
+	@Test
+	public void testPrimitiveArrayPathMatchesGeneric() {
+		final long[] dims = { 12, 9, 3 };
+		final ImgPlus<ShortType> img =
+			new ImgPlus<ShortType>(ArrayImgs.shorts(dims), "test",
+				new AxisType[] { Axes.X, Axes.Y, Axes.Z });
+		final Dataset arrayDs = datasetService.create(img);
+		randomize(arrayDs, false);
+		final Dataset planarDs = create(32, true, true, 12, 9, 3);
+		for (final Dataset ds : new Dataset[] { arrayDs, planarDs }) {
+			assertTrue(PrimitiveArrayTransform.isSupported(ds.getImgPlus(),
+				new long[3], dims));
+			for (final int threads : new int[] { 1, 4 }) {
+				assertTiledMatchesGeneric(ds.duplicate(), null,
+					new RealSqr<DoubleType, DoubleType>(), threads);
+				assertTiledMatchesGeneric(ds.duplicate(), null,
+					new RealLog<DoubleType, DoubleType>(), threads);
+			}
+		}
+	}
+
+	@Test
+	public void testLookupTableMatchesGeneric() {
+		final RectangleOverlay overlay = new RectangleOverlay(context);
+		overlay.setOrigin(1, 0);
+		overlay.setOrigin(4, 1);
+		overlay.setExtent(250, 0);
+		overlay.setExtent(200, 1);
+		for (final boolean signed : new boolean[] { false, true }) {
+			for (final int bits : new int[] { 8, 16 }) {
+				final Dataset ds = create(bits, signed, false, 256, 256, 2);
+				assertTiledMatchesGeneric(ds.duplicate(), null,
+					new RealSqr<DoubleType, DoubleType>(), 3, true);
+				assertTiledMatchesGeneric(ds.duplicate(), overlay,
+					new RealLog<DoubleType, DoubleType>(), 3, true);
+			}
+		}
+	}
+
+	@Test
+	public void testFusedRGBMatchesGeneric() {
+		final RectangleOverlay overlay = new RectangleOverlay(context);
+		overlay.setOrigin(3, 0);
+		overlay.setOrigin(2, 1);
+		overlay.setExtent(7, 0);
+		overlay.setExtent(4, 1);
+		for (final boolean cells : new boolean[] { false, true }) {
+			for (final int threads : new int[] { 1, 3 }) {
+				final Dataset ds = rgb(cells);
+				assertFusedMatchesGeneric(ds.duplicate(), null, false, threads,
+					false);
+				assertFusedMatchesGeneric(ds.duplicate(), null, true, threads,
+					false);
+				assertFusedMatchesGeneric(ds.duplicate(), null, false, threads,
+					true);
+				assertFusedMatchesGeneric(ds.duplicate(), overlay, false, threads,
+					false);
+			}
+		}
+	}
+
+	@Test
+	public void testCanceledRunLeavesImageUnchanged() {
+		final Dataset ds = create(8, false, false, 10, 10, 2);
+		final Dataset original = ds.duplicate();
+		final InplaceUnaryTransform<?, DoubleType> xform =
+			transform(ds, null, new RealSqr<DoubleType, DoubleType>());
+		xform.setCanceler(new Canceled());
+		xform.run();
+		assertSameValues(original, ds);
+	}
+
+	// -- helpers --
+
+	/** Makes an XYZ dataset filled with random values. */
+	private Dataset create(final int bitsPerPixel, final boolean signed,
+		final boolean floating, final long... dims)
+	{
+		final AxisType[] axes = { Axes.X, Axes.Y, Axes.Z };
+		final Dataset ds = datasetService.create(dims, "test", axes,
+			bitsPerPixel, signed, floating);
+		randomize(ds, floating);
+		return ds;
+	}
+
+	/**
+	 * Makes a random RGB merged XYCZ dataset. It is planar or made of cells
+	 * that the primitive array path does not handle.
+	 */
+	private Dataset rgb(final boolean cells) {
+		final long[] dims = { 13, 7, 3, 2 };
+		final AxisType[] axes = { Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z };
+		final Dataset ds;
+		if (cells) {
+			final Img<UnsignedByteType> img = new CellImgFactory<UnsignedByteType>(
+				new UnsignedByteType(), 5, 5, 1, 1).create(dims);
+			ds = datasetService.create(new ImgPlus<UnsignedByteType>(img, "rgb",
+				axes));
+		}
+		else {
+			ds = datasetService.create(dims, "rgb", axes, 8, false, false);
+		}
+		ds.setRGBMerged(true);
+		randomize(ds, false);
+		return ds;
+	}
+
+	/** Fills a dataset with random values within the range of its type. */
+	private void randomize(final Dataset ds, final boolean floating) {
+		final Random random = new Random(ds.getType().getBitsPerPixel());
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		while (cursor.hasNext()) {
+			final RealType<?> value = cursor.next();
+			if (floating) {
+				value.setReal(random.nextGaussian() * 100);
+				continue;
+			}
+			final double min = value.getMinValue();
+			final double range = value.getMaxValue() - min + 1;
+			value.setReal(min + Math.floor(random.nextDouble() * range));
+		}
+	}
+
+	private void assertTiledMatchesGeneric(final Dataset ds,
+		final Overlay overlay,
+		final ComplexUnaryOperation<DoubleType, DoubleType> op, final int threads)
+	{
+		assertTiledMatchesGeneric(ds, overlay, op, threads, false);
+	}
+
+	private void assertTiledMatchesGeneric(final Dataset ds,
+		final Overlay overlay,
+		final ComplexUnaryOperation<DoubleType, DoubleType> op,
+		final int threads, final boolean lookupTable)
+	{
+		final Dataset expected = ds.duplicate();
+		final InplaceUnaryTransform<?, DoubleType> generic =
+			transform(expected, overlay, op);
+		generic.setTiled(false);
+		generic.run();
+		final InplaceUnaryTransform<?, DoubleType> tiled =
+			transform(ds, overlay, op);
+		tiled.setNumThreads(threads);
+		tiled.setLookupTableEnabled(lookupTable);
+		tiled.run();
+		assertSameValues(expected, ds);
+	}
+
+	/**
+	 * Transforms the second Z plane of an RGB dataset with all channels fused
+	 * and compares the result to the point by point path, which handles one
+	 * channel at a time. A clipped region is not a whole plane, so the fused
+	 * tile assignment is used rather than the primitive array path.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void assertFusedMatchesGeneric(final Dataset ds,
+		final Overlay overlay, final boolean clip, final int threads,
+		final boolean lookupTable)
+	{
+		final Position planePos =
+			new Extents(new long[] { 3, 2 }).createPosition();
+		planePos.setPosition(1, 1);
+		final RealSqr<DoubleType, DoubleType> op =
+			new RealSqr<DoubleType, DoubleType>();
+		final Dataset expected = ds.duplicate();
+		// NB - the transforms only fuse the channels of merged datasets
+		ds.setRGBMerged(true);
+		expected.setRGBMerged(true);
+		final InplaceUnaryTransform<?, DoubleType> generic =
+			new InplaceUnaryTransform(op, new DoubleType(), expected, overlay,
+				planePos);
+		generic.setTiled(false);
+		if (clip) generic.clipXY(1, 1, 10, 5);
+		generic.run();
+		final InplaceUnaryTransform<?, DoubleType> fused =
+			new InplaceUnaryTransform(op, new DoubleType(), ds, overlay, planePos);
+		fused.setNumThreads(threads);
+		fused.setLookupTableEnabled(lookupTable);
+		if (clip) fused.clipXY(1, 1, 10, 5);
+		fused.run();
+		assertSameValues(expected, ds);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private InplaceUnaryTransform<?, DoubleType> transform(final Dataset ds,
+		final Overlay overlay,
+		final ComplexUnaryOperation<DoubleType, DoubleType> op)
+	{
+		return new InplaceUnaryTransform(op, new DoubleType(), ds, overlay);
+	}
+
+	/** Checks that two datasets hold bit for bit the same values. */
+	static void assertSameValues(final Dataset expected, final Dataset actual) {
+		final Cursor<? extends RealType<?>> e = expected.getImgPlus().cursor();
+		final Cursor<? extends RealType<?>> a = actual.getImgPlus().cursor();
+		while (e.hasNext()) {
+			final double ev = e.next().getRealDouble();
+			final double av = a.next().getRealDouble();
+			final String where = "at " + e.getLongPosition(0) + "," +
+				e.getLongPosition(1) + "," + e.getLongPosition(2);
+			assertEquals(where, Double.doubleToLongBits(ev),
+				Double.doubleToLongBits(av));
+		}
+	}
+
+	/** A canceler that is canceled from the start. */
+	static class Canceled implements Cancelable {
+
+		@Override
+		public boolean isCanceled() {
+			return true;
+		}
+
+		@Override
+		public void cancel(final String reason) {
+			// NB - already canceled
+		}
+
+		@Override
+		public String getCancelReason() {
+			return "canceled by test";
+		}
+	}
+}
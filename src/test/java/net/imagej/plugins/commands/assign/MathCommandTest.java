@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.display.ImageCanvas;
+import net.imagej.display.ImageDisplay;
+import net.imagej.display.ImageDisplayService;
+import net.imagej.display.OverlayService;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.display.DisplayService;
+import org.scijava.log.LogService;
+import org.scijava.options.OptionsService;
+import org.scijava.thread.ThreadService;
+import org.scijava.util.RealCoords;
+
+/**
+ * Tests the background previews of {@link MathCommand}.
+ */
+public class MathCommandTest {
+
+	private Context context;
+	private DatasetService datasetService;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, DisplayService.class,
+			ImageDisplayService.class, OverlayService.class, OptionsService.class,
+			LogService.class, ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testCancelRestoresRegionAfterVisiblePreview() {
+		final Dataset ds = constant(100, 64, 48, 1);
+		final Dataset original = ds.duplicate();
+		final ImageDisplay display = MathPipelineTest.display(context, ds);
+		final ImageCanvas canvas = display.getCanvas();
+		canvas.setViewportSize(8, 6);
+		canvas.setZoomAndCenter(1, new RealCoords(50, 40));
+		final AddToDataValues<UnsignedByteType> add = add(display);
+
+		// first a preview of the whole plane
+		add.setPreviewVisibleOnly(false);
+		add.setValue(20);
+		add.preview();
+		awaitValue(ds, 0, 0, 120);
+
+		// then one of the visible part only, which undoes the first
+		add.setPreviewVisibleOnly(true);
+		add.setValue(50);
+		add.preview();
+		awaitValue(ds, 50, 40, 150);
+		assertEquals(100, value(ds, 0, 0), 0);
+		assertEquals(100, value(ds, 63, 47), 0);
+
+		add.cancel();
+		InplaceUnaryTransformTest.assertSameValues(original, ds);
+	}
+
+	@Test
+	public void testNewPreviewSupersedesRunningOne() {
+		final Dataset ds = constant(100, 512, 512, 1);
+		final AddToDataValues<UnsignedByteType> add =
+			add(MathPipelineTest.display(context, ds));
+		add.setPreviewVisibleOnly(false);
+		// NB - each preview stops and undoes the one still running
+		for (int value = 10; value <= 30; value += 10) {
+			add.setValue(value);
+			add.preview();
+		}
+		add.setValue(40);
+		add.run();
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		while (cursor.hasNext()) {
+			assertEquals(140, cursor.next().getRealDouble(), 0);
+		}
+	}
+
+	// -- helpers --
+
+	private AddToDataValues<UnsignedByteType> add(final ImageDisplay display) {
+		final AddToDataValues<UnsignedByteType> add =
+			new AddToDataValues<UnsignedByteType>();
+		add.setContext(context);
+		add.setDisplay(display);
+		add.setPreview(true);
+		return add;
+	}
+
+	/** Makes an 8 bit XYZ dataset with every value set to the given one. */
+	private Dataset constant(final double value, final long... dims) {
+		final Dataset ds = datasetService.create(dims, "test", new AxisType[] {
+			Axes.X, Axes.Y, Axes.Z }, 8, false, false);
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		while (cursor.hasNext()) {
+			cursor.next().setReal(value);
+		}
+		return ds;
+	}
+
+	private double value(final Dataset ds, final long x, final long y) {
+		final RandomAccess<? extends RealType<?>> access =
+			ds.getImgPlus().randomAccess();
+		access.setPosition(new long[] { x, y, 0 });
+		return access.get().getRealDouble();
+	}
+
+	/** Waits for a background preview to set a point to the given value. */
+	private void awaitValue(final Dataset ds, final long x, final long y,
+		final double expected)
+	{
+		final long end = System.currentTimeMillis() + 10000;
+		while (value(ds, x, y) != expected) {
+			if (System.currentTimeMillis() > end) {
+				fail("preview did not set " + x + "," + y + " to " + expected);
+			}
+			try {
+				Thread.sleep(5);
+			}
+			catch (final InterruptedException exc) {
+				fail("interrupted");
+			}
+		}
+	}
+}
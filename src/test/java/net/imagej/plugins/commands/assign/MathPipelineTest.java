@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.display.ImageDisplay;
+import net.imagej.display.ImageDisplayService;
+import net.imagej.display.OverlayService;
+import net.imglib2.Cursor;
+import net.imglib2.ops.operation.complex.unary.ComplexUnaryOperation;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.display.DisplayService;
+import org.scijava.log.LogService;
+import org.scijava.options.OptionsService;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that a {@link MathPipeline} gives the same results as running its
+ * operations one after the other.
+ */
+public class MathPipelineTest {
+
+	/** Pipelines whose stages round differently when fused without care. */
+	private static final String[] PIPELINES = {
+		"add 10.4; multiply 1.7; max 200; min 30",
+		"add 1; log; multiply 40.3; max 150",
+		"subtract 25; multiply 1.5; gamma 0.8; max 200" };
+
+	private Context context;
+	private DatasetService datasetService;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, DisplayService.class,
+			ImageDisplayService.class, OverlayService.class, OptionsService.class,
+			LogService.class, ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testFusedMatchesSequential() {
+		for (final String spec : PIPELINES) {
+			for (final int bits : new int[] { 8, 16 }) {
+				final Dataset ds = create(bits, bits == 16, 13, 7, 3);
+				final Dataset expected = ds.duplicate();
+				for (final ComplexUnaryOperation<DoubleType, DoubleType> op : parse(
+					spec))
+				{
+					transform(expected, op).run();
+				}
+				final Dataset generic = ds.duplicate();
+				final InplaceUnaryTransform<?, DoubleType> genericXform =
+					transform(generic, fused(spec, ds));
+				genericXform.setTiled(false);
+				genericXform.run();
+				final InplaceUnaryTransform<?, DoubleType> tabled =
+					transform(ds, fused(spec, ds));
+				tabled.setLookupTableEnabled(true);
+				tabled.run();
+				InplaceUnaryTransformTest.assertSameValues(expected, generic);
+				InplaceUnaryTransformTest.assertSameValues(expected, ds);
+			}
+		}
+	}
+
+	@Test
+	public void testUnroundedStagesDiffer() {
+		// NB - shows that the stage rounding in the test above matters
+		final Dataset ds = create(8, false, 13, 7, 3);
+		final Dataset expected = ds.duplicate();
+		for (final ComplexUnaryOperation<DoubleType, DoubleType> op : parse(
+			PIPELINES[0]))
+		{
+			transform(expected, op).run();
+		}
+		transform(ds, new ComposedUnaryOperation<DoubleType>(parse(PIPELINES[0]),
+			new DoubleType(), null)).run();
+		assertFalse(sameValues(expected, ds));
+	}
+
+	@Test
+	public void testParseErrorLeavesImageUnchanged() {
+		final Dataset ds = create(8, false, 40, 30, 2);
+		final Dataset original = ds.duplicate();
+		final MathPipeline<UnsignedByteType> pipeline =
+			new MathPipeline<UnsignedByteType>();
+		pipeline.setContext(context);
+		pipeline.setDisplay(display(context, ds));
+		pipeline.setPreviewVisibleOnly(false);
+		pipeline.setPreview(true);
+
+		// a preview followed by one that cannot be parsed
+		pipeline.setOperations("add 50; multiply 2");
+		pipeline.preview();
+		pipeline.setOperations("add 50; multiply");
+		pipeline.preview();
+		InplaceUnaryTransformTest.assertSameValues(original, ds);
+
+		// a preview followed by a run that cannot be parsed
+		pipeline.setOperations("subtract 7");
+		pipeline.preview();
+		pipeline.setOperations("subtract 7; frobnicate");
+		pipeline.run();
+		assertTrue(pipeline.isCanceled());
+		InplaceUnaryTransformTest.assertSameValues(original, ds);
+	}
+
+	// -- helpers --
+
+	/** Creates a display showing the given dataset. */
+	static ImageDisplay display(final Context context, final Dataset ds) {
+		return (ImageDisplay) context.getService(DisplayService.class)
+			.createDisplay(ds);
+	}
+
+	private List<ComplexUnaryOperation<DoubleType, DoubleType>> parse(
+		final String spec)
+	{
+		return MathPipeline.parse(spec, Double.POSITIVE_INFINITY);
+	}
+
+	/** Composes a pipeline that rounds its stages to the dataset's type. */
+	private ComposedUnaryOperation<DoubleType> fused(final String spec,
+		final Dataset ds)
+	{
+		return new ComposedUnaryOperation<DoubleType>(parse(spec),
+			new DoubleType(), ds.getType().createVariable());
+	}
+
+	/** Makes an XYZ integer dataset filled with random values. */
+	private Dataset create(final int bitsPerPixel, final boolean signed,
+		final long... dims)
+	{
+		final AxisType[] axes = { Axes.X, Axes.Y, Axes.Z };
+		final Dataset ds = datasetService.create(dims, "test", axes,
+			bitsPerPixel, signed, false);
+		final Random random = new Random(bitsPerPixel);
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		while (cursor.hasNext()) {
+			final RealType<?> value = cursor.next();
+			final double min = Math.max(value.getMinValue(), -300);
+			final double range = Math.min(value.getMaxValue(), 300) - min + 1;
+			value.setReal(min + Math.floor(random.nextDouble() * range));
+		}
+		return ds;
+	}
+
+	private boolean sameValues(final Dataset a, final Dataset b) {
+		final Cursor<? extends RealType<?>> ca = a.getImgPlus().cursor();
+		final Cursor<? extends RealType<?>> cb = b.getImgPlus().cursor();
+		while (ca.hasNext()) {
+			if (ca.next().getRealDouble() != cb.next().getRealDouble()) return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private InplaceUnaryTransform<?, DoubleType> transform(final Dataset ds,
+		final ComplexUnaryOperation<DoubleType, DoubleType> op)
+	{
+		return new InplaceUnaryTransform(op, new DoubleType(), ds, null);
+	}
+}
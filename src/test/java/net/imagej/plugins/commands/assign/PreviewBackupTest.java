@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+
+/**
+ * Tests that a {@link PreviewBackup} puts back exactly the values it saved,
+ * whether it is kept in memory or spilled to a temporary file.
+ */
+public class PreviewBackupTest {
+
+	private static final long[] ORIGIN = { 2, 1, 0 };
+	private static final long[] SPAN = { 9, 5, 2 };
+
+	private Context context;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testByteRestore() {
+		assertRestores(random(ArrayImgs.unsignedBytes(13, 7, 3)));
+		assertRestores(random(ArrayImgs.bytes(13, 7, 3)));
+		assertRestores(random(PlanarImgs.unsignedBytes(13, 7, 3)));
+	}
+
+	@Test
+	public void testFloatRestore() {
+		final Img<FloatType> img = random(PlanarImgs.floats(13, 7, 3));
+		// NB - values that a conversion through another type could alter
+		final float[] special = { Float.NaN, -0f, Float.POSITIVE_INFINITY,
+			Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE };
+		final RandomAccess<FloatType> access = img.randomAccess();
+		for (int i = 0; i < special.length; i++) {
+			access.setPosition(new long[] { 3 + i, 2, 1 });
+			access.get().set(special[i]);
+		}
+		assertRestores(img);
+		assertRestores(random(ArrayImgs.floats(13, 7, 3)));
+	}
+
+	@Test
+	public void testRGBRestore() {
+		final Dataset ds = context.getService(DatasetService.class).create(
+			new long[] { 13, 7, 3 }, "rgb", new AxisType[] { Axes.X, Axes.Y,
+				Axes.CHANNEL }, 8, false, false);
+		ds.setRGBMerged(true);
+		assertRestores(random(ds.getImgPlus()));
+	}
+
+	@Test
+	public void testSpilledFileIsReleased() {
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(13, 7, 3);
+		final PreviewBackup backup = new PreviewBackup(img, ORIGIN, SPAN);
+		backup.setMemoryBudget(0);
+		backup.save();
+		final File file = backup.getFile();
+		assertTrue(backup.isSpilled());
+		assertTrue(file.exists());
+		backup.dispose();
+		assertFalse(backup.isSpilled());
+		assertNull(backup.getFile());
+		assertFalse(file.exists());
+	}
+
+	// -- helpers --
+
+	/**
+	 * Saves the region, overwrites the whole image and restores part of the
+	 * region first, then all of it, both in memory and spilled to a file. Only
+	 * the restored values may come back.
+	 */
+	private void assertRestores(final Img<? extends RealType<?>> img) {
+		for (final long budget : new long[] { Long.MAX_VALUE, 0 }) {
+			final long[] original = bits(img);
+			final PreviewBackup backup = new PreviewBackup(img, ORIGIN, SPAN);
+			backup.setMemoryBudget(budget);
+			backup.save();
+			assertTrue(backup.isSpilled() == (budget == 0));
+			overwrite(img);
+			final long[] changed = bits(img);
+
+			final long[] boxOrigin = { 0, 3, 1 };
+			final long[] boxSpan = { 5, 4, 2 };
+			backup.restore(boxOrigin, boxSpan);
+			assertArrayEquals(expected(img, original, changed, boxOrigin, boxSpan),
+				bits(img));
+
+			backup.restore();
+			assertArrayEquals(expected(img, original, changed, ORIGIN, SPAN),
+				bits(img));
+			backup.dispose();
+		}
+	}
+
+	/**
+	 * Returns the original values inside both the region and the box and the
+	 * changed values elsewhere.
+	 */
+	private long[] expected(final Img<?> img, final long[] original,
+		final long[] changed, final long[] boxOrigin, final long[] boxSpan)
+	{
+		final long[] result = changed.clone();
+		final Cursor<?> cursor = img.localizingCursor();
+		final long[] pos = new long[img.numDimensions()];
+		for (int i = 0; cursor.hasNext(); i++) {
+			cursor.fwd();
+			cursor.localize(pos);
+			if (inside(pos, ORIGIN, SPAN) && inside(pos, boxOrigin, boxSpan)) {
+				result[i] = original[i];
+			}
+		}
+		return result;
+	}
+
+	private boolean inside(final long[] pos, final long[] origin,
+		final long[] span)
+	{
+		for (int d = 0; d < pos.length; d++) {
+			if (pos[d] < origin[d] || pos[d] >= origin[d] + span[d]) return false;
+		}
+		return true;
+	}
+
+	/** Returns the raw bits of each value of an image in cursor order. */
+	private long[] bits(final Img<? extends RealType<?>> img) {
+		final long[] result = new long[(int) img.size()];
+		final Cursor<? extends RealType<?>> cursor = img.cursor();
+		for (int i = 0; cursor.hasNext(); i++) {
+			final RealType<?> value = cursor.next();
+			if (value instanceof FloatType) {
+				result[i] = Float.floatToRawIntBits(((FloatType) value).get());
+			}
+			else result[i] = Double.doubleToRawLongBits(value.getRealDouble());
+		}
+		return result;
+	}
+
+	/** Fills an image with random values within the range of its type. */
+	private <I extends Img<? extends RealType<?>>> I random(final I img) {
+		final Random random = new Random(img.size());
+		final Cursor<? extends RealType<?>> cursor = img.cursor();
+		while (cursor.hasNext()) {
+			final RealType<?> value = cursor.next();
+			if (value instanceof FloatType) {
+				value.setReal(random.nextGaussian() * 100);
+				continue;
+			}
+			final double min = value.getMinValue();
+			final double range = value.getMaxValue() - min + 1;
+			value.setReal(min + Math.floor(random.nextDouble() * range));
+		}
+		return img;
+	}
+
+	/** Changes every value of an image. */
+	private void overwrite(final Img<? extends RealType<?>> img) {
+		final Cursor<? extends RealType<?>> cursor = img.cursor();
+		while (cursor.hasNext()) {
+			final RealType<?> value = cursor.next();
+			if (value instanceof FloatType) value.setReal(12345.5);
+			else if (value.getRealDouble() == value.getMinValue()) {
+				value.setReal(value.getMaxValue());
+			}
+			else value.setReal(value.getRealDouble() - 1);
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imagej.ChannelCollection;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.Extents;
+import net.imagej.ImgPlus;
+import net.imagej.Position;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.display.OverlayService;
+import net.imagej.overlay.EllipseOverlay;
+import net.imagej.overlay.Overlay;
+import net.imagej.overlay.RectangleOverlay;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.ops.operation.real.unary.RealConstant;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that the bulk {@link RegionFill} sets the same values as the point by
+ * point assignment it replaces.
+ */
+public class RegionFillTest {
+
+	private static final AxisType[] XYZ = { Axes.X, Axes.Y, Axes.Z };
+
+	private Context context;
+	private DatasetService datasetService;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, OverlayService.class,
+			ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testFillMatchesPerPointWithoutSelection() {
+		for (final Dataset ds : datasets()) {
+			assertFillMatchesPerPoint(ds, null, 17);
+		}
+	}
+
+	@Test
+	public void testFillMatchesPerPointInRectangle() {
+		// NB - the rectangle crosses the boundaries of the 4x4 cells
+		final RectangleOverlay rectangle = new RectangleOverlay(context);
+		rectangle.setOrigin(3, 0);
+		rectangle.setOrigin(2, 1);
+		rectangle.setExtent(7, 0);
+		rectangle.setExtent(6, 1);
+		for (final Dataset ds : datasets()) {
+			for (final int threads : new int[] { 1, 3 }) {
+				assertFillMatchesPerPoint(ds.duplicate(), rectangle, 17, threads);
+			}
+		}
+	}
+
+	@Test
+	public void testFillMatchesPerPointInEllipse() {
+		final EllipseOverlay ellipse = new EllipseOverlay(context);
+		ellipse.setOrigin(6.5, 0);
+		ellipse.setOrigin(5, 1);
+		ellipse.setRadius(5, 0);
+		ellipse.setRadius(3.5, 1);
+		for (final Dataset ds : datasets()) {
+			assertFillMatchesPerPoint(ds, ellipse, 17);
+		}
+	}
+
+	@Test
+	public void testSetValuesOfIntegerTypes() {
+		// NB - values out of the range of the types and between integers
+		final double[] values = { -5, 300, 70000, 2.5, -2.5, 1e10 };
+		final Dataset[] datasets = {
+			dataset(ArrayImgs.unsignedBytes(13, 11, 3)),
+			dataset(ArrayImgs.bytes(13, 11, 3)),
+			dataset(PlanarImgs.unsignedShorts(13, 11, 3)),
+			dataset(PlanarImgs.shorts(13, 11, 3)),
+			dataset(cells(new UnsignedByteType())) };
+		for (final Dataset ds : datasets) {
+			for (final double value : values) {
+				final SetDataValues<?> set = new SetDataValues<UnsignedByteType>();
+				set.setValue(value);
+				assertEquals(value, set.getConstantValue(), 0);
+				final Dataset expected = ds.duplicate();
+				final InplaceUnaryTransform<?, DoubleType> generic =
+					transform(expected, null, set.getOperation());
+				generic.setTiled(false);
+				generic.run();
+				final InplaceUnaryTransform<?, DoubleType> bulk =
+					transform(ds, null, set.getOperation());
+				bulk.setConstantValue(set.getConstantValue());
+				bulk.run();
+				InplaceUnaryTransformTest.assertSameValues(expected, ds);
+			}
+		}
+	}
+
+	@Test
+	public void testFillCommandMatchesOverlayFill() {
+		final RectangleOverlay rectangle = new RectangleOverlay(context);
+		rectangle.setOrigin(3, 0);
+		rectangle.setOrigin(2, 1);
+		rectangle.setExtent(7, 0);
+		rectangle.setExtent(6, 1);
+		final ChannelCollection color =
+			new ChannelCollection(Arrays.asList(200.0));
+		for (final Dataset ds : datasets()) {
+			assertTrue(RegionFill.isSupported(ds.getImgPlus()));
+			final Position position =
+				new Extents(new long[] { ds.dimension(2) }).createPosition();
+			position.setPosition(1, 0);
+			final Dataset expected = ds.duplicate();
+			context.getService(OverlayService.class).fillOverlay(rectangle,
+				expected, position, color);
+			final FillDataValues<?> fill = new FillDataValues<FloatType>();
+			fill.setContext(context);
+			fill.setDataset(ds);
+			fill.setPosition(position);
+			fill.setOverlay(rectangle);
+			fill.setColor(color);
+			fill.run();
+			InplaceUnaryTransformTest.assertSameValues(expected, ds);
+		}
+	}
+
+	// -- helpers --
+
+	/** Returns random XYZ datasets on array, planar and cell storage. */
+	private Dataset[] datasets() {
+		return new Dataset[] { dataset(ArrayImgs.unsignedBytes(13, 11, 3)),
+			dataset(ArrayImgs.floats(13, 11, 3)),
+			dataset(PlanarImgs.unsignedShorts(13, 11, 3)),
+			dataset(PlanarImgs.doubles(13, 11, 3)),
+			dataset(cells(new UnsignedShortType())),
+			dataset(cells(new FloatType())), dataset(cells(new ShortType())),
+			dataset(cells(new ByteType())) };
+	}
+
+	/** Makes a 13x11x3 cell image with 4x4x1 cells. */
+	private <T extends NativeType<T>> Img<T> cells(final T type) {
+		return new CellImgFactory<T>(type, 4, 4, 1).create(13, 11, 3);
+	}
+
+	/** Wraps an image in a dataset and fills it with random values. */
+	private <T extends RealType<T>> Dataset dataset(final Img<T> img) {
+		final Dataset ds =
+			datasetService.create(new ImgPlus<T>(img, "test", XYZ));
+		final Random random = new Random(img.size());
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		while (cursor.hasNext()) {
+			final RealType<?> value = cursor.next();
+			final double min = Math.max(value.getMinValue(), -1000);
+			final double range = Math.min(value.getMaxValue(), 1000) - min + 1;
+			value.setReal(min + Math.floor(random.nextDouble() * range));
+		}
+		return ds;
+	}
+
+	private void assertFillMatchesPerPoint(final Dataset ds,
+		final Overlay overlay, final double value)
+	{
+		assertFillMatchesPerPoint(ds, overlay, value, 4);
+	}
+
+	/**
+	 * Sets a region to a constant both by the point by point assignment and by
+	 * the bulk fill, and compares the results.
+	 */
+	private void assertFillMatchesPerPoint(final Dataset ds,
+		final Overlay overlay, final double value, final int threads)
+	{
+		assertTrue(RegionFill.isSupported(ds.getImgPlus()));
+		final RealConstant<DoubleType, DoubleType> op =
+			new RealConstant<DoubleType, DoubleType>(value);
+		final Dataset expected = ds.duplicate();
+		final InplaceUnaryTransform<?, DoubleType> generic =
+			transform(expected, overlay, op);
+		generic.setTiled(false);
+		generic.run();
+		final InplaceUnaryTransform<?, DoubleType> bulk =
+			transform(ds, overlay, op);
+		bulk.setNumThreads(threads);
+		bulk.setConstantValue(value);
+		bulk.run();
+		InplaceUnaryTransformTest.assertSameValues(expected, ds);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private InplaceUnaryTransform<?, DoubleType> transform(final Dataset ds,
+		final Overlay overlay, final RealConstant<DoubleType, DoubleType> op)
+	{
+		return new InplaceUnaryTransform(op, new DoubleType(), ds, overlay);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.overlay.RectangleOverlay;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+
+/**
+ * Tests {@link ScanlineMaskCache}.
+ */
+public class ScanlineMaskCacheTest {
+
+	private Context context;
+	private ScanlineMaskCache cache;
+
+	@Before
+	public void setUp() {
+		context = new Context(ScanlineMaskCache.class);
+		cache = context.getService(ScanlineMaskCache.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testMaskIsReused() {
+		final RectangleOverlay overlay = rectangle(2, 3, 4, 5);
+		final ScanlineMask mask = cache.getMask(overlay, 0, 0, 20, 20);
+		assertSame(mask, cache.getMask(overlay, 0, 0, 20, 20));
+	}
+
+	@Test
+	public void testMovedOverlayGetsNewMask() {
+		final RectangleOverlay overlay = rectangle(2, 3, 4, 5);
+		final ScanlineMask mask = cache.getMask(overlay, 0, 0, 20, 20);
+		assertTrue(mask.contains(2, 3));
+
+		// NB - no update event is published
+		overlay.setOrigin(10, 0);
+		final ScanlineMask moved = cache.getMask(overlay, 0, 0, 20, 20);
+		assertNotSame(mask, moved);
+		assertFalse(moved.contains(2, 3));
+		assertTrue(moved.contains(10, 3));
+	}
+
+	@Test
+	public void testInvalidate() {
+		final RectangleOverlay overlay = rectangle(2, 3, 4, 5);
+		final ScanlineMask mask = cache.getMask(overlay, 0, 0, 20, 20);
+		cache.invalidate(overlay);
+		assertNotSame(mask, cache.getMask(overlay, 0, 0, 20, 20));
+	}
+
+	private RectangleOverlay rectangle(final double x, final double y,
+		final double w, final double h)
+	{
+		final RectangleOverlay overlay = new RectangleOverlay(context);
+		overlay.setOrigin(x, 0);
+		overlay.setOrigin(y, 1);
+		overlay.setExtent(w, 0);
+		overlay.setExtent(h, 1);
+		return overlay;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign;
+
+import static org.junit.Assert.assertFalse;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.overlay.RectangleOverlay;
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that {@link SeededAddNoise} gives the same noise for the same seed,
+ * whatever the number of threads.
+ */
+public class SeededAddNoiseTest {
+
+	private Context context;
+	private DatasetService datasetService;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testSameSeedSameNoise() {
+		final Dataset expected = addNoise(42, 1, null);
+		for (final int threads : new int[] { 2, 3, 8 }) {
+			InplaceUnaryTransformTest.assertSameValues(expected,
+				addNoise(42, threads, null));
+		}
+	}
+
+	@Test
+	public void testSameSeedSameNoiseInSelection() {
+		final RectangleOverlay overlay = new RectangleOverlay(context);
+		overlay.setOrigin(2, 0);
+		overlay.setOrigin(1, 1);
+		overlay.setExtent(11, 0);
+		overlay.setExtent(6, 1);
+		final Dataset expected = addNoise(7, 1, overlay);
+		InplaceUnaryTransformTest.assertSameValues(expected,
+			addNoise(7, 4, overlay));
+	}
+
+	@Test
+	public void testDifferentSeedDifferentNoise() {
+		final Cursor<? extends RealType<?>> a =
+			addNoise(1, 2, null).getImgPlus().cursor();
+		final Cursor<? extends RealType<?>> b =
+			addNoise(2, 2, null).getImgPlus().cursor();
+		boolean same = true;
+		while (a.hasNext()) {
+			if (a.next().getRealDouble() != b.next().getRealDouble()) same = false;
+		}
+		assertFalse(same);
+	}
+
+	/** Adds seeded noise to a constant 16 bit image. */
+	private Dataset addNoise(final long seed, final int threads,
+		final RectangleOverlay overlay)
+	{
+		final Dataset ds = datasetService.create(new long[] { 16, 9, 3 }, "test",
+			new AxisType[] { Axes.X, Axes.Y, Axes.Z }, 16, false, false);
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		while (cursor.hasNext()) {
+			cursor.next().setReal(1000);
+		}
+		final SeededAddNoise<DoubleType> op =
+			new SeededAddNoise<DoubleType>(0, 65535, 25, seed);
+		final InplaceUnaryTransform<?, DoubleType> xform =
+			transform(ds, overlay, op);
+		xform.setNumThreads(threads);
+		xform.run();
+		return ds;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private InplaceUnaryTransform<?, DoubleType> transform(final Dataset ds,
+		final RectangleOverlay overlay, final SeededAddNoise<DoubleType> op)
+	{
+		return new InplaceUnaryTransform(op, new DoubleType(), ds, overlay);
+	}
+}
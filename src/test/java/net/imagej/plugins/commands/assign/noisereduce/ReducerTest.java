@@ -0,0 +1,325 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.ops.function.Function;
+import net.imglib2.ops.function.real.RealImageFunction;
+import net.imglib2.ops.function.real.RealMedianFunction;
+import net.imglib2.ops.pointset.PointSet;
+import net.imglib2.outofbounds.OutOfBoundsMirrorFactory;
+import net.imglib2.outofbounds.OutOfBoundsMirrorFactory.Boundary;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that the {@link Reducer} gives the same results however many threads
+ * it runs on.
+ */
+public class ReducerTest {
+
+	private Context context;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, ThreadService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testThreadsAgree() {
+		final ImgPlus<FloatType> img = floats(23, 17, 3);
+		final Neighborhood neigh = new RectangularNeigh(new long[] { 2, 1, 0 },
+			new long[] { 1, 1, 0 });
+		final Img<FloatType> expected = median(img, neigh, 1);
+		for (final int threads : new int[] { 2, 3, 8 }) {
+			assertSameValues(expected, median(img, neigh, threads));
+		}
+	}
+
+	@Test
+	public void testRadialThreadsAgree() {
+		final ImgPlus<FloatType> img = floats(19, 21);
+		final Neighborhood neigh = new RadialNeigh(2, 3);
+		assertSameValues(median(img, neigh, 1), median(img, neigh, 4));
+	}
+
+	@Test
+	public void testNeighborhoodThatCannotBeCopied() {
+		final ImgPlus<FloatType> img = floats(16, 16, 2);
+		final RadialNeigh radial = new RadialNeigh(3, 2);
+		// NB - a neighborhood from elsewhere that does not offer copies
+		final Neighborhood shared = new Neighborhood() {
+
+			@Override
+			public PointSet getPoints() {
+				return radial.getPoints();
+			}
+
+			@Override
+			public String getDescription() {
+				return radial.getDescription();
+			}
+		};
+		assertSameValues(median(img, radial, 1), median(img, shared, 4));
+	}
+
+	@Test
+	public void testStreamedInPlaceMatchesNewImage() {
+		final ImgPlus<UnsignedByteType> img =
+			ReductionEngineTest.random(ArrayImgs.unsignedBytes(15, 12, 5));
+		final Neighborhood neigh = new RadialNeigh(3, 2);
+		final Reducer<UnsignedByteType, DoubleType> reducer =
+			histogramMedian(img, neigh);
+		final Img<UnsignedByteType> expected =
+			output(reducer.reduceNoise(neigh.getDescription()));
+		reducer.reduceNoiseInPlace(neigh.getDescription());
+		assertSameValues(expected, img);
+	}
+
+	@Test
+	public void testCanceledInPlaceLeavesInput() {
+		final ImgPlus<FloatType> img = floats(11, 9, 3);
+		final Img<FloatType> original = img.copy();
+		final Neighborhood neigh = new RadialNeigh(3, 2);
+		final Reducer<FloatType, DoubleType> reducer =
+			new Reducer<FloatType, DoubleType>(context, img,
+				new RealMedianFunction<DoubleType>(inputFunction(img)), neigh);
+		reducer.setCanceler(new ReductionEngineTest.Canceled());
+		reducer.reduceNoiseInPlace(neigh.getDescription());
+		assertSameValues(original, img);
+	}
+
+	@Test
+	public void testCanceledStreamLeavesInput() {
+		// NB - canceled before the first plane, so nothing has been written
+		final ImgPlus<UnsignedByteType> img =
+			ReductionEngineTest.random(ArrayImgs.unsignedBytes(10, 8, 4));
+		final Img<UnsignedByteType> original = img.copy();
+		final Reducer<UnsignedByteType, DoubleType> reducer =
+			histogramMedian(img, new RadialNeigh(3, 2));
+		reducer.setCanceler(new ReductionEngineTest.Canceled());
+		reducer.reduceNoiseInPlace("canceled");
+		assertSameValues(original, img);
+	}
+
+	@Test
+	public void testStreamCanceledMidwayStopsAtPlane() {
+		final ImgPlus<UnsignedByteType> img =
+			ReductionEngineTest.random(ArrayImgs.unsignedBytes(10, 8, 4));
+		final Img<UnsignedByteType> original = img.copy();
+		final Neighborhood neigh = new RadialNeigh(3, 2);
+		final Img<UnsignedByteType> expected =
+			output(histogramMedian(img, neigh).reduceNoise("expected"));
+		boolean stoppedMidway = false;
+		for (int checks = 1; checks <= 100; checks++) {
+			final ImgPlus<UnsignedByteType> work =
+				new ImgPlus<UnsignedByteType>(original.copy(), "test");
+			final Reducer<UnsignedByteType, DoubleType> reducer =
+				histogramMedian(work, neigh);
+			reducer.setCanceler(new CanceledAfter(checks));
+			reducer.reduceNoiseInPlace("canceled");
+			// NB - reduced planes come first, then planes as they were
+			int reduced = 0;
+			while (reduced < 4 && sameValues(plane(expected, reduced), plane(work,
+				reduced)))
+			{
+				reduced++;
+			}
+			for (int p = reduced; p < 4; p++) {
+				assertSameValues(plane(original, p), plane(work, p));
+			}
+			if (reduced > 0 && reduced < 4) stoppedMidway = true;
+		}
+		assertTrue("no run stopped between planes", stoppedMidway);
+	}
+
+	// -- helpers --
+
+	/** A canceler that reports a cancel from the given check on. */
+	private static class CanceledAfter implements Cancelable {
+
+		private final AtomicInteger checks = new AtomicInteger();
+		private final int limit;
+
+		public CanceledAfter(final int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return checks.incrementAndGet() >= limit;
+		}
+
+		@Override
+		public void cancel(final String reason) {
+			checks.set(limit);
+		}
+
+		@Override
+		public String getCancelReason() {
+			return "canceled after " + limit + " checks";
+		}
+	}
+
+	private static <U extends RealType<U>> RandomAccessibleInterval<U> plane(
+		final RandomAccessibleInterval<U> img, final long p)
+	{
+		return Views.hyperSlice(img, 2, p);
+	}
+
+	private static <U extends RealType<U>> boolean sameValues(
+		final RandomAccessibleInterval<U> expected,
+		final RandomAccessibleInterval<U> actual)
+	{
+		final Cursor<U> cursor = Views.iterable(expected).localizingCursor();
+		final RandomAccess<U> access = actual.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			access.setPosition(cursor);
+			if (cursor.get().getRealDouble() != access.get().getRealDouble()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Reducer<UnsignedByteType, DoubleType> histogramMedian(
+		final ImgPlus<UnsignedByteType> img, final Neighborhood neigh)
+	{
+		final Reducer<UnsignedByteType, DoubleType> reducer =
+			new Reducer<UnsignedByteType, DoubleType>(context, img,
+				new RealMedianFunction<DoubleType>(inputFunction(img)), neigh);
+		reducer.setEngine(new HistogramMedianEngine<UnsignedByteType>(img
+			.firstElement(), (OffsetPointSet) neigh.getPoints()));
+		return reducer;
+	}
+
+	/** Makes an image of random values with the given dimensions. */
+	static ImgPlus<FloatType> floats(final long... dims) {
+		final Img<FloatType> img = ArrayImgs.floats(dims);
+		final Random random = new Random(dims.length * 1000 + dims[0]);
+		for (final FloatType t : img) {
+			t.setReal(random.nextInt(1000) / 10.0);
+		}
+		return new ImgPlus<FloatType>(img, "test");
+	}
+
+	/** Returns the function the noise reduction commands read input with. */
+	static <U extends RealType<U>> Function<long[], DoubleType> inputFunction(
+		final ImgPlus<U> img)
+	{
+		final OutOfBoundsMirrorFactory<U, RandomAccessibleInterval<U>> oob =
+			new OutOfBoundsMirrorFactory<U, RandomAccessibleInterval<U>>(
+				Boundary.DOUBLE);
+		return new RealImageFunction<U, DoubleType>(img, oob, new DoubleType());
+	}
+
+	private Img<FloatType> median(final ImgPlus<FloatType> img,
+		final Neighborhood neigh, final int threads)
+	{
+		final Reducer<FloatType, DoubleType> reducer =
+			new Reducer<FloatType, DoubleType>(context, img,
+				new RealMedianFunction<DoubleType>(inputFunction(img)), neigh);
+		reducer.setNumThreads(threads);
+		return output(reducer.reduceNoise(neigh.getDescription()));
+	}
+
+	@SuppressWarnings("unchecked")
+	static <U extends RealType<U>> Img<U> output(final Dataset ds) {
+		return (Img<U>) ds.getImgPlus();
+	}
+
+	/** Checks that two images of the same size hold the same values. */
+	static <U extends RealType<U>> void assertSameValues(
+		final RandomAccessibleInterval<U> expected,
+		final RandomAccessibleInterval<U> actual)
+	{
+		assertSameValues(expected, actual, 0);
+	}
+
+	/**
+	 * Checks that two images of the same size hold the same values up to the
+	 * given relative error. NaN and infinite values must match exactly.
+	 */
+	static <U extends RealType<U>> void assertSameValues(
+		final RandomAccessibleInterval<U> expected,
+		final RandomAccessibleInterval<U> actual, final double relativeError)
+	{
+		final Cursor<U> cursor = Views.iterable(expected).localizingCursor();
+		final RandomAccess<U> access = actual.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			access.setPosition(cursor);
+			final double e = cursor.get().getRealDouble();
+			final double a = access.get().getRealDouble();
+			final double delta = Double.isInfinite(e) ? 0 : relativeError *
+				Math.max(1, Math.abs(e));
+			final String where = "at " + Arrays.toString(position(cursor));
+			assertEquals(where, e, a, delta);
+		}
+	}
+
+	private static long[] position(final Cursor<?> cursor) {
+		final long[] pos = new long[cursor.numDimensions()];
+		cursor.localize(pos);
+		return pos;
+	}
+}
@@ -0,0 +1,828 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.assign.noisereduce;
+
+import static net.imagej.plugins.commands.assign.noisereduce.ReducerTest.assertSameValues;
+import static net.imagej.plugins.commands.assign.noisereduce.ReducerTest.inputFunction;
+import static net.imagej.plugins.commands.assign.noisereduce.ReducerTest.output;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.imagej.DatasetService;
+import net.imagej.DefaultDataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.plugins.commands.assign.noisereduce.NeighborhoodStatistics.Statistic;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.ops.function.Function;
+import net.imglib2.ops.function.real.RealAdaptiveMedianFunction;
+import net.imglib2.ops.function.real.RealAlphaTrimmedMeanFunction;
+import net.imglib2.ops.function.real.RealArithmeticMeanFunction;
+import net.imglib2.ops.function.real.RealContraharmonicMeanFunction;
+import net.imglib2.ops.function.real.RealGeometricMeanFunction;
+import net.imglib2.ops.function.real.RealHarmonicMeanFunction;
+import net.imglib2.ops.function.real.RealMaxFunction;
+import net.imglib2.ops.function.real.RealMedianFunction;
+import net.imglib2.ops.function.real.RealMidpointFunction;
+import net.imglib2.ops.function.real.RealMinFunction;
+import net.imglib2.ops.function.real.RealTrimmedMeanFunction;
+import net.imglib2.ops.pointset.HyperVolumePointSet;
+import net.imglib2.ops.pointset.PointSet;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.command.CommandService;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that each {@link ReductionEngine} gives the same results as the
+ * reduction function it stands in for. {@link NeighborhoodStatistics} is
+ * checked the same way through {@link NoiseReductionMultiStatistic}.
+ */
+public class ReductionEngineTest {
+
+	private Context context;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, CommandService.class,
+			ThreadService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	// -- HistogramMedianEngine --
+
+	@Test
+	public void testHistogramMedian() {
+		final ImgPlus<UnsignedByteType> img =
+			random(ArrayImgs.unsignedBytes(23, 17, 2));
+		for (final Neighborhood neigh : neighborhoods(3)) {
+			assertMedianMatches(img, neigh);
+		}
+	}
+
+	@Test
+	public void testHistogramMedianSigned16Bit() {
+		final ImgPlus<ShortType> img = random(ArrayImgs.shorts(19, 13));
+		for (final Neighborhood neigh : neighborhoods(2)) {
+			assertMedianMatches(img, neigh);
+		}
+	}
+
+	@Test
+	public void testHistogramMedianOnTinyImage() {
+		// NB - the neighborhood reaches past the mirrored edges
+		final ImgPlus<UnsignedByteType> img =
+			random(ArrayImgs.unsignedBytes(3, 2));
+		assertMedianMatches(img, box(2, 3, 2, 3, 2));
+		assertMedianMatches(img, new RadialNeigh(2, 3));
+	}
+
+	@Test
+	public void testHistogramMedianCanceled() {
+		final ImgPlus<UnsignedByteType> img =
+			random(ArrayImgs.unsignedBytes(9, 8));
+		final OffsetPointSet points =
+			(OffsetPointSet) box(2, 1, 1, 1, 1).getPoints();
+		final UnsignedByteType type = img.firstElement();
+		assertCanceledLeavesOutput(img,
+			new HistogramMedianEngine<UnsignedByteType>(type, points));
+	}
+
+	// -- SeparableBoxEngine --
+
+	@Test
+	public void testSeparableBox() {
+		final ImgPlus<FloatType> floats = ReducerTest.floats(21, 14, 2);
+		final ImgPlus<UnsignedByteType> bytes =
+			random(ArrayImgs.unsignedBytes(17, 12));
+		for (final SeparableBoxEngine.Statistic stat : separableStatistics()) {
+			for (final Neighborhood neigh : boxes(3)) {
+				assertBoxMatches(floats, neigh, stat);
+			}
+			for (final Neighborhood neigh : boxes(2)) {
+				assertBoxMatches(bytes, neigh, stat);
+			}
+		}
+	}
+
+	@Test
+	public void testSeparableBoxOnTinyImage() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(3, 2);
+		for (final SeparableBoxEngine.Statistic stat : separableStatistics()) {
+			assertBoxMatches(img, box(2, 3, 2, 3, 2), stat);
+			assertBoxMatches(img, box(2, 4, 0, 1, 3), stat);
+		}
+	}
+
+	@Test
+	public void testSeparableMeanWithNaN() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(31, 9);
+		final RandomAccess<FloatType> access = img.randomAccess();
+		access.setPosition(new long[] { 3, 2 });
+		access.get().setReal(Double.NaN);
+		access.setPosition(new long[] { 12, 5 });
+		access.get().setReal(Double.POSITIVE_INFINITY);
+		access.setPosition(new long[] { 14, 6 });
+		access.get().setReal(Double.NEGATIVE_INFINITY);
+		access.setPosition(new long[] { 25, 0 });
+		access.get().setReal(Double.POSITIVE_INFINITY);
+		for (final Neighborhood neigh : boxes(2)) {
+			assertBoxMatches(img, neigh, SeparableBoxEngine.Statistic.MEAN);
+		}
+	}
+
+	@Test
+	public void testSeparableBoxCanceled() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(9, 8);
+		final OffsetPointSet points =
+			(OffsetPointSet) box(2, 1, 1, 1, 1).getPoints();
+		assertCanceledLeavesOutput(img, new SeparableBoxEngine<FloatType>(
+			SeparableBoxEngine.Statistic.MEAN, points));
+	}
+
+	// -- SummedAreaEngine --
+
+	@Test
+	public void testSummedAreaMeans() {
+		final ImgPlus<UnsignedShortType> img =
+			random(ArrayImgs.unsignedShorts(37, 23));
+		for (final Neighborhood neigh : boxes(2)) {
+			for (final SummedAreaEngine.Statistic stat : summedStatistics()) {
+				assertSummedAreaMatches(img, neigh, stat, 1);
+			}
+		}
+	}
+
+	@Test
+	public void testContraharmonicOfDarkAndBright16BitData() {
+		// NB - x^(Q+1) of the bright values dwarfs that of the dark ones, so
+		// box sums taken from a table holding both lose all precision
+		final ImgPlus<FloatType> img = darkAndBright(ArrayImgs.floats(64, 48));
+		final ImgPlus<UnsignedShortType> shorts =
+			darkAndBright(ArrayImgs.unsignedShorts(64, 48));
+		for (final double order : new double[] { 2, 3, 5, -2 }) {
+			for (final Neighborhood neigh : boxes(2)) {
+				assertSummedAreaMatches(img, neigh,
+					SummedAreaEngine.Statistic.CONTRAHARMONIC_MEAN, order);
+				assertSummedAreaMatches(shorts, neigh,
+					SummedAreaEngine.Statistic.CONTRAHARMONIC_MEAN, order);
+			}
+		}
+	}
+
+	@Test
+	public void testSummedAreaMeansOfDarkAndBright16BitData() {
+		final ImgPlus<FloatType> img = darkAndBright(ArrayImgs.floats(64, 48));
+		for (final SummedAreaEngine.Statistic stat : summedStatistics()) {
+			assertSummedAreaMatches(img, box(2, 1, 1, 1, 1), stat, 1);
+		}
+	}
+
+	@Test
+	public void testSummedAreaMeansWithSpecialValues() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(29, 13);
+		final RandomAccess<FloatType> access = img.randomAccess();
+		final double[] specials =
+			{ 0, -4, Double.NaN, Double.POSITIVE_INFINITY };
+		for (int i = 0; i < specials.length; i++) {
+			access.setPosition(new long[] { 3 + 7 * i, 2 + 3 * i });
+			access.get().setReal(specials[i]);
+		}
+		for (final Neighborhood neigh : boxes(2)) {
+			for (final SummedAreaEngine.Statistic stat : summedStatistics()) {
+				assertSummedAreaMatches(img, neigh, stat, 2);
+			}
+		}
+	}
+
+	@Test
+	public void testSummedAreaMeansOnTinyImage() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(3, 2);
+		for (final SummedAreaEngine.Statistic stat : summedStatistics()) {
+			assertSummedAreaMatches(img, box(2, 3, 2, 3, 2), stat, 2);
+			assertSummedAreaMatches(img, box(2, 4, 0, 1, 3), stat, 2);
+		}
+	}
+
+	@Test
+	public void testSummedAreaCanceled() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(9, 8);
+		final OffsetPointSet points =
+			(OffsetPointSet) box(2, 1, 1, 1, 1).getPoints();
+		assertCanceledLeavesOutput(img, new SummedAreaEngine<FloatType>(
+			SummedAreaEngine.Statistic.HARMONIC_MEAN, points));
+	}
+
+	// -- HistogramTrimmedMeanEngine and SelectionTrimmedMeanEngine --
+
+	@Test
+	public void testHistogramTrimmedMean() {
+		final ImgPlus<UnsignedByteType> img =
+			random(ArrayImgs.unsignedBytes(21, 15, 2));
+		for (final Neighborhood neigh : neighborhoods(3)) {
+			for (final int trim : new int[] { 0, 1, 2 }) {
+				assertTrimmedMeanMatches(img, neigh, trim);
+			}
+		}
+	}
+
+	@Test
+	public void testSelectionTrimmedMean() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(21, 15, 2);
+		for (final Neighborhood neigh : neighborhoods(3)) {
+			for (final int trim : new int[] { 0, 1, 2 }) {
+				assertTrimmedMeanMatches(img, neigh, trim);
+			}
+		}
+	}
+
+	@Test
+	public void testSelectionTrimmedMeanWithNaN() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(17, 11);
+		final RandomAccess<FloatType> access = img.randomAccess();
+		access.setPosition(new long[] { 4, 3 });
+		access.get().setReal(Double.NaN);
+		access.setPosition(new long[] { 5, 3 });
+		access.get().setReal(Double.NaN);
+		access.setPosition(new long[] { 12, 8 });
+		access.get().setReal(Double.NEGATIVE_INFINITY);
+		for (final Neighborhood neigh : neighborhoods(2)) {
+			assertTrimmedMeanMatches(img, neigh, 1);
+			assertTrimmedMeanMatches(img, neigh, 2);
+		}
+	}
+
+	@Test
+	public void testAlphaTrimmedMean() {
+		final ImgPlus<UnsignedByteType> bytes =
+			random(ArrayImgs.unsignedBytes(19, 13));
+		final ImgPlus<FloatType> floats = ReducerTest.floats(19, 13);
+		for (final Neighborhood neigh : neighborhoods(2)) {
+			for (final double alpha : new double[] { 0, 0.1, 0.25 }) {
+				assertAlphaTrimmedMeanMatches(bytes, neigh, alpha);
+				assertAlphaTrimmedMeanMatches(floats, neigh, alpha);
+			}
+		}
+	}
+
+	@Test
+	public void testTrimmedMeanOnTinyImage() {
+		final ImgPlus<UnsignedByteType> bytes =
+			random(ArrayImgs.unsignedBytes(3, 2));
+		final ImgPlus<FloatType> floats = ReducerTest.floats(3, 2);
+		for (final Neighborhood neigh : new Neighborhood[] {
+			box(2, 3, 2, 3, 2), box(2, 4, 0, 1, 3), new RadialNeigh(2, 3) })
+		{
+			assertTrimmedMeanMatches(bytes, neigh, 3);
+			assertTrimmedMeanMatches(floats, neigh, 3);
+		}
+	}
+
+	@Test
+	public void testTrimmedMeanCanceled() {
+		final ImgPlus<UnsignedByteType> bytes =
+			random(ArrayImgs.unsignedBytes(9, 8));
+		final ImgPlus<FloatType> floats = ReducerTest.floats(9, 8);
+		final OffsetPointSet points =
+			(OffsetPointSet) box(2, 1, 1, 1, 1).getPoints();
+		final UnsignedByteType type = bytes.firstElement();
+		assertCanceledLeavesOutput(bytes,
+			new HistogramTrimmedMeanEngine<UnsignedByteType>(type, points, 1));
+		assertCanceledLeavesOutput(floats,
+			new SelectionTrimmedMeanEngine<FloatType>(points, 1));
+	}
+
+	// -- AdaptiveMedianEngine --
+
+	@Test
+	public void testAdaptiveMedian() {
+		final ImgPlus<UnsignedByteType> img =
+			impulses(ArrayImgs.unsignedBytes(25, 19));
+		for (final int windows : new int[] { 1, 2, 4 }) {
+			assertAdaptiveMedianMatches(img, 1, 1, 1, 1, windows);
+			// an even sized first window
+			assertAdaptiveMedianMatches(img, 0, 1, 1, 0, windows);
+			assertAdaptiveMedianMatches(img, 2, 0, 1, 0, windows);
+		}
+	}
+
+	@Test
+	public void testAdaptiveMedianIn3D() {
+		final ImgPlus<UnsignedByteType> img =
+			impulses(ArrayImgs.unsignedBytes(14, 11, 3));
+		assertAdaptiveMedianMatches(img, 1, 1, 1, 1, 3);
+	}
+
+	@Test
+	public void testAdaptiveMedianWithNaN() {
+		final ImgPlus<FloatType> img = impulses(ArrayImgs.floats(17, 13));
+		final RandomAccess<FloatType> access = img.randomAccess();
+		access.setPosition(new long[] { 4, 5 });
+		access.get().setReal(Double.NaN);
+		access.setPosition(new long[] { 9, 9 });
+		access.get().setReal(Double.NaN);
+		assertAdaptiveMedianMatches(img, 1, 1, 1, 1, 3);
+	}
+
+	@Test
+	public void testAdaptiveMedianOnTinyImage() {
+		final ImgPlus<UnsignedByteType> img =
+			impulses(ArrayImgs.unsignedBytes(3, 2));
+		assertAdaptiveMedianMatches(img, 1, 1, 1, 1, 4);
+		assertAdaptiveMedianMatches(img, 0, 1, 2, 0, 3);
+	}
+
+	@Test
+	public void testAdaptiveMedianCanceled() {
+		final ImgPlus<UnsignedByteType> img =
+			impulses(ArrayImgs.unsignedBytes(9, 8));
+		final long[] reach = { 1, 1 };
+		assertCanceledLeavesOutput(img,
+			new AdaptiveMedianEngine<UnsignedByteType>(reach, reach, 2));
+	}
+
+	// -- NeighborhoodStatistics --
+
+	@Test
+	public void testNeighborhoodStatistics() {
+		final ImgPlus<FloatType> floats = ReducerTest.floats(21, 14, 2);
+		final ImgPlus<UnsignedByteType> bytes =
+			random(ArrayImgs.unsignedBytes(17, 12));
+		for (final Neighborhood neigh : neighborhoods(3)) {
+			assertStatisticsMatch(floats, neigh, false);
+		}
+		for (final Neighborhood neigh : neighborhoods(2)) {
+			assertStatisticsMatch(bytes, neigh, false);
+		}
+	}
+
+	@Test
+	public void testNeighborhoodStatisticsWithNaNAndZero() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(23, 15);
+		final RandomAccess<FloatType> access = img.randomAccess();
+		final long[][] nans = { { 4, 3 }, { 5, 3 }, { 18, 12 } };
+		for (final long[] pos : nans) {
+			access.setPosition(pos);
+			access.get().setReal(Double.NaN);
+		}
+		final long[][] zeros = { { 10, 7 }, { 11, 7 }, { 10, 8 }, { 0, 14 } };
+		for (final long[] pos : zeros) {
+			access.setPosition(pos);
+			access.get().setReal(0);
+		}
+		for (final Neighborhood neigh : boxes(2)) {
+			assertStatisticsMatch(img, neigh, true);
+		}
+	}
+
+	@Test
+	public void testNeighborhoodStatisticsOnTinyImage() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(3, 2);
+		assertStatisticsMatch(img, box(2, 3, 2, 3, 2), false);
+		assertStatisticsMatch(img, box(2, 4, 0, 1, 3), false);
+	}
+
+	@Test
+	public void testNeighborhoodStatisticsAsChannels() {
+		final ImgPlus<FloatType> img = ReducerTest.floats(15, 11, 2);
+		for (final Neighborhood neigh : new Neighborhood[] { box(3, 1, 1, 1, 1),
+			box(3, 2, 1, 0, 2) })
+		{
+			assertChannelsMatch(img, neigh, Axes.CHANNEL);
+			// NB - an image with channels gets a new axis for the statistics
+			final ImgPlus<FloatType> channels = new ImgPlus<FloatType>(img
+				.getImg(), "test", Axes.X, Axes.Y, Axes.CHANNEL);
+			assertChannelsMatch(channels, neigh, Axes.get("Statistic"));
+		}
+	}
+
+	// -- helpers --
+
+	private <U extends RealType<U>> void assertBoxMatches(
+		final ImgPlus<U> img, final Neighborhood neigh,
+		final SeparableBoxEngine.Statistic stat)
+	{
+		final Function<long[], DoubleType> in = inputFunction(img);
+		final Function<PointSet, DoubleType> func;
+		switch (stat) {
+			case MIN:
+				func = new RealMinFunction<DoubleType>(in);
+				break;
+			case MAX:
+				func = new RealMaxFunction<DoubleType>(in);
+				break;
+			case MIDPOINT:
+				func = new RealMidpointFunction<DoubleType>(in);
+				break;
+			default:
+				func = new RealArithmeticMeanFunction<DoubleType>(in);
+				break;
+		}
+		final ReductionEngine<U> engine = new SeparableBoxEngine<U>(stat,
+			(OffsetPointSet) neigh.getPoints());
+		assertEngineMatches(img, neigh, func, engine, 1e-6);
+	}
+
+	private <U extends RealType<U>> void assertMedianMatches(
+		final ImgPlus<U> img, final Neighborhood neigh)
+	{
+		final ReductionEngine<U> engine = new HistogramMedianEngine<U>(
+			img.firstElement(), (OffsetPointSet) neigh.getPoints());
+		assertEngineMatches(img, neigh, new RealMedianFunction<DoubleType>(
+			inputFunction(img)), engine, 0);
+	}
+
+	/**
+	 * Checks that reducing with the engine, on one thread and on several, gives
+	 * what the function gives on one thread.
+	 */
+	private <U extends RealType<U>> void assertEngineMatches(
+		final ImgPlus<U> img, final Neighborhood neigh,
+		final Function<PointSet, DoubleType> func,
+		final ReductionEngine<U> engine, final double relativeError)
+	{
+		final Reducer<U, DoubleType> generic =
+			new Reducer<U, DoubleType>(context, img, func, neigh);
+		generic.setNumThreads(1);
+		final Img<U> expected = output(generic.reduceNoise("function"));
+		for (final int threads : new int[] { 1, 4 }) {
+			final Reducer<U, DoubleType> reducer =
+				new Reducer<U, DoubleType>(context, img, func, neigh);
+			reducer.setEngine(engine);
+			reducer.setNumThreads(threads);
+			assertSameValues(expected, output(reducer.reduceNoise("engine")),
+				relativeError);
+		}
+	}
+
+	/** Checks that a canceled engine does not write to its output. */
+	private <U extends RealType<U>> void assertCanceledLeavesOutput(
+		final ImgPlus<U> img, final ReductionEngine<U> engine)
+	{
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+		final Img<U> out = img.factory().create(dims, img.firstElement());
+		for (final U t : out) {
+			t.setReal(7);
+		}
+		engine.reduce(Views.extendMirrorDouble(img), out, new long[dims.length],
+			dims, new Canceled());
+		for (final U t : out) {
+			assertEquals(7, t.getRealDouble(), 0);
+		}
+	}
+
+	private <U extends RealType<U>> void assertSummedAreaMatches(
+		final ImgPlus<U> img, final Neighborhood neigh,
+		final SummedAreaEngine.Statistic stat, final double order)
+	{
+		final Function<long[], DoubleType> in = inputFunction(img);
+		final Function<PointSet, DoubleType> func;
+		switch (stat) {
+			case GEOMETRIC_MEAN:
+				func = new RealGeometricMeanFunction<DoubleType>(in);
+				break;
+			case HARMONIC_MEAN:
+				func = new RealHarmonicMeanFunction<DoubleType>(in);
+				break;
+			default:
+				func =
+					new RealContraharmonicMeanFunction<DoubleType>(in, order);
+				break;
+		}
+		final ReductionEngine<U> engine = new SummedAreaEngine<U>(stat, order,
+			(OffsetPointSet) neigh.getPoints());
+		assertEngineMatches(img, neigh, func, engine, 1e-6);
+	}
+
+	/**
+	 * Checks the engine against RealAdaptiveMedianFunction over windows built
+	 * as NoiseReductionAdaptiveMedian builds them.
+	 */
+	private <U extends RealType<U>> void assertAdaptiveMedianMatches(
+		final ImgPlus<U> img, final int left, final int up, final int right,
+		final int down, final int windows)
+	{
+		final int numDims = img.numDimensions();
+		final List<PointSet> neighs = new ArrayList<PointSet>();
+		for (int i = 0; i < windows; i++) {
+			neighs.add(new HyperVolumePointSet(new long[numDims], xy(numDims,
+				left + i, up + i), xy(numDims, right + i, down + i)));
+		}
+		final Function<long[], DoubleType> in = inputFunction(img);
+		final Function<PointSet, DoubleType> func =
+			new RealAdaptiveMedianFunction<DoubleType>(in, neighs);
+		final Reducer<U, DoubleType> generic =
+			new Reducer<U, DoubleType>(context, img, func, neighs.get(0));
+		generic.setNumThreads(1);
+		final Img<U> expected = output(generic.reduceNoise("function"));
+		for (final int threads : new int[] { 1, 4 }) {
+			final Reducer<U, DoubleType> reducer =
+				new Reducer<U, DoubleType>(context, img, func, neighs.get(0));
+			reducer.setEngine(new AdaptiveMedianEngine<U>(xy(numDims, left, up),
+				xy(numDims, right, down), windows));
+			reducer.setNumThreads(threads);
+			assertSameValues(expected, output(reducer.reduceNoise("engine")));
+		}
+	}
+
+	private static long[] xy(final int numDims, final long x, final long y) {
+		final long[] offsets = new long[numDims];
+		offsets[0] = x;
+		offsets[1] = y;
+		return offsets;
+	}
+
+	private <U extends RealType<U>> void assertTrimmedMeanMatches(
+		final ImgPlus<U> img, final Neighborhood neigh, final int trim)
+	{
+		final Function<long[], DoubleType> in = inputFunction(img);
+		assertEngineMatches(img, neigh,
+			new RealTrimmedMeanFunction<DoubleType>(in, trim),
+			trimmedMeanEngine(img, neigh, trim), 1e-6);
+	}
+
+	private <U extends RealType<U>> void assertAlphaTrimmedMeanMatches(
+		final ImgPlus<U> img, final Neighborhood neigh, final double alpha)
+	{
+		// NB - as NoiseReductionAlphaTrimmedMean finds the number to trim
+		final int trim = (int) (alpha * neigh.getPoints().size());
+		final Function<long[], DoubleType> in = inputFunction(img);
+		assertEngineMatches(img, neigh,
+			new RealAlphaTrimmedMeanFunction<DoubleType>(in, alpha),
+			trimmedMeanEngine(img, neigh, trim), 1e-6);
+	}
+
+	/** Returns the engine the trimmed mean commands pick for an image. */
+	private static <U extends RealType<U>> ReductionEngine<U>
+		trimmedMeanEngine(final ImgPlus<U> img, final Neighborhood neigh,
+			final int trim)
+	{
+		final OffsetPointSet points = (OffsetPointSet) neigh.getPoints();
+		final U type = img.firstElement();
+		if (HistogramTrimmedMeanEngine.isSupported(type)) {
+			return new HistogramTrimmedMeanEngine<U>(type, points, trim);
+		}
+		return new SelectionTrimmedMeanEngine<U>(points, trim);
+	}
+
+	/**
+	 * Checks each statistic of NoiseReductionMultiStatistic, on one thread and
+	 * on several, against the matching reduction function. With NaN in the image
+	 * the minimum, maximum and midpoint are checked against SeparableBoxEngine
+	 * instead.
+	 */
+	private <U extends RealType<U>> void assertStatisticsMatch(
+		final ImgPlus<U> img, final Neighborhood neigh, final boolean nan)
+	{
+		final Statistic[] statistics = Statistic.values();
+		final List<Img<U>> expected = new ArrayList<Img<U>>();
+		for (final Statistic stat : statistics) {
+			expected.add(statisticReference(img, neigh, stat, nan));
+		}
+		for (final int threads : new int[] { 1, 4 }) {
+			final NoiseReductionMultiStatistic<U> command =
+				runStatistics(img, neigh, false, threads);
+			for (int s = 0; s < statistics.length; s++) {
+				final Img<U> actual = output(command.getOutput(statistics[s]));
+				assertSameValues(expected.get(s), actual, 1e-6);
+			}
+		}
+	}
+
+	/** Reduces an image with the single statistic that stands for stat. */
+	private <U extends RealType<U>> Img<U> statisticReference(
+		final ImgPlus<U> img, final Neighborhood neigh, final Statistic stat,
+		final boolean nan)
+	{
+		final Function<long[], DoubleType> in = inputFunction(img);
+		final Function<PointSet, DoubleType> func;
+		switch (stat) {
+			case MEAN:
+				func = new RealArithmeticMeanFunction<DoubleType>(in);
+				break;
+			case MEDIAN:
+				func = new RealMedianFunction<DoubleType>(in);
+				break;
+			case MIN:
+				func = new RealMinFunction<DoubleType>(in);
+				break;
+			case MAX:
+				func = new RealMaxFunction<DoubleType>(in);
+				break;
+			case MIDPOINT:
+				func = new RealMidpointFunction<DoubleType>(in);
+				break;
+			case GEOMETRIC_MEAN:
+				func = new RealGeometricMeanFunction<DoubleType>(in);
+				break;
+			default:
+				func = new RealHarmonicMeanFunction<DoubleType>(in);
+				break;
+		}
+		final Reducer<U, DoubleType> reducer =
+			new Reducer<U, DoubleType>(context, img, func, neigh);
+		reducer.setNumThreads(1);
+		final boolean extreme = stat == Statistic.MIN || stat == Statistic.MAX ||
+			stat == Statistic.MIDPOINT;
+		if (nan && extreme) {
+			reducer.setEngine(new SeparableBoxEngine<U>(
+				SeparableBoxEngine.Statistic.valueOf(stat.name()),
+				(OffsetPointSet) neigh.getPoints()));
+		}
+		return output(reducer.reduceNoise("reference"));
+	}
+
+	/**
+	 * Checks that the statistics output as channels match those output
+	 * separately, and that the new axis has the given type.
+	 */
+	private <U extends RealType<U>> void assertChannelsMatch(
+		final ImgPlus<U> img, final Neighborhood neigh, final AxisType type)
+	{
+		final Statistic[] statistics = Statistic.values();
+		final NoiseReductionMultiStatistic<U> separate =
+			runStatistics(img, neigh, false, 4);
+		final NoiseReductionMultiStatistic<U> stacked =
+			runStatistics(img, neigh, true, 4);
+		final Img<U> stack = output(stacked.getOutput());
+		final int statDim = img.numDimensions();
+		assertEquals(statDim + 1, stack.numDimensions());
+		assertEquals(statistics.length, stack.dimension(statDim));
+		assertEquals(type, stacked.getOutput().axis(statDim).type());
+		for (int s = 0; s < statistics.length; s++) {
+			final Img<U> expected = output(separate.getOutput(statistics[s]));
+			assertSameValues(expected, Views.hyperSlice(stack, statDim, s));
+		}
+	}
+
+	/** Runs NoiseReductionMultiStatistic with every statistic chosen. */
+	private <U extends RealType<U>> NoiseReductionMultiStatistic<U>
+		runStatistics(final ImgPlus<U> img, final Neighborhood neigh,
+			final boolean asChannels, final int threads)
+	{
+		final NoiseReductionMultiStatistic<U> command =
+			new NoiseReductionMultiStatistic<U>();
+		command.setContext(context);
+		command.setInput(new DefaultDataset(context, img));
+		command.setNeighborhood(neigh);
+		for (final Statistic stat : Statistic.values()) {
+			command.setStatistic(stat, true);
+		}
+		command.setAsChannels(asChannels);
+		command.setNumThreads(threads);
+		command.run();
+		return command;
+	}
+
+	private static SummedAreaEngine.Statistic[] summedStatistics() {
+		return SummedAreaEngine.Statistic.values();
+	}
+
+	private static SeparableBoxEngine.Statistic[] separableStatistics() {
+		return SeparableBoxEngine.Statistic.values();
+	}
+
+	/**
+	 * Returns rectangular neighborhoods of odd and even sizes and a radial one.
+	 */
+	private static Neighborhood[] neighborhoods(final int numDims) {
+		final Neighborhood[] boxes = boxes(numDims);
+		final Neighborhood[] neighs = Arrays.copyOf(boxes, boxes.length + 1);
+		neighs[boxes.length] = new RadialNeigh(numDims, 2);
+		return neighs;
+	}
+
+	/** Returns rectangular neighborhoods of odd and even sizes. */
+	private static Neighborhood[] boxes(final int numDims) {
+		return new Neighborhood[] { box(numDims, 1, 1, 1, 1),
+			box(numDims, 2, 1, 0, 2), box(numDims, 0, 0, 3, 0),
+			box(numDims, 0, 2, 0, 1) };
+	}
+
+	/**
+	 * Returns an XY box reaching the given distances left, up, right and down.
+	 */
+	static RectangularNeigh box(final int numDims, final long left,
+		final long up, final long right, final long down)
+	{
+		// NB - rectangular neighborhoods reach posOffsets below the origin
+		final long[] below = new long[numDims];
+		final long[] above = new long[numDims];
+		below[0] = left;
+		below[1] = up;
+		above[0] = right;
+		above[1] = down;
+		return new RectangularNeigh(below, above);
+	}
+
+	/** Fills an image with random values covering its type's range. */
+	static <U extends RealType<U>> ImgPlus<U> random(final Img<U> img) {
+		final U type = img.firstElement();
+		final double min = type.getMinValue();
+		final int range = (int) Math.min(type.getMaxValue() - min + 1, 1 << 16);
+		final Random random = new Random(range + img.size());
+		for (final U t : img) {
+			t.setReal(min + random.nextInt(range));
+		}
+		return new ImgPlus<U>(img, "test");
+	}
+
+	/**
+	 * Fills an image with dark values of 1 to 3 and, here and there, bright
+	 * values near 65535.
+	 */
+	static <U extends RealType<U>> ImgPlus<U> darkAndBright(final Img<U> img) {
+		final Random random = new Random(img.size());
+		for (final U t : img) {
+			if (random.nextInt(8) == 0) t.setReal(65535 - random.nextInt(5));
+			else t.setReal(1 + random.nextInt(3));
+		}
+		return new ImgPlus<U>(img, "test");
+	}
+
+	/**
+	 * Fills an image with values from 20 to 235 with about one in five points
+	 * replaced by impulses of 0 or 255.
+	 */
+	static <U extends RealType<U>> ImgPlus<U> impulses(final Img<U> img) {
+		final Random random = new Random(img.size());
+		for (final U t : img) {
+			final int r = random.nextInt(10);
+			if (r == 0) t.setReal(0);
+			else if (r == 1) t.setReal(255);
+			else t.setReal(20 + random.nextInt(216));
+		}
+		return new ImgPlus<U>(img, "test");
+	}
+
+	/** A canceler that has already been canceled. */
+	static class Canceled implements Cancelable {
+
+		@Override
+		public boolean isCanceled() {
+			return true;
+		}
+
+		@Override
+		public void cancel(final String reason) {
+			// already canceled
+		}
+
+		@Override
+		public String getCancelReason() {
+			return "canceled";
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.correlate;
+
+import static net.imagej.plugins.commands.neigh.Neighborhood3x3OperationTest.assertReaches;
+import static net.imagej.plugins.commands.neigh.Neighborhood3x3OperationTest.assertRowPathMatchesLocations;
+import static net.imagej.plugins.commands.neigh.Neighborhood3x3OperationTest.extremes;
+
+import java.util.Random;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.plugins.commands.neigh.Neighborhood3x3Operation;
+import net.imagej.plugins.commands.neigh.Neighborhood3x3Watcher;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that the row path of {@link Correlation3x3Operation} gives the same
+ * results as its per-location path.
+ */
+public class Correlation3x3OperationTest {
+
+	private Context context;
+	private DatasetService datasetService;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testFloats() {
+		final Img<FloatType> img = ArrayImgs.floats(17, 13, 2);
+		final Random random = new Random(17);
+		for (final FloatType t : img) {
+			t.setReal(random.nextInt(1000) / 10.0);
+		}
+		final ImgPlus<FloatType> imgPlus = new ImgPlus<FloatType>(img, "test");
+		final double[] kernel = { 1, 2, 3, 4, 5, 6, 7, 8, 10 };
+		assertRowPathMatchesLocations(datasetService, imgPlus, correlate(imgPlus,
+			kernel));
+	}
+
+	@Test
+	public void testUnsignedClamping() {
+		// NB - the kernel sums to 1, so extreme neighbors fall outside 0..255
+		final ImgPlus<UnsignedByteType> img =
+			extremes(ArrayImgs.unsignedBytes(16, 11, 2));
+		final double[] kernel = { -1, -2, -1, 0, 1, 0, 1, 2, 1 };
+		final Img<UnsignedByteType> result =
+			assertRowPathMatchesLocations(datasetService, img, correlate(img,
+				kernel));
+		assertReaches(result, 0);
+		assertReaches(result, 255);
+	}
+
+	@Test
+	public void testSignedClampingAndRounding() {
+		// NB - the kernel sums to 4, so sums are scaled and rounded
+		final ImgPlus<ShortType> img = extremes(ArrayImgs.shorts(15, 12, 2));
+		final double[] kernel = { 1, 1, 1, 1, -4, 1, 1, 1, 1 };
+		final Img<ShortType> result =
+			assertRowPathMatchesLocations(datasetService, img, correlate(img,
+				kernel));
+		assertReaches(result, Short.MIN_VALUE);
+		assertReaches(result, Short.MAX_VALUE);
+	}
+
+	// -- helpers --
+
+	/** Makes correlation watchers for images of the given image's type. */
+	private <T extends RealType<T>> Neighborhood3x3Operation.WatcherFactory
+		correlate(final ImgPlus<T> typeSource, final double[] kernel)
+	{
+		final Dataset ds = datasetService.create(typeSource);
+		return new Neighborhood3x3Operation.WatcherFactory() {
+
+			@Override
+			public Neighborhood3x3Watcher createWatcher() {
+				return new Correlation3x3Operation.CorrelateWatcher(ds, kernel);
+			}
+		};
+	}
+}
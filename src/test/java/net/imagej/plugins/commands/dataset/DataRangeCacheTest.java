@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.ref.WeakReference;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.autoscale.AutoscaleService;
+import net.imagej.autoscale.DataRange;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.event.DatasetRestructuredEvent;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.event.EventService;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Tests that {@link DataRangeCache} reuses ranges until the data changes and
+ * does not keep datasets alive.
+ */
+public class DataRangeCacheTest {
+
+	private Context context;
+	private DatasetService datasetService;
+	private DataRangeCache cache;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, DataRangeCache.class,
+			EventService.class, ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+		cache = context.getService(DataRangeCache.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testRangeIsCached() {
+		final Dataset ds = create(5, 4, 3);
+		final DataRange range = cache.getRange(ds);
+		assertRange(0, 59, range);
+		// NB - a change without an update event is not seen
+		set(ds, 1000, 0, 0, 0);
+		assertSame(range, cache.getRange(ds));
+		final DataRange plane = cache.getPlaneRange(ds, new long[] { 1 });
+		assertSame(plane, cache.getPlaneRange(ds, new long[] { 1 }));
+	}
+
+	@Test
+	public void testUpdateInvalidates() {
+		final Dataset ds = create(5, 4, 3);
+		cache.getRange(ds);
+		cache.getAutoscaleRange(ds);
+		cache.getPlaneRange(ds, new long[] { 2 });
+		set(ds, -7, 3, 2, 2);
+		ds.update();
+		assertRange(-7, 59, cache.getRange(ds));
+		assertRange(-7, 59, cache.getPlaneRange(ds, new long[] { 2 }));
+		final DataRange expected = context.getService(AutoscaleService.class)
+			.getDefaultIntervalRange(ds.getImgPlus());
+		assertRange(expected.getMin(), expected.getMax(), cache
+			.getAutoscaleRange(ds));
+	}
+
+	@Test
+	public void testRestructureInvalidates() {
+		final Dataset ds = create(5, 4, 3);
+		cache.getRange(ds);
+		cache.getPlaneRange(ds, new long[] { 0 });
+		set(ds, 500, 4, 3, 0);
+		context.getService(EventService.class).publish(
+			new DatasetRestructuredEvent(ds));
+		assertRange(0, 500, cache.getRange(ds));
+		assertRange(0, 500, cache.getPlaneRange(ds, new long[] { 0 }));
+	}
+
+	@Test
+	public void testPlaneRanges() {
+		final Dataset ds = create(5, 4, 3);
+		for (int z = 0; z < 3; z++) {
+			assertRange(20 * z, 20 * z + 19,
+				cache.getPlaneRange(ds, new long[] { z }));
+		}
+		// NB - ranges filled in by a whole dataset scan are the same
+		final Dataset other = create(5, 4, 3);
+		cache.getRange(other);
+		for (int z = 0; z < 3; z++) {
+			assertRange(20 * z, 20 * z + 19,
+				cache.getPlaneRange(other, new long[] { z }));
+		}
+	}
+
+	@Test
+	public void testNaNOnlyPlane() {
+		final Dataset ds = create(5, 4, 3);
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		while (cursor.hasNext()) {
+			final RealType<?> value = cursor.next();
+			if (cursor.getLongPosition(2) == 1) value.setReal(Double.NaN);
+		}
+		final DataRange plane = cache.getPlaneRange(ds, new long[] { 1 });
+		assertEquals(Double.POSITIVE_INFINITY, plane.getMin(), 0);
+		assertEquals(Double.NEGATIVE_INFINITY, plane.getMax(), 0);
+		assertRange(0, 59, cache.getRange(ds));
+	}
+
+	@Test
+	public void testAutoscaleRangeMatchesService() {
+		final Dataset ds = create(5, 4, 3);
+		final DataRange expected = context.getService(AutoscaleService.class)
+			.getDefaultIntervalRange(ds.getImgPlus());
+		final DataRange range = cache.getAutoscaleRange(ds);
+		assertRange(expected.getMin(), expected.getMax(), range);
+		assertSame(range, cache.getAutoscaleRange(ds));
+	}
+
+	@Test
+	public void testDroppedDatasetIsReleased() {
+		final WeakReference<Dataset> ref = cacheTemporaryDataset();
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			try {
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException exc) {
+				break;
+			}
+		}
+		assertNull(ref.get());
+	}
+
+	// -- helpers --
+
+	/** Caches the ranges of a dataset that is then dropped. */
+	private WeakReference<Dataset> cacheTemporaryDataset() {
+		final Dataset ds = create(5, 4, 3);
+		cache.getRange(ds);
+		cache.getAutoscaleRange(ds);
+		return new WeakReference<Dataset>(ds);
+	}
+
+	/** Makes a float XYZ dataset whose values count up in storage order. */
+	private Dataset create(final long... dims) {
+		final Dataset ds = datasetService.create(dims, "test", new AxisType[] {
+			Axes.X, Axes.Y, Axes.Z }, 32, true, true);
+		final Cursor<? extends RealType<?>> cursor = ds.getImgPlus().cursor();
+		final long[] pos = new long[dims.length];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(pos);
+			cursor.get().setReal(pos[0] + dims[0] * (pos[1] + dims[1] * pos[2]));
+		}
+		return ds;
+	}
+
+	private void set(final Dataset ds, final double value, final long... pos) {
+		final RandomAccess<? extends RealType<?>> access =
+			ds.getImgPlus().randomAccess();
+		access.setPosition(pos);
+		access.get().setReal(value);
+	}
+
+	private void assertRange(final double min, final double max,
+		final DataRange range)
+	{
+		assertEquals(min, range.getMin(), 0);
+		assertEquals(max, range.getMax(), 0);
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2024 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.plugins.commands.neigh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.Unsigned12BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+import org.scijava.util.RealRect;
+
+/**
+ * Tests that {@link Neighborhood3x3Operation} gives the same results as the
+ * old algorithm, which visited every neighbor of a copy of the image with
+ * mirrored borders. Both the row path and the per-location path are checked,
+ * on one thread and on several. The row path of the Find Edges watcher is
+ * checked against its own per-location path.
+ */
+public class Neighborhood3x3OperationTest {
+
+	/** An asymmetric kernel, so swapped rows or columns do not go unnoticed. */
+	private static final double[] KERNEL = { 1, 2, 3, 4, 5, 6, 7, 8, 10 };
+
+	private Context context;
+	private DatasetService datasetService;
+
+	@Before
+	public void setUp() {
+		context = new Context(DatasetService.class, ThreadService.class);
+		datasetService = context.getService(DatasetService.class);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testWholeImage() {
+		assertAllPathsMatch(floats(23, 17, 3), new RealRect(0, 0, 0, 0));
+		assertAllPathsMatch(bytes(19, 13, 2), new RealRect(0, 0, 0, 0));
+	}
+
+	@Test
+	public void testSelections() {
+		final ImgPlus<FloatType> img = floats(20, 16, 2);
+		// interior, touching each edge, and a single pixel
+		assertAllPathsMatch(img, new RealRect(3, 4, 9, 7));
+		assertAllPathsMatch(img, new RealRect(0, 0, 5, 6));
+		assertAllPathsMatch(img, new RealRect(14, 9, 6, 7));
+		assertAllPathsMatch(img, new RealRect(0, 5, 20, 3));
+		assertAllPathsMatch(img, new RealRect(7, 0, 4, 16));
+		assertAllPathsMatch(img, new RealRect(19, 15, 1, 1));
+	}
+
+	@Test
+	public void testTinyImages() {
+		assertAllPathsMatch(floats(1, 1), new RealRect(0, 0, 0, 0));
+		assertAllPathsMatch(floats(1, 7, 2), new RealRect(0, 0, 0, 0));
+		assertAllPathsMatch(floats(7, 1, 2), new RealRect(0, 0, 0, 0));
+		assertAllPathsMatch(floats(2, 2, 3), new RealRect(0, 0, 0, 0));
+		assertAllPathsMatch(floats(3, 2), new RealRect(0, 0, 0, 0));
+	}
+
+	@Test
+	public void testManyPlanes() {
+		// NB - fewer rows per plane than bands, so some bands are empty
+		assertAllPathsMatch(floats(9, 3, 4, 3), new RealRect(0, 0, 0, 0));
+		assertAllPathsMatch(bytes(6, 5, 2, 5), new RealRect(1, 1, 4, 3));
+	}
+
+	@Test
+	public void testBandsOfSingleRows() {
+		// NB - more bands than rows, so other bands write a band's neighbors
+		final ImgPlus<FloatType> img = floats(6, 40);
+		final ImgPlus<FloatType> expected = img.copy();
+		oldAlgorithm(expected, new RealRect(0, 0, 0, 0));
+		final Dataset ds = datasetService.create(img);
+		final RealRect selection = new RealRect(0, 0, 0, 0);
+		final Neighborhood3x3Operation operation =
+			new Neighborhood3x3Operation(ds, selection, factory(true));
+		operation.setNumThreads(16);
+		operation.run();
+		assertSameValues(expected, img);
+	}
+
+	@Test
+	public void testPackedTypes() {
+		// NB - several pixels share a storage element, so rows are not split up
+		final Img<Unsigned12BitType> img = ArrayImgs.unsigned12Bits(13, 11, 2);
+		final Random random = new Random(12);
+		for (final Unsigned12BitType t : img) {
+			t.set(random.nextInt(4096));
+		}
+		assertAllPathsMatch(new ImgPlus<Unsigned12BitType>(img, "test"),
+			new RealRect(2, 1, 9, 8));
+	}
+
+	@Test
+	public void testFindEdgesRowPath() {
+		assertRowPathMatchesLocations(datasetService, floats(17, 13, 2),
+			findEdges(floats(1, 1)));
+		// NB - edges between 0 and 255 are steeper than 255, so they are clamped
+		final ImgPlus<UnsignedByteType> img =
+			extremes(ArrayImgs.unsignedBytes(16, 11, 2));
+		final Img<UnsignedByteType> result =
+			assertRowPathMatchesLocations(datasetService, img, findEdges(img));
+		assertReaches(result, 255);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoThreads() {
+		final Dataset ds = datasetService.create(floats(4, 4));
+		final RealRect selection = new RealRect(0, 0, 0, 0);
+		final Neighborhood3x3Operation operation =
+			new Neighborhood3x3Operation(ds, selection, factory(true));
+		operation.setNumThreads(0);
+	}
+
+	// -- helpers --
+
+	/**
+	 * Runs the old algorithm on a copy of the image, then checks that the row
+	 * path and the per-location path give the same values on 1 and 4 threads.
+	 */
+	private <T extends RealType<T>> void assertAllPathsMatch(
+		final ImgPlus<T> img, final RealRect selection)
+	{
+		final ImgPlus<T> expected = img.copy();
+		oldAlgorithm(expected, copy(selection));
+		for (final boolean rows : new boolean[] { true, false }) {
+			for (final int threads : new int[] { 1, 4 }) {
+				final ImgPlus<T> actual = img.copy();
+				final Dataset ds = datasetService.create(actual);
+				final Neighborhood3x3Operation operation =
+					new Neighborhood3x3Operation(ds, copy(selection),
+						factory(rows));
+				operation.setNumThreads(threads);
+				operation.run();
+				assertSameValues(expected, actual);
+			}
+			// the single watcher constructor always runs on one thread
+			final ImgPlus<T> actual = img.copy();
+			new Neighborhood3x3Operation(datasetService.create(actual),
+				copy(selection), factory(rows).createWatcher()).run();
+			assertSameValues(expected, actual);
+		}
+	}
+
+	/**
+	 * Runs a watcher's row path on several threads and its per-location path on
+	 * one thread, each on a copy of the whole image. Checks that they agree and
+	 * returns the result.
+	 */
+	public static <T extends RealType<T>> Img<T> assertRowPathMatchesLocations(
+		final DatasetService datasetService, final ImgPlus<T> img,
+		final Neighborhood3x3Operation.WatcherFactory factory)
+	{
+		final ImgPlus<T> rows = img.copy();
+		final Neighborhood3x3Operation operation =
+			new Neighborhood3x3Operation(datasetService.create(rows),
+				new RealRect(0, 0, 0, 0), factory);
+		operation.setNumThreads(4);
+		operation.run();
+		final ImgPlus<T> locations = img.copy();
+		new Neighborhood3x3Operation(datasetService.create(locations),
+			new RealRect(0, 0, 0, 0), new LocationWatcher(factory.createWatcher()))
+				.run();
+		assertSameValues(locations, rows);
+		return rows;
+	}
+
+	/** Fills an image with a random mix of its type's extreme values. */
+	public static <T extends RealType<T>> ImgPlus<T> extremes(final Img<T> img) {
+		final Random random = new Random(img.size());
+		for (final T t : img) {
+			t.setReal(random.nextBoolean() ? t.getMinValue() : t.getMaxValue());
+		}
+		return new ImgPlus<T>(img, "test");
+	}
+
+	/** Checks that some value of an image equals the given one. */
+	public static <T extends RealType<T>> void assertReaches(final Img<T> img,
+		final double value)
+	{
+		for (final T t : img) {
+			if (t.getRealDouble() == value) return;
+		}
+		fail("no value is " + value);
+	}
+
+	/**
+	 * The algorithm Neighborhood3x3Operation used before it kept row buffers:
+	 * each neighbor is read from a copy of the image with mirrored borders.
+	 */
+	private <T extends RealType<T>> void oldAlgorithm(final Img<T> img,
+		final RealRect selection)
+	{
+		final Img<T> copy = img.copy();
+		final RandomAccess<T> in = copy.randomAccess();
+		final RandomAccess<T> out = img.randomAccess();
+		final Neighborhood3x3Watcher watcher = new KernelWatcher();
+		if (selection.width == 0) selection.width = img.dimension(0);
+		if (selection.height == 0) selection.height = img.dimension(1);
+		final long minX = (long) selection.x;
+		final long minY = (long) selection.y;
+		final long maxX = minX + (long) selection.width;
+		final long maxY = minY + (long) selection.height;
+		final long[] pos = new long[img.numDimensions()];
+		final long[] local = new long[pos.length];
+		final Cursor<T> cursor = img.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(pos);
+			if (pos[0] < minX || pos[0] >= maxX) continue;
+			if (pos[1] < minY || pos[1] >= maxY) continue;
+			watcher.initializeNeighborhood(pos);
+			System.arraycopy(pos, 0, local, 0, pos.length);
+			for (int dy = -1; dy <= 1; dy++) {
+				local[1] = mirror(pos[1] + dy, img.dimension(1));
+				for (int dx = -1; dx <= 1; dx++) {
+					local[0] = mirror(pos[0] + dx, img.dimension(0));
+					in.setPosition(local);
+					watcher.visitLocation(dx, dy, in.get().getRealDouble());
+				}
+			}
+			out.setPosition(pos);
+			out.get().setReal(watcher.calcOutputValue());
+		}
+	}
+
+	/**
+	 * Mirrors a coordinate one step outside of [0,size) back into it without
+	 * repeating the edge value, as Views.extendMirrorSingle() does. A dimension
+	 * of size 1 only mirrors onto itself.
+	 */
+	private static long mirror(final long i, final long size) {
+		if (size == 1) return 0;
+		if (i < 0) return -i;
+		if (i >= size) return 2 * size - 2 - i;
+		return i;
+	}
+
+	private Neighborhood3x3Operation.WatcherFactory factory(
+		final boolean rows)
+	{
+		return new Neighborhood3x3Operation.WatcherFactory() {
+
+			@Override
+			public Neighborhood3x3Watcher createWatcher() {
+				final KernelWatcher watcher = new KernelWatcher();
+				return rows ? watcher : new LocationWatcher(watcher);
+			}
+		};
+	}
+
+	/** Makes Find Edges watchers for images of the given image's type. */
+	private <T extends RealType<T>> Neighborhood3x3Operation.WatcherFactory
+		findEdges(final ImgPlus<T> typeSource)
+	{
+		final Dataset ds = datasetService.create(typeSource);
+		return new Neighborhood3x3Operation.WatcherFactory() {
+
+			@Override
+			public Neighborhood3x3Watcher createWatcher() {
+				return new FindEdges.FindEdgesWatcher(ds);
+			}
+		};
+	}
+
+	private static RealRect copy(final RealRect r) {
+		return new RealRect(r.x, r.y, r.width, r.height);
+	}
+
+	private static ImgPlus<FloatType> floats(final long... dims) {
+		final Img<FloatType> img = ArrayImgs.floats(dims);
+		final Random random = new Random(Arrays.hashCode(dims));
+		for (final FloatType t : img) {
+			t.setReal(random.nextInt(1000) / 10.0);
+		}
+		return new ImgPlus<FloatType>(img, "test");
+	}
+
+	private static ImgPlus<UnsignedByteType> bytes(final long... dims) {
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(dims);
+		final Random random = new Random(Arrays.hashCode(dims));
+		for (final UnsignedByteType t : img) {
+			t.set(random.nextInt(256));
+		}
+		return new ImgPlus<UnsignedByteType>(img, "test");
+	}
+
+	private static <T extends RealType<T>> void assertSameValues(
+		final Img<T> expected, final Img<T> actual)
+	{
+		final Cursor<T> cursor = expected.localizingCursor();
+		final RandomAccess<T> access = actual.randomAccess();
+		final long[] pos = new long[expected.numDimensions()];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(pos);
+			access.setPosition(pos);
+			assertEquals("at " + Arrays.toString(pos),
+				cursor.get().getRealDouble(), access.get().getRealDouble(), 0);
+		}
+	}
+
+	/** Correlates with {@link #KERNEL}, adding the values in visiting order. */
+	private static class KernelWatcher implements Neighborhood3x3RowWatcher {
+
+		private double sum;
+
+		@Override
+		public void setup() {
+			// nothing to do
+		}
+
+		@Override
+		public void initializeNeighborhood(final long[] position) {
+			sum = 0;
+		}
+
+		@Override
+		public void visitLocation(final int dx, final int dy,
+			final double value)
+		{
+			sum += value * KERNEL[(dy + 1) * 3 + (dx + 1)];
+		}
+
+		@Override
+		public double calcOutputValue() {
+			return sum / 50;
+		}
+
+		@Override
+		public void calcOutputRow(final double[] above, final double[] row,
+			final double[] below, final double[] output, final int width)
+		{
+			for (int x = 0; x < width; x++) {
+				initializeNeighborhood(null);
+				visitLocation(-1, -1, above[x]);
+				visitLocation(0, -1, above[x + 1]);
+				visitLocation(1, -1, above[x + 2]);
+				visitLocation(-1, 0, row[x]);
+				visitLocation(0, 0, row[x + 1]);
+				visitLocation(1, 0, row[x + 2]);
+				visitLocation(-1, 1, below[x]);
+				visitLocation(0, 1, below[x + 1]);
+				visitLocation(1, 1, below[x + 2]);
+				output[x] = calcOutputValue();
+			}
+		}
+	}
+
+	/** Hides the row method, so the operation visits every location. */
+	private static class LocationWatcher implements Neighborhood3x3Watcher {
+
+		private final Neighborhood3x3Watcher watcher;
+
+		public LocationWatcher(final Neighborhood3x3Watcher watcher) {
+			this.watcher = watcher;
+		}
+
+		@Override
+		public void setup() {
+			watcher.setup();
+		}
+
+		@Override
+		public void initializeNeighborhood(final long[] position) {
+			watcher.initializeNeighborhood(position);
+		}
+
+		@Override
+		public void visitLocation(final int dx, final int dy,
+			final double value)
+		{
+			watcher.visitLocation(dx, dy, value);
+		}
+
+		@Override
+		public double calcOutputValue() {
+			return watcher.calcOutputValue();
+		}
+	}
+}